@@ -39,7 +39,8 @@ public class InstallerNode
 	
 	// possible flags for flag list
 	public static final String EXCLUDE_FROM_COMPLETE_INSTALLATION = "EXCLUDE-FROM-COMPLETE-INSTALLATION";
-	public static final List<String> ALL_FLAGS = Collections.unmodifiableList(Arrays.asList(EXCLUDE_FROM_COMPLETE_INSTALLATION));
+	public static final String PACK_INTO_VP = "PACK-INTO-VP";
+	public static final List<String> ALL_FLAGS = Collections.unmodifiableList(Arrays.asList(EXCLUDE_FROM_COMPLETE_INSTALLATION, PACK_INTO_VP));
 	
 	protected String name;
 	protected String description;
@@ -135,9 +135,41 @@ public class InstallerNodeFactory
 			}
 		}
 		
+		checkPackedFiles(node);
 		return node;
 	}
 	
+	/**
+	 * Files packed into a VP are never written to disk, so they can't be
+	 * hashed or patched afterward; reject a node that asks for both rather
+	 * than letting those checks quietly do nothing.
+	 */
+	private static void checkPackedFiles(InstallerNode node) throws InstallerNodeParseException
+	{
+		if (!node.getFlagList().contains(InstallerNode.PACK_INTO_VP))
+			return;
+		
+		for (InstallerNode.HashTriple hash: node.getHashList())
+		{
+			if (isDataPath(hash.getFilename()))
+				throw new InstallerNodeParseException("HASH of '" + hash.getFilename() + "' can't be checked because the node is flagged " + InstallerNode.PACK_INTO_VP + "!");
+		}
+		for (InstallerNode.InstallUnit install: node.getInstallList())
+		{
+			for (InstallerNode.PatchTriple patch: install.getPatchList())
+			{
+				if (isDataPath(patch.getPrePatch().getFilename()) || isDataPath(patch.getPostPatch().getFilename()))
+					throw new InstallerNodeParseException("PATCH of '" + patch.getPrePatch().getFilename() + "' can't be applied because the node is flagged " + InstallerNode.PACK_INTO_VP + "!");
+			}
+		}
+	}
+	
+	private static boolean isDataPath(String filename)
+	{
+		String path = filename.replace('\\', '/').toLowerCase();
+		return path.startsWith("data/");
+	}
+	
 	private static void handleToken(Reader reader, InstallerNodeToken token, InstallerNode node, InstallerNode.InstallUnit currentInstallUnit) throws InstallerNodeParseException, IOException
 	{
 		switch (token)
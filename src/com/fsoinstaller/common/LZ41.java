@@ -0,0 +1,262 @@
+package com.fsoinstaller.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Reads and writes VP entries compressed in the "LZ41" format understood by
+ * the engine. A compressed entry is laid out as follows, with every integer
+ * 32-bit little-endian:
+ * <pre>
+ * "LZ41"
+ * block 0 ... block n-1        independent LZ4 blocks
+ * offset 0 ... offset n        offset of each block within the entry, then
+ *                              the offset of the end of the last block
+ * n + 1                        number of offsets
+ * original size                size of the entry once decompressed
+ * block size                   size of every decompressed block but the last
+ * </pre>
+ * Because the blocks are independent and their offsets are stored, any part
+ * of an entry can be read without decompressing what comes before it.
+ */
+public final class LZ41 {
+    
+    /** First 4 bytes of a compressed entry read as a 32-bit little-endian integer. */
+    private static final int LZ41_HEADER_ID = 0x31345a4c;
+    
+    /** Size of the header of a compressed entry. */
+    private static final int HEADER_SIZE = 4;
+    
+    /** Size of the fields after the offset table. */
+    private static final int TRAILER_SIZE = 12;
+    
+    /** Largest block size accepted when reading, so that a damaged entry can't exhaust memory. */
+    private static final int MAX_BLOCK_SIZE = 1 << 24;
+    
+    /** Block size used when none is given. */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    
+    
+    private LZ41() {
+    }
+    
+    /**
+     * Compresses the given data into a new compressed entry.
+     *
+     * @param data array containing the data
+     * @param offset offset of the data
+     * @param length number of bytes to compress
+     * @param blockSize number of bytes to compress into each block
+     * @return the compressed entry
+     */
+    public static byte[] compress(byte[] data, int offset, int length, int blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException(String.format("%d is not a valid block size.", blockSize));
+        }
+        int blockCount = (int)(((long)length + blockSize - 1) / blockSize);
+        long capacity = HEADER_SIZE + (long)length + (long)length / 255 + 16L * blockCount + 4L * (blockCount + 1) + TRAILER_SIZE;
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(String.format("%d bytes are too many to compress at once.", length));
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int)capacity).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] out = buffer.array();
+        buffer.putInt(LZ41_HEADER_ID);
+        int[] blockOffsets = new int[blockCount + 1];
+        int[] hashTable = LZ4Block.newHashTable();
+        int position = HEADER_SIZE;
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = position;
+            int start = i * blockSize;
+            position += LZ4Block.compress(data, offset + start, Math.min(blockSize, length - start), out, position, hashTable);
+        }
+        blockOffsets[blockCount] = position;
+        
+        buffer.position(position);
+        for (int blockOffset : blockOffsets) {
+            buffer.putInt(blockOffset);
+        }
+        buffer.putInt(blockOffsets.length).putInt(length).putInt(blockSize);
+        return Arrays.copyOf(out, buffer.position());
+    }
+    
+    /**
+     * Tells whether the given entry is compressed. Only the entry's header is
+     * checked; the rest of the entry is checked by {@link #readLayout}.
+     *
+     * @param vpFile VP file containing the entry
+     * @param entry entry to check
+     * @return true if the entry starts with the LZ41 header
+     * @throws IOException if an I/O error occurs
+     */
+    public static boolean isCompressed(VPFile vpFile, VPFile.VPEntry entry) throws IOException {
+        if (entry.getSize() < HEADER_SIZE + 4 + TRAILER_SIZE) {
+            return false;
+        }
+        return readBuffer(vpFile, entry, 0L, HEADER_SIZE).getInt() == LZ41_HEADER_ID;
+    }
+    
+    /**
+     * Reads the block table of the given entry.
+     *
+     * @param vpFile VP file containing the entry
+     * @param entry entry to read
+     * @return the entry's layout, or null if the entry isn't compressed
+     * @throws IOException if an I/O error occurs, or if the entry has the
+     *         LZ41 header but its block table is damaged
+     */
+    static Layout readLayout(VPFile vpFile, VPFile.VPEntry entry) throws IOException {
+        if (!isCompressed(vpFile, entry)) {
+            return null;
+        }
+        
+        long size = entry.getSize();
+        ByteBuffer trailer = readBuffer(vpFile, entry, size - TRAILER_SIZE, TRAILER_SIZE);
+        int offsetCount = trailer.getInt();
+        int originalSize = trailer.getInt();
+        int blockSize = trailer.getInt();
+        long tableStart = size - TRAILER_SIZE - 4L * offsetCount;
+        if (offsetCount < 1 || offsetCount > Integer.MAX_VALUE / 4 || tableStart < HEADER_SIZE
+                || originalSize < 0 || blockSize <= 0 || blockSize > MAX_BLOCK_SIZE
+                || offsetCount - 1 != ((long)originalSize + blockSize - 1) / blockSize) {
+            throw new IOException(String.format("%s has an invalid LZ41 block table.", entry));
+        }
+        
+        ByteBuffer table = readBuffer(vpFile, entry, tableStart, 4 * offsetCount);
+        int[] offsets = new int[offsetCount];
+        for (int i = 0; i < offsetCount; i++) {
+            offsets[i] = table.getInt();
+            long previous = i == 0 ? HEADER_SIZE : offsets[i - 1];
+            if (offsets[i] < previous || offsets[i] > tableStart
+                    || (i > 0 && offsets[i] - previous > LZ4Block.maxCompressedLength(blockSize))) {
+                throw new IOException(String.format("%s has an invalid LZ41 block table.", entry));
+            }
+        }
+        return new Layout(originalSize, blockSize, offsets);
+    }
+    
+    private static ByteBuffer readBuffer(VPFile vpFile, VPFile.VPEntry entry, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (vpFile.read(entry, position + buffer.position(), buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    
+    /**
+     * The block table of a compressed entry.
+     */
+    static class Layout {
+        
+        private final int originalSize;
+        private final int blockSize;
+        private final int[] offsets;
+        
+        private Layout(int originalSize, int blockSize, int[] offsets) {
+            this.originalSize = originalSize;
+            this.blockSize = blockSize;
+            this.offsets = offsets;
+        }
+        
+        int getOriginalSize() {
+            return originalSize;
+        }
+        
+        int getBlockSize() {
+            return blockSize;
+        }
+        
+        int getBlockCount() {
+            return offsets.length - 1;
+        }
+        
+        /**
+         * Returns the size of the given block once decompressed.
+         */
+        int getBlockLength(int index) {
+            return (int)Math.min(blockSize, (long)originalSize - (long)index * blockSize);
+        }
+        
+        /**
+         * Returns the size of the given block as it is stored.
+         */
+        int getCompressedLength(int index) {
+            return offsets[index + 1] - offsets[index];
+        }
+        
+        /**
+         * Returns the largest compressed size of any block.
+         */
+        int getMaxCompressedLength() {
+            int max = 0;
+            for (int i = 0; i < offsets.length - 1; i++) {
+                max = Math.max(max, getCompressedLength(i));
+            }
+            return max;
+        }
+        
+        /**
+         * Reads and decompresses one block of the given entry.
+         *
+         * @param vpFile VP file containing the entry
+         * @param entry entry the layout was read from
+         * @param index index of the block
+         * @param buffer buffer for the compressed block, at least
+         *        {@link #getMaxCompressedLength()} bytes long
+         * @param dst array to decompress the block into, at least
+         *        {@link #getBlockLength(int)} bytes long
+         * @return the length of the decompressed block
+         * @throws IOException if an I/O error occurs, or if the block is damaged
+         */
+        int readBlock(VPFile vpFile, VPFile.VPEntry entry, int index, byte[] buffer, byte[] dst) throws IOException {
+            int compressedLength = getCompressedLength(index);
+            ByteBuffer compressed = ByteBuffer.wrap(buffer, 0, compressedLength);
+            while (compressed.hasRemaining()) {
+                if (vpFile.read(entry, offsets[index] + compressed.position(), compressed) < 0) {
+                    throw new EOFException();
+                }
+            }
+            
+            int blockLength = getBlockLength(index);
+            int decompressedLength;
+            try {
+                decompressedLength = LZ4Block.decompress(buffer, 0, compressedLength, dst, 0, blockLength);
+            } catch (IOException ioe) {
+                IOException wrapped = new IOException(String.format("Block %d of %s is damaged.", index, entry));
+                wrapped.initCause(ioe);
+                throw wrapped;
+            }
+            if (decompressedLength != blockLength) {
+                throw new IOException(String.format("Block %d of %s is damaged.", index, entry));
+            }
+            return decompressedLength;
+        }
+        
+        /**
+         * Decompresses the whole entry to the given channel.
+         *
+         * @param vpFile VP file containing the entry
+         * @param entry entry the layout was read from
+         * @param destination channel to write the data to
+         * @throws IOException if an I/O error occurs, or if the entry is damaged
+         */
+        void decompress(VPFile vpFile, VPFile.VPEntry entry, WritableByteChannel destination) throws IOException {
+            byte[] buffer = new byte[getMaxCompressedLength()];
+            byte[] block = new byte[getBlockLength(0)];
+            for (int i = 0; i < getBlockCount(); i++) {
+                ByteBuffer data = ByteBuffer.wrap(block, 0, readBlock(vpFile, entry, i, buffer, block));
+                while (data.hasRemaining()) {
+                    destination.write(data);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.fsoinstaller.common;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses data in the LZ4 block format.
+ * <p>
+ * A block is a series of sequences. Each sequence is a token byte, whose high
+ * nibble is the number of literals and whose low nibble is the match length
+ * minus 4, followed by any extra literal length bytes, the literals, a 16-bit
+ * little-endian match offset and any extra match length bytes. The last
+ * sequence of a block has literals only. The compressor is the fast greedy
+ * one: it remembers the last position of every hashed 4-byte sequence and
+ * takes the first match it finds, skipping ahead faster the longer it goes
+ * without one.
+ * <p>
+ * Blocks are independent of each other, so any block can be decoded on its
+ * own.
+ */
+public final class LZ4Block {
+    
+    /** Shortest match that can be encoded. */
+    private static final int MIN_MATCH = 4;
+    
+    /** Number of bytes at the end of a block that must be literals. */
+    private static final int LAST_LITERALS = 5;
+    
+    /** A match must not start within this many bytes of the end of a block. */
+    private static final int MF_LIMIT = 12;
+    
+    /** Largest distance a match offset can encode. */
+    private static final int MAX_DISTANCE = 65535;
+    
+    /** Base-2 logarithm of the number of slots in the hash table. */
+    private static final int HASH_LOG = 14;
+    
+    /** Controls how quickly the compressor skips ahead through data without matches. */
+    private static final int SKIP_TRIGGER = 6;
+    
+    /** Largest value of a length nibble; larger lengths continue in extra bytes. */
+    private static final int RUN_MASK = 15;
+    
+    
+    private LZ4Block() {
+    }
+    
+    /**
+     * Returns the largest number of bytes that compressing
+     * <code>length</code> bytes can produce.
+     */
+    public static int maxCompressedLength(int length) {
+        if (length < 0 || length > Integer.MAX_VALUE - Integer.MAX_VALUE / 255 - 16) {
+            throw new IllegalArgumentException(String.format("%d bytes cannot be compressed in one block.", length));
+        }
+        return length + length / 255 + 16;
+    }
+    
+    /**
+     * Creates a hash table for {@link #compress(byte[], int, int, byte[], int, int[])}.
+     * A table may be reused for any number of blocks, but only by one thread
+     * at a time.
+     */
+    public static int[] newHashTable() {
+        return new int[1 << HASH_LOG];
+    }
+    
+    /**
+     * Compresses a block of data.
+     *
+     * @param src array containing the data
+     * @param srcOff offset of the data
+     * @param srcLen number of bytes to compress
+     * @param dst array to write the block to, with room for at least
+     *        {@link #maxCompressedLength(int)} bytes
+     * @param dstOff offset at which to write the block
+     * @return the length of the compressed block
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        return compress(src, srcOff, srcLen, dst, dstOff, newHashTable());
+    }
+    
+    /**
+     * Compresses a block of data, using the given hash table. The table
+     * doesn't need to be cleared between blocks, since every candidate match
+     * is checked against the data before it is used.
+     *
+     * @param src array containing the data
+     * @param srcOff offset of the data
+     * @param srcLen number of bytes to compress
+     * @param dst array to write the block to, with room for at least
+     *        {@link #maxCompressedLength(int)} bytes
+     * @param dstOff offset at which to write the block
+     * @param hashTable table created by {@link #newHashTable()}
+     * @return the length of the compressed block
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] hashTable) {
+        int srcEnd = srcOff + srcLen;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int mfLimit = srcEnd - MF_LIMIT;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+        
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int slot = hash(sequence);
+            int ref = hashTable[slot];
+            hashTable[slot] = ip;
+            if (ref < srcOff || ref >= ip || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            
+            // Extend the match backwards into the pending literals, then forwards.
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            ip += matchLength;
+            anchor = ip;
+            
+            // Remember a position inside the match, which helps with data
+            // that repeats at short intervals.
+            if (ip < mfLimit) {
+                hashTable[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+        
+        // The rest of the block is literals.
+        int literalLength = srcEnd - anchor;
+        int token = op++;
+        if (literalLength >= RUN_MASK) {
+            dst[token] = (byte)(RUN_MASK << 4);
+            op = writeLength(literalLength - RUN_MASK, dst, op);
+        } else {
+            dst[token] = (byte)(literalLength << 4);
+        }
+        System.arraycopy(src, anchor, dst, op, literalLength);
+        op += literalLength;
+        
+        return op - dstOff;
+    }
+    
+    /**
+     * Decompresses a block of data. The block is checked as it is decoded,
+     * so a damaged block can't cause reads or writes outside the given
+     * ranges.
+     *
+     * @param src array containing the block
+     * @param srcOff offset of the block
+     * @param srcLen length of the block
+     * @param dst array to write the data to
+     * @param dstOff offset at which to write the data
+     * @param dstLen largest number of bytes to write
+     * @return the number of bytes written
+     * @throws IOException if the block is damaged, or if it decompresses to
+     *         more than <code>dstLen</code> bytes
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+        int srcEnd = srcOff + srcLen;
+        int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+        
+        while (true) {
+            if (ip >= srcEnd) {
+                throw new IOException("LZ4 block ends in the middle of a sequence.");
+            }
+            int token = src[ip++] & 0xff;
+            
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd || literalLength > dstLen) {
+                        throw new IOException("LZ4 block has an invalid literal length.");
+                    }
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw new IOException("LZ4 block has an invalid literal length.");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            
+            // The last sequence has no match.
+            if (ip == srcEnd) {
+                break;
+            }
+            
+            if (srcEnd - ip < 2) {
+                throw new IOException("LZ4 block ends in the middle of a sequence.");
+            }
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            if (offset == 0 || offset > op - dstOff) {
+                throw new IOException("LZ4 block has an invalid match offset.");
+            }
+            
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd || matchLength > dstLen) {
+                        throw new IOException("LZ4 block has an invalid match length.");
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new IOException("LZ4 block decompresses to more data than expected.");
+            }
+            
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // The match overlaps the bytes it produces, so copy it one
+                // byte at a time.
+                int matchEnd = op + matchLength;
+                while (op < matchEnd) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        
+        return op - dstOff;
+    }
+    
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength, byte[] dst, int op) {
+        int token = op++;
+        int tokenValue;
+        if (literalLength >= RUN_MASK) {
+            tokenValue = RUN_MASK << 4;
+            op = writeLength(literalLength - RUN_MASK, dst, op);
+        } else {
+            tokenValue = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        
+        dst[op++] = (byte)offset;
+        dst[op++] = (byte)(offset >>> 8);
+        
+        int extraLength = matchLength - MIN_MATCH;
+        if (extraLength >= RUN_MASK) {
+            tokenValue |= RUN_MASK;
+            op = writeLength(extraLength - RUN_MASK, dst, op);
+        } else {
+            tokenValue |= extraLength;
+        }
+        dst[token] = (byte)tokenValue;
+        return op;
+    }
+    
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte)255;
+            length -= 255;
+        }
+        dst[op++] = (byte)length;
+        return op;
+    }
+    
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) | ((bytes[offset + 2] & 0xff) << 16) | (bytes[offset + 3] << 24);
+    }
+    
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
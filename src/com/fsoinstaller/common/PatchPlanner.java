@@ -0,0 +1,268 @@
+package com.fsoinstaller.common;
+
+import java.util.*;
+
+import com.fsoinstaller.common.InstallerNode.HashTriple;
+import com.fsoinstaller.common.InstallerNode.PatchTriple;
+
+/**
+ * Chooses how to bring a local file up to date: by applying a chain of
+ * patches, or by downloading the file again.
+ * <p>
+ * The patches of an install unit form a graph whose vertices are versions of
+ * a file, identified by file name and hash, and whose edges are the patches
+ * from each pre-patch version to its post-patch version. Versions that no
+ * patch starts from are the final versions. Starting from the version of the
+ * local file, the cheapest chain to a final version is found with Dijkstra's
+ * algorithm, where a patch costs the time to download it plus the estimated
+ * time to write its output. The chain is then compared with the time a full
+ * download would take at the same bandwidth, plus the time to write the
+ * downloaded file once, when a full download of the final version is known
+ * to be available.
+ */
+public class PatchPlanner {
+
+    /** Bandwidth assumed until a download has been measured: 1 MB/s. */
+    public static final double DEFAULT_BANDWIDTH = 1 << 20;
+
+    /** Rate at which patches are assumed to be applied: 20 MB/s of output. */
+    public static final double DEFAULT_PATCHING_RATE = 20 << 20;
+
+
+    /** Patches leaving each version, keyed by version. */
+    private final Map<String, List<PatchTriple>> patchesByVersion = new HashMap<String, List<PatchTriple>>();
+
+    /**
+     * Known sizes of patch files. Patches of the same file compare equal, so
+     * they are told apart by identity.
+     */
+    private final Map<PatchTriple, Long> patchSizes = new IdentityHashMap<PatchTriple, Long>();
+
+    /** Download bandwidth, in bytes per second. */
+    private double bandwidth = DEFAULT_BANDWIDTH;
+
+    /** Patching rate, in bytes of output per second. */
+    private double patchingRate = DEFAULT_PATCHING_RATE;
+
+
+    /**
+     * @param patches the patches to plan with
+     */
+    public PatchPlanner(Collection<PatchTriple> patches) {
+        for (PatchTriple patch : patches) {
+            String version = versionKey(patch.getPrePatch());
+            List<PatchTriple> list = patchesByVersion.get(version);
+            if (list == null) {
+                list = new ArrayList<PatchTriple>();
+                patchesByVersion.put(version, list);
+            }
+            list.add(patch);
+        }
+    }
+
+    /**
+     * Sets the size of a patch file. Patches whose size is unknown are
+     * assumed to be as large as the file they patch.
+     *
+     * @param patch the patch
+     * @param size size of the patch file in bytes
+     */
+    public void setPatchSize(PatchTriple patch, long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Patch size cannot be negative.");
+        }
+        patchSizes.put(patch, size);
+    }
+
+    /**
+     * Sets the download bandwidth. The default is {@link #DEFAULT_BANDWIDTH}.
+     *
+     * @param bytesPerSecond bandwidth in bytes per second
+     */
+    public void setBandwidth(double bytesPerSecond) {
+        if (!(bytesPerSecond > 0)) {
+            throw new IllegalArgumentException("Bandwidth must be positive.");
+        }
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Sets the rate at which patches are applied. The default is
+     * {@link #DEFAULT_PATCHING_RATE}.
+     *
+     * @param bytesPerSecond bytes of output produced per second
+     */
+    public void setPatchingRate(double bytesPerSecond) {
+        if (!(bytesPerSecond > 0)) {
+            throw new IllegalArgumentException("Patching rate must be positive.");
+        }
+        this.patchingRate = bytesPerSecond;
+    }
+
+    /**
+     * Tells whether any patch starts from the given version.
+     *
+     * @param version file name, algorithm and hash of a version
+     */
+    public boolean isPatchable(HashTriple version) {
+        return patchesByVersion.containsKey(versionKey(version));
+    }
+
+    /**
+     * Plans how to bring a file from the given version to a final version.
+     *
+     * @param current file name, algorithm and computed hash of the local file
+     * @param fileSize size of the local file, used to estimate the time to
+     *        write each version and the size of patches whose size is unknown
+     * @param fullDownloadSize number of bytes a full download of the final
+     *        version would take, or -1 if no full download is available
+     * @return the plan, or null if no chain of patches leads from the given
+     *         version to a final version
+     */
+    public Plan plan(HashTriple current, long fileSize, long fullDownloadSize) {
+        String start = versionKey(current);
+        if (!patchesByVersion.containsKey(start)) {
+            return null;
+        }
+
+        // Dijkstra's algorithm; the graphs are tiny, so the queue holds
+        // duplicates rather than supporting decrease-key
+        Map<String, Double> costs = new HashMap<String, Double>();
+        Map<String, PatchTriple> previous = new HashMap<String, PatchTriple>();
+        Set<String> settled = new HashSet<String>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        costs.put(start, 0.0);
+        queue.add(new Candidate(start, 0.0));
+
+        String target = null;
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            if (!settled.add(candidate.version)) {
+                continue;
+            }
+
+            List<PatchTriple> patches = patchesByVersion.get(candidate.version);
+            if (patches == null) {
+                // the first final version settled is the cheapest one
+                target = candidate.version;
+                break;
+            }
+            for (PatchTriple patch : patches) {
+                String next = versionKey(patch.getPostPatch());
+                double cost = candidate.cost + patchSeconds(patch, fileSize);
+                Double known = costs.get(next);
+                if (!settled.contains(next) && (known == null || cost < known)) {
+                    costs.put(next, cost);
+                    previous.put(next, patch);
+                    queue.add(new Candidate(next, cost));
+                }
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+
+        LinkedList<PatchTriple> steps = new LinkedList<PatchTriple>();
+        for (String version = target; !version.equals(start); ) {
+            PatchTriple patch = previous.get(version);
+            steps.addFirst(patch);
+            version = versionKey(patch.getPrePatch());
+        }
+        double downloadSeconds = (fullDownloadSize < 0) ? Double.POSITIVE_INFINITY
+                : fullDownloadSize / bandwidth + fileSize / patchingRate;
+        return new Plan(steps, costs.get(target), downloadSeconds);
+    }
+
+    /**
+     * Returns the estimated time to download and apply a patch, in seconds.
+     */
+    private double patchSeconds(PatchTriple patch, long fileSize) {
+        Long size = patchSizes.get(patch);
+        long patchSize = (size == null) ? fileSize : size.longValue();
+        return patchSize / bandwidth + fileSize / patchingRate;
+    }
+
+    private static String versionKey(HashTriple hash) {
+        String algorithm = hash.getAlgorithm().toUpperCase(Locale.ENGLISH);
+        if (algorithm.equals("SHA1")) {
+            algorithm = "SHA-1";
+        } else if (algorithm.equals("SHA256")) {
+            algorithm = "SHA-256";
+        }
+        return hash.getFilename().replace('\\', '/').toLowerCase(Locale.ENGLISH) + '\0' + algorithm + '\0' + hash.getHash().toLowerCase(Locale.ENGLISH);
+    }
+
+
+    /**
+     * The result of planning: either a chain of patches to apply in order,
+     * or a full download.
+     */
+    public static class Plan {
+
+        private final List<PatchTriple> steps;
+        private final double patchSeconds;
+        private final double downloadSeconds;
+
+        private Plan(List<PatchTriple> steps, double patchSeconds, double downloadSeconds) {
+            this.steps = Collections.unmodifiableList(steps);
+            this.patchSeconds = patchSeconds;
+            this.downloadSeconds = downloadSeconds;
+        }
+
+        /**
+         * Tells whether downloading the file again is expected to be faster
+         * than patching it. Ties go to patching, and so does a plan made
+         * without a full download.
+         */
+        public boolean isFullDownload() {
+            return downloadSeconds < patchSeconds;
+        }
+
+        /**
+         * Returns the cheapest chain of patches, in the order they must be
+         * applied.
+         */
+        public List<PatchTriple> getSteps() {
+            return steps;
+        }
+
+        /**
+         * Returns the estimated time to download and apply the chain, in
+         * seconds.
+         */
+        public double getPatchSeconds() {
+            return patchSeconds;
+        }
+
+        /**
+         * Returns the estimated time of the full download, in seconds, or
+         * infinity if no full download is available.
+         */
+        public double getDownloadSeconds() {
+            return downloadSeconds;
+        }
+
+        @Override
+        public String toString() {
+            if (Double.isInfinite(downloadSeconds)) {
+                return String.format("%d patch(es) in %.1f s; no full download available", steps.size(), patchSeconds);
+            }
+            return String.format("%d patch(es) in %.1f s versus full download in %.1f s", steps.size(), patchSeconds, downloadSeconds);
+        }
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+
+        final String version;
+        final double cost;
+
+        Candidate(String version, double cost) {
+            this.version = version;
+            this.cost = cost;
+        }
+
+        public int compareTo(Candidate other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+}
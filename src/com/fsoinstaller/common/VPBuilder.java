@@ -0,0 +1,541 @@
+package com.fsoinstaller.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Creates a new VP file from a directory tree or from any list of sources.
+ * <p>
+ * The layout of the new file is computed before anything is written, so the
+ * file can be preallocated and every entry's data copied straight to its
+ * final location. Sources are copied in parallel, but because each one lands
+ * at its precomputed position, the data in the file is always in the same
+ * order as the entries in the table of contents. The table of contents is
+ * written once, at the end, by {@link VPFile}.
+ * <p>
+ * If entries are to be compressed, their compressed sizes aren't known in
+ * advance, so the sources are instead compressed in parallel a few entries
+ * ahead of a single writer, which appends them to the file in order.
+ */
+public class VPBuilder {
+    
+    /** First 4 bytes of a VP file read as a 32-bit little-endian integer. */
+    private static final int VP_HEADER_ID = 0x50565056;
+    
+    /** Size of the VP file header. */
+    private static final long HEADER_SIZE = 16L;
+    
+    /** Largest offset that can be stored in a VP file. */
+    private static final long MAX_OFFSET = 0xffffffffL;
+    
+    /** Charset used to write strings. */
+    private static final Charset VP_CHARSET = Charset.forName("ISO-8859-1");
+    
+    /** Number of consecutive empty transfers tolerated before giving up on a source. */
+    private static final int MAX_PATIENCE = 16;
+    
+    /** Size of the buffers used to read sources. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /** Orders entries as {@link VPFile.VPEntry} does: by folder, then by name. */
+    private static final Comparator<PendingEntry> ENTRY_LIST_ORDER = new Comparator<PendingEntry>() {
+        public int compare(PendingEntry e1, PendingEntry e2) {
+            int c = VPFile.compareFolderPaths(e1.folderPath.toLowerCase(Locale.ENGLISH), e2.folderPath.toLowerCase(Locale.ENGLISH));
+            if (c != 0) {
+                return c;
+            }
+            return e1.name.toLowerCase(Locale.ENGLISH).compareTo(e2.name.toLowerCase(Locale.ENGLISH));
+        }
+    };
+    
+    
+    /** Entries to write, keyed by lowercase full path. */
+    private final SortedMap<String, PendingEntry> pendingEntries = new TreeMap<String, PendingEntry>();
+    
+    /** Folders to create even if they contain no entries. */
+    private final Set<String> folders = new LinkedHashSet<String>();
+    
+    /** Number of worker threads to use. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    
+    /** Whether entries are compressed. */
+    private boolean compressingEntries = false;
+    
+    
+    /**
+     * Sets the number of threads used to copy sources. The default is the
+     * number of available processors.
+     * 
+     * @param threadCount number of worker threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Sets whether entries are stored in the LZ41 format. An entry that
+     * doesn't get smaller is stored as it is. Each entry being compressed is
+     * held in memory, so memory use grows with the thread count and with the
+     * size of the largest entries.
+     * 
+     * @param compressingEntries true to compress entries
+     */
+    public void setCompressingEntries(boolean compressingEntries) {
+        this.compressingEntries = compressingEntries;
+    }
+    
+    /**
+     * Adds every file and folder under the given directory to the VP. Entry
+     * paths are relative to the directory. Empty files are skipped, since a
+     * VP cannot represent them.
+     * 
+     * @param directory directory to pack
+     * @throws IOException if the directory cannot be listed
+     * @throws IllegalArgumentException if a file or folder name can't be stored in a VP
+     */
+    public void addDirectory(File directory) throws IOException {
+        addDirectory(directory, "");
+    }
+    
+    private void addDirectory(File directory, String folderPath) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException(String.format("Unable to list the contents of %s.", directory));
+        }
+        Arrays.sort(files);
+        
+        if (folderPath.length() > 0) {
+            addFolder(folderPath);
+        }
+        for (File file : files) {
+            String path = folderPath.length() == 0 ? file.getName() : folderPath + "\\" + file.getName();
+            if (file.isDirectory()) {
+                addDirectory(file, path);
+            } else if (file.length() > 0L) {
+                addFile(path, file);
+            }
+        }
+    }
+    
+    /**
+     * Adds a folder to the VP, even if no entries are added to it.
+     * 
+     * @param folderPath path of the folder
+     * @throws IllegalArgumentException if a folder name in the path can't be stored in a VP
+     */
+    public void addFolder(String folderPath) {
+        String normalizedPath = folderPath.replace('/', '\\').replaceAll("^\\\\+|\\\\+$", "");
+        if (normalizedPath.length() > 0) {
+            checkPath(normalizedPath);
+        }
+        folders.add(normalizedPath);
+    }
+    
+    /**
+     * Adds a file to the VP. The entry's timestamp is the file's modification
+     * time.
+     * 
+     * @param entryPath path and name of the entry in the VP
+     * @param file file to copy
+     */
+    public void addFile(String entryPath, File file) {
+        addSource(entryPath, new FileSource(file));
+    }
+    
+    /**
+     * Adds an entry of another VP file to the VP, keeping its timestamp. The
+     * entry is copied as it is stored, unless entries are being compressed,
+     * in which case its decompressed data is compressed again.
+     * 
+     * @param entryPath path and name of the entry in the VP
+     * @param vpFile VP file containing the entry, which must stay open until the VP is built
+     * @param entry entry to copy
+     */
+    public void addEntry(String entryPath, VPFile vpFile, VPFile.VPEntry entry) {
+        addSource(entryPath, new VPEntrySource(vpFile, entry));
+    }
+    
+    /**
+     * Adds an entry whose data comes from the given source.
+     * 
+     * @param entryPath path and name of the entry in the VP
+     * @param source source of the entry's data
+     * @throws IllegalArgumentException if a name in the entry's path can't be stored in a VP, or if the entry was already added
+     */
+    public void addSource(String entryPath, EntrySource source) {
+        String normalizedPath = entryPath.replace('/', '\\').replaceAll("^\\\\+", "");
+        int lastBackslashPos = normalizedPath.lastIndexOf('\\');
+        String folderPath = lastBackslashPos < 0 ? "" : normalizedPath.substring(0, lastBackslashPos);
+        String name = normalizedPath.substring(lastBackslashPos + 1);
+        checkPath(normalizedPath);
+        
+        String key = normalizedPath.toLowerCase(Locale.ENGLISH);
+        if (pendingEntries.containsKey(key)) {
+            throw new IllegalArgumentException(String.format("%s has already been added.", normalizedPath));
+        }
+        pendingEntries.put(key, new PendingEntry(folderPath, name, source));
+    }
+    
+    /**
+     * Checks that every folder and file name in the given backslash-separated
+     * path can be stored in a VP: VPFile would otherwise silently crop long
+     * names, and unmappable characters would become question marks.
+     */
+    private static void checkPath(String path) {
+        CharsetEncoder encoder = VP_CHARSET.newEncoder();
+        for (String name : path.split("\\\\", -1)) {
+            // ISO-8859-1 has one byte per character.
+            if (name.length() == 0 || name.length() > 31 || !encoder.canEncode(name)) {
+                throw new IllegalArgumentException(String.format("%s is not a valid VP name in %s.", name, path));
+            }
+        }
+    }
+    
+    /**
+     * Writes the VP file. An existing file at the destination is replaced.
+     * 
+     * @param destination file to write
+     * @throws IOException if an I/O error occurs, or if the data does not fit in a VP file
+     */
+    public void build(File destination) throws IOException {
+        // Lay the data out in the order VPFile will list the entries in.
+        List<PendingEntry> entries = new ArrayList<PendingEntry>(pendingEntries.values());
+        Collections.sort(entries, ENTRY_LIST_ORDER);
+        long entryListOffset = compressingEntries ? -1L : layOut(entries);
+        
+        RandomAccessFile file = new RandomAccessFile(destination, "rw");
+        try {
+            file.setLength(0L);
+            FileChannel channel = file.getChannel();
+            if (compressingEntries) {
+                entryListOffset = compressSources(channel, entries);
+            } else {
+                // Preallocate the file.
+                file.setLength(entryListOffset);
+                copySources(channel, entries);
+            }
+            
+            // Write a header with an empty entry list.
+            ByteBuffer header = ByteBuffer.allocate((int)HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(VP_HEADER_ID).putInt(2).putInt((int)entryListOffset).putInt(0);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } finally {
+            file.close();
+        }
+        
+        // Let VPFile write the entry list, so that it is in the same format
+        // as any other VP the installer modifies.
+        VPFile vpFile;
+        try {
+            vpFile = new VPFile(destination, "rw");
+        } catch (VPFormatException vpfe) {
+            IOException ioe = new IOException("Unable to reopen the new VP file.");
+            ioe.initCause(vpfe);
+            throw ioe;
+        }
+        try {
+            for (String folder : folders) {
+                vpFile.addFolderRecord(folder);
+            }
+            for (PendingEntry entry : entries) {
+                vpFile.addEntryRecord(entry.folderPath, entry.name, entry.offset, entry.size, entry.source.getTimestamp());
+            }
+        } finally {
+            vpFile.close();
+        }
+    }
+    
+    /**
+     * Lays the entries out in the order they are given in and returns the
+     * offset of the entry list.
+     */
+    private static long layOut(List<PendingEntry> entries) throws IOException {
+        long position = HEADER_SIZE;
+        for (PendingEntry entry : entries) {
+            entry.size = entry.source.getSize();
+            if (entry.size <= 0L) {
+                throw new IOException(String.format("%s is empty; VP files cannot contain empty entries.", entry));
+            }
+            entry.offset = position;
+            position += entry.size;
+        }
+        if (position > MAX_OFFSET) {
+            throw new IOException("The entries are too large to fit in a VP file.");
+        }
+        return position;
+    }
+    
+    private void copySources(final FileChannel channel, List<PendingEntry> entries) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, entries.size())));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(entries.size());
+            for (final PendingEntry entry : entries) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        entry.source.transferTo(channel, entry.offset, entry.size);
+                        return null;
+                    }
+                }));
+            }
+            
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    executor.shutdownNow();
+                    if (ee.getCause() instanceof IOException) {
+                        throw (IOException)ee.getCause();
+                    }
+                    throw (IOException)new IOException("Unable to build VP file.").initCause(ee.getCause());
+                } catch (InterruptedException ie) {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Thread was interrupted while building VP file.");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Compresses the sources in parallel and writes them one after another in
+     * the order of the entries, and returns the offset of the entry list.
+     */
+    private long compressSources(FileChannel channel, List<PendingEntry> entries) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, entries.size())));
+        try {
+            // Keep two entries per thread in flight, so that the workers stay
+            // busy while the writer waits for the next entry in order.
+            int window = threadCount * 2;
+            LinkedList<Future<byte[]>> futures = new LinkedList<Future<byte[]>>();
+            int submitted = 0;
+            long position = HEADER_SIZE;
+            for (PendingEntry entry : entries) {
+                while (submitted < entries.size() && futures.size() < window) {
+                    final PendingEntry next = entries.get(submitted++);
+                    futures.add(executor.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return compressSource(next);
+                        }
+                    }));
+                }
+                
+                byte[] data;
+                try {
+                    data = futures.removeFirst().get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof IOException) {
+                        throw (IOException)ee.getCause();
+                    }
+                    throw (IOException)new IOException("Unable to build VP file.").initCause(ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Thread was interrupted while building VP file.");
+                }
+                
+                if (position + data.length > MAX_OFFSET) {
+                    throw new IOException("The entries are too large to fit in a VP file.");
+                }
+                entry.offset = position;
+                entry.size = data.length;
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                position += data.length;
+            }
+            return position;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Reads a source and returns its compressed data, or its original data if
+     * compressing it doesn't make it smaller.
+     */
+    private static byte[] compressSource(PendingEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = entry.source.openStream();
+        try {
+            byte[] bytes = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(bytes)) >= 0) {
+                out.write(bytes, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+        if (out.size() == 0) {
+            throw new IOException(String.format("%s is empty; VP files cannot contain empty entries.", entry));
+        }
+        
+        byte[] data = out.toByteArray();
+        byte[] compressed = LZ41.compress(data, 0, data.length, LZ41.DEFAULT_BLOCK_SIZE);
+        return compressed.length < data.length ? compressed : data;
+    }
+    
+    
+    /**
+     * Supplies the data of one entry. Sources may be asked to write their data
+     * from any thread, and several sources may write to the same channel at
+     * once, so a source must only use positional writes.
+     */
+    public interface EntrySource {
+        
+        /**
+         * Returns the number of bytes this source will write.
+         */
+        long getSize() throws IOException;
+        
+        /**
+         * Returns the 32-bit Unix time to store as the entry's timestamp.
+         */
+        int getTimestamp();
+        
+        /**
+         * Writes exactly <code>size</code> bytes to the given channel,
+         * starting at the given position, without moving the channel's
+         * position.
+         */
+        void transferTo(FileChannel destination, long position, long size) throws IOException;
+        
+        /**
+         * Opens a stream over this source's data. This is used instead of
+         * {@link #transferTo} when entries are compressed, and may be called
+         * from any thread.
+         */
+        InputStream openStream() throws IOException;
+    }
+    
+    /**
+     * An entry source that copies a file with
+     * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+     */
+    private static class FileSource implements EntrySource {
+        
+        private final File file;
+        
+        private FileSource(File file) {
+            this.file = file;
+        }
+        
+        public long getSize() {
+            return file.length();
+        }
+        
+        public int getTimestamp() {
+            long unixTime = file.lastModified() / 1000L;
+            return (int)Math.min(Math.max(Integer.MIN_VALUE, unixTime), Integer.MAX_VALUE);
+        }
+        
+        public void transferTo(FileChannel destination, long position, long size) throws IOException {
+            FileInputStream sourceStream = new FileInputStream(file);
+            try {
+                FileChannel sourceChannel = sourceStream.getChannel();
+                long bytesRemaining = size;
+                int patience = MAX_PATIENCE;
+                while (bytesRemaining > 0L) {
+                    long bytesTransferred = destination.transferFrom(sourceChannel, position, bytesRemaining);
+                    if (bytesTransferred <= 0L) {
+                        if (--patience <= 0) {
+                            throw new IOException(String.format("Unable to fully copy %s.", file));
+                        }
+                        continue;
+                    }
+                    patience = MAX_PATIENCE;
+                    position += bytesTransferred;
+                    bytesRemaining -= bytesTransferred;
+                }
+            } finally {
+                sourceStream.close();
+            }
+        }
+        
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(file);
+        }
+    }
+    
+    /**
+     * An entry source that copies an entry of another VP file with positional
+     * transfers.
+     */
+    private static class VPEntrySource implements EntrySource {
+        
+        private final VPFile vpFile;
+        private final VPFile.VPEntry entry;
+        
+        private VPEntrySource(VPFile vpFile, VPFile.VPEntry entry) {
+            this.vpFile = vpFile;
+            this.entry = entry;
+        }
+        
+        public long getSize() {
+            return entry.getSize();
+        }
+        
+        public int getTimestamp() {
+            return entry.getTimestamp();
+        }
+        
+        public void transferTo(FileChannel destination, long position, long size) throws IOException {
+            // The destination is shared with other sources, so copy through a
+            // buffer with positional writes rather than with transferTo.
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(BUFFER_SIZE, size));
+            long copied = 0L;
+            while (copied < size) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), size - copied));
+                if (vpFile.read(entry, copied, buffer) < 0) {
+                    throw new IOException(String.format("Unable to fully copy %s.", entry));
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    destination.write(buffer, position + copied + buffer.position());
+                }
+                copied += buffer.limit();
+            }
+        }
+        
+        public InputStream openStream() throws IOException {
+            return vpFile.openEntry(entry);
+        }
+    }
+    
+    /**
+     * An entry that has been added but not yet written.
+     */
+    private static class PendingEntry {
+        
+        private final String folderPath;
+        private final String name;
+        private final EntrySource source;
+        private long offset;
+        private long size;
+        
+        private PendingEntry(String folderPath, String name, EntrySource source) {
+            this.folderPath = folderPath;
+            this.name = name;
+            this.source = source;
+        }
+        
+        @Override
+        public String toString() {
+            return folderPath.length() == 0 ? name : folderPath + "\\" + name;
+        }
+    }
+}
@@ -1,3 +1,4 @@
+package com.fsoinstaller.common;
 
 import java.io.IOException;
 
@@ -0,0 +1,402 @@
+package com.fsoinstaller.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only, compact view of the entry list of a VP file, for VPs that are
+ * too large to comfortably hold as {@link VPFile.VPEntry} objects.
+ * <p>
+ * Offsets, sizes and timestamps are kept in primitive arrays, and the full
+ * paths of all entries are kept in a single ISO-8859-1 byte arena, so an
+ * entry costs about 30 bytes plus the length of its path instead of several
+ * objects. Paths are looked up through an open-addressing hash table of
+ * case-folded hashes, and entries are visited through a reusable
+ * {@link Cursor} whose path is a {@link CharSequence} view of the arena, so
+ * that iterating and matching don't allocate anything per entry.
+ * <p>
+ * Entries are kept in the order of the VP's entry list. If several entries
+ * share a path, lookups return the last one.
+ */
+public class VPEntryTable {
+    
+    /** First 4 bytes of a VP file read as a 32-bit little-endian integer. */
+    private static final int VP_HEADER_ID = 0x50565056;
+    
+    /** Regular expression flags to use when matching entry names. */
+    private static final int REGEX_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.UNICODE_CASE;
+    
+    /** Maps each ISO-8859-1 byte to its lowercase form. */
+    private static final byte[] FOLD = new byte[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            char lower = Character.toLowerCase((char)i);
+            FOLD[i] = (byte)(lower < 256 ? lower : i);
+        }
+    }
+    
+    
+    private final int count;
+    private final long[] offsets;
+    private final long[] sizes;
+    private final int[] timestamps;
+    
+    /** Start of each entry's full path in the arena; the path ends where the next one starts. */
+    private final int[] pathStarts;
+    
+    /** Full paths of all entries, separated by backslashes, in ISO-8859-1. */
+    private final byte[] arena;
+    
+    /** Case-folded hash of each entry's full path. */
+    private final int[] hashes;
+    
+    /** Open-addressing hash table of entry indexes plus one; 0 marks an empty slot. */
+    private final int[] slots;
+    
+    
+    private VPEntryTable(int count, long[] offsets, long[] sizes, int[] timestamps, int[] pathStarts, byte[] arena) {
+        this.count = count;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.timestamps = timestamps;
+        this.pathStarts = pathStarts;
+        this.arena = arena;
+        
+        hashes = new int[count];
+        slots = new int[Integer.highestOneBit(Math.max(count, 1) * 2) * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hash(arena, pathStarts[i], pathStarts[i + 1]);
+            int slot = hashes[i] & mask;
+            while (slots[slot] != 0 && !pathEquals(slots[slot] - 1, i)) {
+                slot = (slot + 1) & mask;
+            }
+            // Later entries replace earlier ones with the same path.
+            slots[slot] = i + 1;
+        }
+    }
+    
+    /**
+     * Reads the entry list of the given VP file into a new table.
+     *
+     * @param file the VP file
+     * @return the entry table
+     * @throws VPFormatException if the file is not a valid VP file
+     * @throws IOException if an I/O error occurs
+     */
+    public static VPEntryTable read(File file) throws VPFormatException, IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long fileLength = channel.size();
+            if (fileLength < 16L) {
+                throw new VPFormatException(String.format("%s is not at least 16 bytes in size.", file.getName()));
+            }
+            ByteBuffer header = readBuffer(channel, 0L, 16);
+            if (header.getInt() != VP_HEADER_ID) {
+                throw new VPFormatException(String.format("%s is not a valid VP file.", file.getName()));
+            }
+            if (header.getInt() != 2) {
+                throw new VPFormatException(String.format("Format of %s is not 2.", file.getName()));
+            }
+            long entryListOffset = header.getInt() & 0xffffffffL;
+            int recordCount = header.getInt();
+            if (recordCount < 0 || entryListOffset + recordCount * 44L > fileLength
+                    || recordCount * 44L > Integer.MAX_VALUE) {
+                throw new VPFormatException(String.format("%s is corrupted or invalid.", file.getName()));
+            }
+            
+            ByteBuffer records = readBuffer(channel, entryListOffset, recordCount * 44);
+            byte[] recordBytes = records.array();
+            
+            // The entries are a subset of the records, so size the arrays
+            // for all of the records and trim them at the end.
+            long[] offsets = new long[recordCount];
+            long[] sizes = new long[recordCount];
+            int[] timestamps = new int[recordCount];
+            int[] pathStarts = new int[recordCount + 1];
+            byte[] arena = new byte[Math.max(16, recordCount * 24)];
+            int arenaLength = 0;
+            
+            // The current folder path, with a trailing backslash unless it's
+            // the root, and the length of the path at each depth.
+            byte[] folderPath = new byte[256];
+            int folderLength = 0;
+            int[] folderLengths = new int[16];
+            int depth = 0;
+            
+            int count = 0;
+            for (int i = 0; i < recordCount; i++) {
+                int recordOffset = i * 44;
+                long offset = records.getInt(recordOffset) & 0xffffffffL;
+                long size = records.getInt(recordOffset + 4) & 0xffffffffL;
+                int nameStart = recordOffset + 8;
+                int nameLength = 0;
+                while (nameLength < 31 && recordBytes[nameStart + nameLength] != 0) {
+                    nameLength++;
+                }
+                
+                if (size == 0L) {
+                    if (nameLength == 2 && recordBytes[nameStart] == '.' && recordBytes[nameStart + 1] == '.') {
+                        // backdir
+                        if (depth > 0) {
+                            folderLength = folderLengths[--depth];
+                        }
+                    } else {
+                        if (depth == folderLengths.length) {
+                            folderLengths = Arrays.copyOf(folderLengths, depth * 2);
+                        }
+                        folderLengths[depth++] = folderLength;
+                        if (folderLength + nameLength + 1 > folderPath.length) {
+                            folderPath = Arrays.copyOf(folderPath, (folderLength + nameLength + 1) * 2);
+                        }
+                        System.arraycopy(recordBytes, nameStart, folderPath, folderLength, nameLength);
+                        folderLength += nameLength;
+                        folderPath[folderLength++] = '\\';
+                    }
+                    continue;
+                }
+                
+                if (offset + size > fileLength) {
+                    throw new VPFormatException(String.format("%s is corrupted or invalid.", file.getName()));
+                }
+                if (arenaLength + folderLength + nameLength > arena.length) {
+                    arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + folderLength + nameLength));
+                }
+                System.arraycopy(folderPath, 0, arena, arenaLength, folderLength);
+                arenaLength += folderLength;
+                System.arraycopy(recordBytes, nameStart, arena, arenaLength, nameLength);
+                arenaLength += nameLength;
+                
+                offsets[count] = offset;
+                sizes[count] = size;
+                timestamps[count] = records.getInt(recordOffset + 40);
+                count++;
+                pathStarts[count] = arenaLength;
+            }
+            
+            return new VPEntryTable(count, Arrays.copyOf(offsets, count), Arrays.copyOf(sizes, count),
+                    Arrays.copyOf(timestamps, count), Arrays.copyOf(pathStarts, count + 1), Arrays.copyOf(arena, arenaLength));
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Returns the number of entries in this table.
+     */
+    public int size() {
+        return count;
+    }
+    
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+    
+    public long getSize(int index) {
+        return sizes[index];
+    }
+    
+    public int getTimestamp(int index) {
+        return timestamps[index];
+    }
+    
+    /**
+     * Returns the full path of the given entry as a new string. Use a
+     * {@link Cursor} to look at paths without allocating.
+     */
+    public String getPath(int index) {
+        return decode(pathStarts[index], pathStarts[index + 1]);
+    }
+    
+    /**
+     * Returns the index of the entry with the given path, ignoring case, or -1
+     * if there is no such entry.
+     *
+     * @param path the name and path of the entry; slashes and backslashes are
+     *        treated alike
+     * @return the index of the entry
+     */
+    public int indexOf(String path) {
+        int length = path.length();
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = path.charAt(i);
+            if (ch > 0xff) {
+                return -1;
+            }
+            hash = 31 * hash + FOLD[ch == '/' ? '\\' : ch];
+        }
+        
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (hashes[index] == hash && pathEquals(index, path)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns a cursor positioned before the first entry.
+     */
+    public Cursor cursor() {
+        return new Cursor(null, null);
+    }
+    
+    /**
+     * Returns a cursor that only stops at entries whose full paths match
+     * <code>regex</code> but not <code>regexExclude</code>. The same two
+     * matchers are reused for every entry.
+     *
+     * @param regex regular expression to match
+     * @param regexExclude regular expression not to match
+     * @return a cursor positioned before the first matching entry
+     */
+    public Cursor cursor(String regex, String regexExclude) {
+        // Normalize all slashes to backslashes.
+        Pattern pattern = Pattern.compile(regex.replace("/", "\\\\"), REGEX_FLAGS);
+        Pattern excludePattern = Pattern.compile(regexExclude.replace("/", "\\\\"), REGEX_FLAGS);
+        return new Cursor(pattern.matcher(""), excludePattern.matcher(""));
+    }
+    
+    private String decode(int start, int end) {
+        try {
+            return new String(arena, start, end - start, "ISO-8859-1");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+    
+    private boolean pathEquals(int index1, int index2) {
+        int start1 = pathStarts[index1];
+        int start2 = pathStarts[index2];
+        int length = pathStarts[index1 + 1] - start1;
+        if (pathStarts[index2 + 1] - start2 != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (FOLD[arena[start1 + i] & 0xff] != FOLD[arena[start2 + i] & 0xff]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean pathEquals(int index, String path) {
+        int start = pathStarts[index];
+        int length = pathStarts[index + 1] - start;
+        if (path.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char ch = path.charAt(i);
+            if (FOLD[arena[start + i] & 0xff] != FOLD[ch == '/' ? '\\' : ch]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + FOLD[bytes[i] & 0xff];
+        }
+        return hash;
+    }
+    
+    private static ByteBuffer readBuffer(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    
+    /**
+     * A flyweight that moves through the entries of the table. The cursor
+     * itself is the {@link CharSequence} of the current entry's full path, so
+     * it is only valid until the next call to {@link #next()}.
+     */
+    public class Cursor implements CharSequence {
+        
+        private final Matcher matcher;
+        private final Matcher excludeMatcher;
+        private int index = -1;
+        private int start;
+        private int end;
+        
+        private Cursor(Matcher matcher, Matcher excludeMatcher) {
+            this.matcher = matcher;
+            this.excludeMatcher = excludeMatcher;
+        }
+        
+        /**
+         * Moves to the next entry.
+         *
+         * @return false if there are no more entries
+         */
+        public boolean next() {
+            while (++index < count) {
+                start = pathStarts[index];
+                end = pathStarts[index + 1];
+                if (matcher == null
+                        || (matcher.reset(this).matches() && !excludeMatcher.reset(this).matches())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        public int getIndex() {
+            return index;
+        }
+        
+        public long getOffset() {
+            return offsets[index];
+        }
+        
+        public long getSize() {
+            return sizes[index];
+        }
+        
+        public int getTimestamp() {
+            return timestamps[index];
+        }
+        
+        /**
+         * Returns the full path of the current entry as a new string.
+         */
+        public String getPath() {
+            return decode(start, end);
+        }
+        
+        public int length() {
+            return end - start;
+        }
+        
+        public char charAt(int i) {
+            return (char)(arena[start + i] & 0xff);
+        }
+        
+        public CharSequence subSequence(int from, int to) {
+            return decode(start + from, start + to);
+        }
+        
+        @Override
+        public String toString() {
+            return getPath();
+        }
+    }
+}
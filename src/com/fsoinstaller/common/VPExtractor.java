@@ -0,0 +1,375 @@
+package com.fsoinstaller.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts the entries of a VP file using several threads at once. The
+ * entries are divided among the workers by size so that every worker copies
+ * roughly the same number of bytes, and each entry is copied with positional
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * calls, so the workers never share a file pointer. Compressed entries are
+ * instead read and decompressed one block at a time, also with positional
+ * reads.
+ * <p>
+ * Extraction can be cancelled from any thread with {@link #cancel()}.
+ * Cancellation is cooperative rather than done by interrupting the workers,
+ * because an interrupt would close the VP file's channel.
+ */
+public class VPExtractor {
+    
+    /** Maximum number of bytes copied by a single transfer, so that progress and cancellation stay responsive. */
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024L * 1024L;
+    
+    /** Number of consecutive empty transfers tolerated before giving up on an entry. */
+    private static final int MAX_PATIENCE = 16;
+    
+    
+    /** The VP file to extract from. */
+    private final VPFile vpFile;
+    
+    /** Folder to extract to. */
+    private final File destFolder;
+    
+    /** Number of worker threads to use. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    
+    /** Listeners to notify of progress. */
+    private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<ProgressListener>();
+    
+    /** Total number of bytes of the current extraction. */
+    private volatile long totalBytes = 0L;
+    
+    /** Number of bytes extracted so far. */
+    private final AtomicLong bytesExtracted = new AtomicLong();
+    
+    /** Set when the extraction should stop as soon as possible. */
+    private volatile boolean cancelled = false;
+    
+    
+    public VPExtractor(VPFile vpFile, File destFolder) {
+        this.vpFile = vpFile;
+        this.destFolder = destFolder;
+    }
+    
+    /**
+     * Sets the number of threads used for extraction. The default is the
+     * number of available processors.
+     * 
+     * @param threadCount number of worker threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Extracts all entries and folders of the VP file. All folders in the VP,
+     * even those that are empty, will be created.
+     * 
+     * @throws InterruptedIOException if the extraction was cancelled
+     * @throws IOException if an I/O error occurs
+     */
+    public void extractAll() throws IOException {
+        extract(vpFile.getFolderSet(), vpFile.getEntryList());
+    }
+    
+    /**
+     * Extracts all entries whose full paths and names match
+     * <code>regex</code>, but not <code>regexExclude</code>. The folders of
+     * the matching entries will be created.
+     * 
+     * @param regex regular expression to match
+     * @param regexExclude regular expression not to match
+     * @throws InterruptedIOException if the extraction was cancelled
+     * @throws IOException if an I/O error occurs
+     */
+    public void extract(String regex, String regexExclude) throws IOException {
+        List<VPFile.VPEntry> entries = vpFile.getEntryList(regex, regexExclude);
+        Set<VPFile.VPFolder> folders = new HashSet<VPFile.VPFolder>();
+        for (VPFile.VPEntry entry : entries) {
+            folders.add(entry.getFolder());
+        }
+        extract(folders, entries);
+    }
+    
+    /**
+     * Asks a running extraction to stop. The entries that were being written
+     * when the extraction stopped are deleted.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    /**
+     * Returns the number of bytes extracted so far by the current or last
+     * extraction.
+     */
+    public long getBytesExtracted() {
+        return bytesExtracted.get();
+    }
+    
+    /**
+     * Returns the total number of bytes of the current or last extraction.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+    
+    public void addProgressListener(ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+    
+    public void removeProgressListener(ProgressListener listener) {
+        progressListeners.remove(listener);
+    }
+    
+    private void extract(Collection<VPFile.VPFolder> folders, List<VPFile.VPEntry> entries) throws IOException {
+        cancelled = false;
+        bytesExtracted.set(0L);
+        long total = 0L;
+        for (VPFile.VPEntry entry : entries) {
+            total += entry.getSize();
+        }
+        totalBytes = total;
+        
+        // Create the whole folder tree up front so that the workers never
+        // have to check for or create directories.
+        for (VPFile.VPFolder vpFolder : folders) {
+            // Replace backslashes with the file system's separator.
+            File folder = new File(destFolder, vpFolder.toString().replace('\\', File.separatorChar));
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException(String.format("Unable to create folder %s.", folder));
+            }
+        }
+        
+        final FileChannel vpChannel = vpFile.getChannel();
+        List<List<VPFile.VPEntry>> partitions = partition(entries, Math.min(threadCount, Math.max(1, entries.size())));
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions.size());
+            for (final List<VPFile.VPEntry> partition : partitions) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (VPFile.VPEntry entry : partition) {
+                            if (cancelled) {
+                                break;
+                            }
+                            extractEntry(vpChannel, entry);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            IOException exception = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    // Stop the other workers; the first failure is reported.
+                    cancelled = true;
+                    if (exception == null) {
+                        exception = ee.getCause() instanceof IOException
+                                ? (IOException)ee.getCause()
+                                : (IOException)new IOException("Extraction failed.").initCause(ee.getCause());
+                    }
+                } catch (InterruptedException ie) {
+                    cancelled = true;
+                    Thread.currentThread().interrupt();
+                    if (exception == null) {
+                        exception = new InterruptedIOException("Thread was interrupted during extraction.");
+                    }
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            if (cancelled) {
+                throw new InterruptedIOException("Extraction was cancelled.");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Copies a single entry to its destination file. If the extraction is
+     * cancelled partway through the entry, the incomplete file is deleted.
+     */
+    private void extractEntry(FileChannel vpChannel, VPFile.VPEntry entry) throws IOException {
+        // Replace backslashes with the file system's separator.
+        File destFile = new File(destFolder, entry.getFullPath().replace('\\', File.separatorChar));
+        
+        FileOutputStream destStream = new FileOutputStream(destFile);
+        boolean complete = false;
+        try {
+            FileChannel destChannel = destStream.getChannel();
+            LZ41.Layout layout = LZ41.readLayout(vpFile, entry);
+            if (layout != null) {
+                complete = decompressEntry(entry, layout, destChannel);
+                return;
+            }
+            
+            long currentPosition = entry.getOffset();
+            long bytesRemaining = entry.getSize();
+            // transferTo isn't guaranteed to transfer all bytes on the first
+            // attempt, so keep trying until the entire entry is extracted.
+            int patience = MAX_PATIENCE;
+            while (bytesRemaining > 0L) {
+                if (cancelled) {
+                    return;
+                }
+                long bytesTransferred = vpChannel.transferTo(currentPosition, Math.min(bytesRemaining, TRANSFER_CHUNK_SIZE), destChannel);
+                if (bytesTransferred <= 0L) {
+                    if (--patience <= 0) {
+                        throw new IOException(String.format("Unable to fully extract %s.", entry));
+                    }
+                    continue;
+                }
+                patience = MAX_PATIENCE;
+                currentPosition += bytesTransferred;
+                bytesRemaining -= bytesTransferred;
+                fireProgress(bytesExtracted.addAndGet(bytesTransferred));
+            }
+            complete = true;
+        } finally {
+            destStream.close();
+            if (!complete) {
+                destFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Decompresses a compressed entry to its destination file, and returns
+     * false if the extraction was cancelled before the whole entry was
+     * written. Progress is counted in stored bytes, like that of other
+     * entries.
+     */
+    private boolean decompressEntry(VPFile.VPEntry entry, LZ41.Layout layout, FileChannel destChannel) throws IOException {
+        byte[] buffer = new byte[layout.getMaxCompressedLength()];
+        byte[] block = new byte[layout.getBlockLength(0)];
+        long bytesCounted = 0L;
+        for (int i = 0; i < layout.getBlockCount(); i++) {
+            if (cancelled) {
+                return false;
+            }
+            ByteBuffer data = ByteBuffer.wrap(block, 0, layout.readBlock(vpFile, entry, i, buffer, block));
+            while (data.hasRemaining()) {
+                destChannel.write(data);
+            }
+            int compressedLength = layout.getCompressedLength(i);
+            bytesCounted += compressedLength;
+            fireProgress(bytesExtracted.addAndGet(compressedLength));
+        }
+        // Count the header and block table as well.
+        fireProgress(bytesExtracted.addAndGet(entry.getSize() - bytesCounted));
+        return true;
+    }
+    
+    /**
+     * Divides the entries into the given number of lists with roughly equal
+     * total sizes, by giving each entry, largest first, to the list with the
+     * smallest total so far.
+     */
+    static List<List<VPFile.VPEntry>> partition(List<VPFile.VPEntry> entries, int count) {
+        long[] sizes = new long[entries.size()];
+        long[] offsets = new long[entries.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = entries.get(i).getSize();
+            offsets[i] = entries.get(i).getOffset();
+        }
+        
+        List<List<VPFile.VPEntry>> partitions = new ArrayList<List<VPFile.VPEntry>>(count);
+        for (int[] indexes : partition(sizes, offsets, count)) {
+            List<VPFile.VPEntry> partition = new ArrayList<VPFile.VPEntry>(indexes.length);
+            for (int index : indexes) {
+                partition.add(entries.get(index));
+            }
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+    
+    /**
+     * Divides the indexes of entries with the given sizes and offsets in the
+     * same way as {@link #partition(List, int)}, for callers that don't hold
+     * {@link VPFile.VPEntry} objects, such as those using a
+     * {@link VPEntryTable}.
+     */
+    static List<int[]> partition(final long[] sizes, final long[] offsets, int count) {
+        Integer[] sortedIndexes = new Integer[sizes.length];
+        for (int i = 0; i < sortedIndexes.length; i++) {
+            sortedIndexes[i] = i;
+        }
+        Arrays.sort(sortedIndexes, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                long s1 = sizes[i1];
+                long s2 = sizes[i2];
+                return s1 < s2 ? 1 : (s1 > s2 ? -1 : 0);
+            }
+        });
+        
+        final long[] partitionSizes = new long[count];
+        PriorityQueue<Integer> smallestFirst = new PriorityQueue<Integer>(count, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                long s1 = partitionSizes[i1];
+                long s2 = partitionSizes[i2];
+                return s1 < s2 ? -1 : (s1 > s2 ? 1 : 0);
+            }
+        });
+        List<List<Integer>> partitions = new ArrayList<List<Integer>>(count);
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<Integer>());
+            smallestFirst.add(i);
+        }
+        
+        for (Integer index : sortedIndexes) {
+            int smallest = smallestFirst.poll();
+            partitions.get(smallest).add(index);
+            partitionSizes[smallest] += sizes[index];
+            smallestFirst.add(smallest);
+        }
+        
+        // Copy each partition in file order so that reads stay mostly sequential.
+        List<int[]> indexPartitions = new ArrayList<int[]>(count);
+        for (List<Integer> partition : partitions) {
+            Collections.sort(partition, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    long o1 = offsets[i1];
+                    long o2 = offsets[i2];
+                    return o1 < o2 ? -1 : (o1 > o2 ? 1 : 0);
+                }
+            });
+            int[] indexes = new int[partition.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = partition.get(i);
+            }
+            indexPartitions.add(indexes);
+        }
+        return indexPartitions;
+    }
+    
+    private void fireProgress(long extracted) {
+        for (ProgressListener listener : progressListeners) {
+            listener.progressMade(extracted, totalBytes);
+        }
+    }
+    
+    
+    /**
+     * Receives the aggregate progress of an extraction. Listeners are called
+     * from the worker threads.
+     */
+    public interface ProgressListener {
+        
+        void progressMade(long bytesExtracted, long totalBytes);
+    }
+}
@@ -1,8 +1,11 @@
+package com.fsoinstaller.common;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -27,6 +30,12 @@ public class VPFile implements Closeable {
     
     private static final int MAX_PATIENCE = 16;
     
+    /** Size of the buffer used to move entry data during compaction. */
+    private static final int MOVE_BUFFER_SIZE = 1 << 20;
+    
+    /** Fraction of dead space above which {@link #compact()} rewrites the file. */
+    public static final double DEFAULT_COMPACT_THRESHOLD = 0.25;
+    
     /** Empty string array that's used instead of <code>new String[0]</code>. */
     private static final String[] EMPTY_STRING_ARRAY = {};
     
@@ -43,11 +52,17 @@ public class VPFile implements Closeable {
     /** A list of all entries in this VP file. */
     private final List<VPEntry> entryList;
     
+    /** Index of the entries in this VP file, keyed by lowercase full path. */
+    private final Map<String, VPEntry> entryMap;
+    
+    /** Index of the entries in each folder of this VP file, each list kept sorted. */
+    private final Map<VPFolder, List<VPEntry>> folderMap;
+    
     /** If true, this VP file is not open with write permissions. */
     private final boolean readOnly;
     
-    /** The InputStream that's open on this VP file. */
-    private VPEntryInputStream activeInputStream = null;
+    /** The InputStreams that are open on this VP file. */
+    private final Set<VPEntryInputStream> activeInputStreams = new HashSet<VPEntryInputStream>();
     
     /** The OutputStream that's open on this VP file. */
     private VPEntryOutputStream activeOutputStream = null;
@@ -58,8 +73,45 @@ public class VPFile implements Closeable {
     /** Tells whether this VP file has been modified in some way. */
     private boolean modified = false;
     
+    /**
+     * Where the next appended payload will be written, or -1 if nothing has
+     * been appended since this VP file was opened or last compacted.
+     */
+    private long appendOffset = -1L;
+    
+    /** Whether entries that are added or replaced are compressed. */
+    private boolean compressingEntries = false;
+    
     
     
+    /**
+     * Creates a new, empty VP file, replacing any file at the given path, and
+     * opens it for reading and writing.
+     * 
+     * @param filePath path of the new VP file
+     * @return the new VP file
+     * @throws IOException if an I/O error occurs
+     */
+    public static VPFile create(File filePath) throws IOException {
+        RandomAccessFile newFile = new RandomAccessFile(filePath, "rw");
+        try {
+            newFile.setLength(0L);
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(VP_HEADER_ID).putInt(2).putInt(16).putInt(0);
+            newFile.write(header.array());
+        } finally {
+            newFile.close();
+        }
+        
+        try {
+            return new VPFile(filePath, "rw");
+        } catch (VPFormatException vpfe) {
+            IOException ioe = new IOException(String.format("Unable to open the new VP file %s.", filePath.getName()));
+            ioe.initCause(vpfe);
+            throw ioe;
+        }
+    }
+    
     public VPFile(File filePath, String mode) throws VPFormatException, FileNotFoundException, IOException {
         readOnly = mode.equals("r");
         file = new RandomAccessFile(filePath, mode);
@@ -68,55 +120,92 @@ public class VPFile implements Closeable {
         if (file.length() < 16L) {
             throw new VPFormatException(String.format("%s is not at least 16 bytes in size.", filePath.getName()));
         }
-        if (readInt() != VP_HEADER_ID) {
+        ByteBuffer header = readBuffer(0L, 16);
+        if (header.getInt() != VP_HEADER_ID) {
             throw new VPFormatException(String.format("%s is not a valid VP file.", filePath.getName()));
         }
-        if (readInt() != 2) {
+        if (header.getInt() != 2) {
             throw new VPFormatException(String.format("Format of %s is not 2.", filePath.getName()));
         }
         
-        entryListOffset = readUnsignedInt();
-        int entryCount = readInt();
+        entryListOffset = header.getInt() & 0xffffffffL;
+        int entryCount = header.getInt();
         // Make sure that the VP file contains the full entry list.
-        if (entryListOffset + entryCount * 44L > file.length()) {
+        if (entryCount < 0 || entryListOffset + entryCount * 44L > file.length()
+                || entryCount * 44L > Integer.MAX_VALUE) {
             throw new VPFormatException(String.format("%s is corrupted or invalid.", filePath.getName()));
         }
         
-        file.seek(entryListOffset);
+        // Read the whole entry list at once rather than field by field, and
+        // decode the records straight out of the buffer's array.
+        ByteBuffer entryBuffer = readBuffer(entryListOffset, entryCount * 44);
+        byte[] entryBytes = entryBuffer.array();
+        
         // The folders should be sorted, so use a TreeSet.
         folderSet = new TreeSet<VPFolder>();
-        entryList = new ArrayList<VPEntry>(4096);
+        entryList = new ArrayList<VPEntry>(entryCount);
         VPFolder currentFolder = new VPFolder();
         // Add an empty folder to folderSet so that entries can exist in
         // the VP's root without using null as their folder.
         folderSet.add(currentFolder);
+        boolean entriesSorted = true;
+        VPEntry previousEntry = null;
         // Time to read in the entries.
-        for (long i = 0L; i < entryCount; i++) {
-            long offset = readUnsignedInt();
-            long size = readUnsignedInt();
-            String name = readString();
-            int timestamp = readInt();
+        for (int i = 0; i < entryCount; i++) {
+            int recordOffset = i * 44;
+            long offset = entryBuffer.getInt(recordOffset) & 0xffffffffL;
+            long size = entryBuffer.getInt(recordOffset + 4) & 0xffffffffL;
+            int timestamp = entryBuffer.getInt(recordOffset + 40);
             
             if (size == 0) {
-                if (name.equals("..")) {
+                if (isBackdir(entryBytes, recordOffset + 8)) {
                     // backdir
                     currentFolder = currentFolder.getParent();
                 } else {
-                    currentFolder = new VPFolder(currentFolder, name);
+                    currentFolder = new VPFolder(currentFolder, decodeString(entryBytes, recordOffset + 8));
                     folderSet.add(currentFolder);
                 }
             } else {
-                VPEntry entry = new VPEntry(offset, size, currentFolder, name, timestamp);
+                VPEntry entry = new VPEntry(offset, size, currentFolder, decodeString(entryBytes, recordOffset + 8), timestamp);
                 // Make sure that all entries actually exist within this VP.
                 if (entry.offset + entry.size > file.length()) {
                     throw new VPFormatException(String.format("%s is corrupted or invalid.", filePath.getName()));
                 }
+                if (previousEntry != null && previousEntry.compareTo(entry) > 0) {
+                    entriesSorted = false;
+                }
                 entryList.add(entry);
+                previousEntry = entry;
             }
         }
         
-        // The entries, like the folders, should also be sorted, so sort them now.
-        Collections.sort(entryList);
+        // The entries, like the folders, should also be sorted. Well-formed
+        // VPs list them in order already, so only sort them if they aren't.
+        if (!entriesSorted) {
+            Collections.sort(entryList);
+        }
+        
+        // Index the sorted entries so that lookups don't need to scan the list.
+        entryMap = new HashMap<String, VPEntry>(entryList.size() * 2);
+        folderMap = new HashMap<VPFolder, List<VPEntry>>(folderSet.size() * 2);
+        for (VPEntry entry : entryList) {
+            indexEntry(entry);
+        }
+    }
+    
+    /**
+     * Sets whether entries that are added or replaced from now on are stored
+     * in the LZ41 format. An entry that doesn't get smaller is stored as it
+     * is. Compressing an entry requires its whole data to be held in memory.
+     * 
+     * @param compressingEntries true to compress new entries
+     */
+    public void setCompressingEntries(boolean compressingEntries) {
+        this.compressingEntries = compressingEntries;
+    }
+    
+    public boolean isCompressingEntries() {
+        return compressingEntries;
     }
     
     /**
@@ -132,6 +221,18 @@ public class VPFile implements Closeable {
         return new ArrayList<VPEntry>(entryList);
     }
     
+    /**
+     * Returns an unmodifiable view of the sorted entry list of this VP file,
+     * without copying it. Unlike the list returned by {@link #getEntryList()},
+     * the view reflects later changes to this VP file, so it must not be
+     * iterated while this VP file is being modified.
+     * 
+     * @return a read-only view of this VP file's entry list
+     */
+    public List<VPEntry> getEntries() {
+        return Collections.unmodifiableList(entryList);
+    }
+    
     /**
      * Returns a list of all the entries in this VP file that match the given
      * regular expression.
@@ -165,17 +266,39 @@ public class VPFile implements Closeable {
         Pattern pattern = Pattern.compile(regex.replace("/", "\\\\"), REGEX_FLAGS);
         Pattern excludePattern = Pattern.compile(regexExclude.replace("/", "\\\\"), REGEX_FLAGS);
         
+        // Reuse the same two matchers for every entry.
+        Matcher matcher = pattern.matcher("");
+        Matcher excludeMatcher = excludePattern.matcher("");
         for (VPEntry entry : entryList) {
             String entryString = entry.fullPath;
-            if (pattern.matcher(entryString).matches() && !excludePattern.matcher(entryString).matches()) {
+            if (matcher.reset(entryString).matches() && !excludeMatcher.reset(entryString).matches()) {
                 filteredEntryList.add(entry);
             }
         }
         
-        Collections.sort(filteredEntryList);
+        // The entry list is already sorted, so the filtered list is as well.
         return filteredEntryList;
     }
     
+    /**
+     * Returns a list of all the entries directly inside the given folder.
+     * Entries in subfolders of the given folder are not included.
+     * <p>
+     * The returned list is a newly created list that does not share its data
+     * with this VP file's entry list. Thus, the returned list will not
+     * automatically be updated if this VP file is changed.
+     * 
+     * @param folder folder whose entries should be returned
+     * @return a sorted list of the entries in the given folder
+     */
+    public List<VPEntry> getEntryList(VPFolder folder) {
+        List<VPEntry> folderEntries = folderMap.get(folder);
+        if (folderEntries == null) {
+            return new ArrayList<VPEntry>();
+        }
+        return new ArrayList<VPEntry>(folderEntries);
+    }
+    
     /**
      * Returns a set of all the folders in this VP file.
      * <p>
@@ -222,9 +345,12 @@ public class VPFile implements Closeable {
         Pattern pattern = Pattern.compile(regex.replace("/", "\\\\"), REGEX_FLAGS);
         Pattern excludePattern = Pattern.compile(regexExclude.replace("/", "\\\\"), REGEX_FLAGS);
         
+        // Reuse the same two matchers for every folder.
+        Matcher matcher = pattern.matcher("");
+        Matcher excludeMatcher = excludePattern.matcher("");
         for (VPFolder folder : folderSet) {
             String folderString = folder.path;
-            if (pattern.matcher(folderString).matches() && !excludePattern.matcher(folderString).matches()) {
+            if (matcher.reset(folderString).matches() && !excludeMatcher.reset(folderString).matches()) {
                 filteredFolderSet.add(folder);
             }
         }
@@ -247,14 +373,7 @@ public class VPFile implements Closeable {
         
         // Normalize all slashes to backslashes.
         entryName = entryName.replace('/', '\\');
-        VPEntry entry = null;
-        for (VPEntry e : entryList) {
-            if (e.fullPath.equalsIgnoreCase(entryName)) {
-                entry = e;
-            } else if (entry != null) {
-                break;
-            }
-        }
+        VPEntry entry = entryMap.get(entryName.toLowerCase(Locale.ENGLISH));
         
         if (entry == null) {
             throw new VPEntryNotFoundException(String.format("%s does not exist in VP file.", entryName));
@@ -264,10 +383,13 @@ public class VPFile implements Closeable {
     }
     
     /**
-     * Opens an input stream on the given entry.
+     * Opens an input stream on the given entry. If the entry is compressed,
+     * the stream reads the decompressed data.
      * <p>
-     * If a stream is already open on this VP file, then an IOException will
-     * be thrown.
+     * Any number of input streams may be open on this VP file at once,
+     * including from different threads, since each stream keeps its own
+     * position. If an output stream is open on this VP file, then an
+     * IOException will be thrown.
      * 
      * @param entry entry to open
      * @return a new input stream
@@ -275,26 +397,45 @@ public class VPFile implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public VPEntryInputStream openEntry(VPEntry entry) throws IOException {
+        return openEntry(entry, false);
+    }
+    
+    /**
+     * Opens an input stream on the data of the given entry as it is stored in
+     * this VP file, without decompressing it.
+     * 
+     * @param entry entry to open
+     * @return a new input stream
+     * @throws VPEntryNotFoundException if the given entry doesn't exist
+     * @throws IOException if an I/O error occurs
+     */
+    public VPEntryInputStream openRawEntry(VPEntry entry) throws IOException {
+        return openEntry(entry, true);
+    }
+    
+    private synchronized VPEntryInputStream openEntry(VPEntry entry, boolean raw) throws IOException {
         if (!isOpen) {
             throw new IOException("VP file has already been closed.");
         }
-        if (activeInputStream != null || activeOutputStream != null) {
-            throw new IOException("Cannot open an input stream on this VP file while a stream is already open on it.");
+        if (activeOutputStream != null) {
+            throw new IOException("Cannot open an input stream on this VP file while an output stream is open on it.");
         }
-        int entryIndex = Collections.binarySearch(entryList, entry);
-        if (entryIndex < 0) {
+        VPEntry realEntry = findEntry(entry);
+        if (realEntry == null) {
             throw new VPEntryNotFoundException(String.format("%s does not exist in VP file.", entry));
         }
         
-        activeInputStream = new VPEntryInputStream(entryList.get(entryIndex));
-        return activeInputStream;
+        VPEntryInputStream inputStream = new VPEntryInputStream(realEntry, raw);
+        activeInputStreams.add(inputStream);
+        return inputStream;
     }
     
     /**
      * Opens an input stream on the given entry.
      * <p>
-     * If a stream is already open on this VP file, then an IOException will
-     * be thrown.
+     * Any number of input streams may be open on this VP file at once. If an
+     * output stream is open on this VP file, then an IOException will be
+     * thrown.
      * 
      * @param entryName the name and path of the entry
      * @return a new input stream
@@ -306,29 +447,58 @@ public class VPFile implements Closeable {
     }
     
     /**
-     * Extracts all entries and folders in this VP file to the given
-     * destination. All folders in this VP, even those that are empty, will be
-     * created.
+     * Reads a sequence of bytes of the given entry into the given buffer,
+     * starting at the given position within the entry. This method does not
+     * use or move the file pointer, so it may be called concurrently from
+     * several threads, and while input streams are open on this VP file.
+     * <p>
+     * Note that interrupting a thread that is blocked in this method closes
+     * the underlying channel, as with any interruptible channel.
      * 
-     * @param destFolder folder to extract to
+     * @param entry entry to read from
+     * @param position position within the entry at which to start reading
+     * @param dst buffer into which bytes are to be transferred
+     * @return the number of bytes read, or -1 if the given position is at or
+     *         past the end of the entry
      * @throws IOException if an I/O error occurs
      */
-    public void extractAll(File destFolder) throws IOException {
+    public int read(VPEntry entry, long position, ByteBuffer dst) throws IOException {
         if (!isOpen) {
             throw new IOException("VP file has already been closed.");
         }
-        if (activeInputStream != null || activeOutputStream != null) {
-            throw new IOException("Cannot extract this VP file while a stream is already open on it.");
+        if (position < 0L) {
+            throw new IllegalArgumentException("Position cannot be negative.");
         }
         
-        // Create all the folders first.
-        for (VPFolder vpFolder : folderSet) {
-            // Replace backslashes with the file system's separator.
-            String vpFolderString = vpFolder.path.replace('\\', File.separatorChar);
-            File folder = new File(destFolder, vpFolderString);
-            folder.mkdirs();
+        long bytesRemaining = entry.size - position;
+        if (bytesRemaining <= 0L) {
+            return -1;
+        }
+        if (dst.remaining() > bytesRemaining) {
+            // Don't read past the end of the entry.
+            ByteBuffer slice = dst.duplicate();
+            slice.limit(slice.position() + (int)bytesRemaining);
+            int bytesRead = file.getChannel().read(slice, entry.offset + position);
+            if (bytesRead > 0) {
+                dst.position(dst.position() + bytesRead);
+            }
+            return bytesRead;
         }
-        extract(destFolder, ".*", "");
+        return file.getChannel().read(dst, entry.offset + position);
+    }
+    
+    /**
+     * Extracts all entries and folders in this VP file to the given
+     * destination. All folders in this VP, even those that are empty, will be
+     * created. The entries are extracted on several threads by a
+     * {@link VPExtractor}.
+     * 
+     * @param destFolder folder to extract to
+     * @throws IOException if an I/O error occurs
+     */
+    public void extractAll(File destFolder) throws IOException {
+        checkExtractable();
+        new VPExtractor(this, destFolder).extractAll();
     }
     
     /**
@@ -347,7 +517,8 @@ public class VPFile implements Closeable {
     /**
      * Extracts all entries whose full paths and names match <code>regex</code>,
      * but not <code>regexExclude</code>, to the given destination. Folders will
-     * be created as necessary.
+     * be created as necessary. Compressed entries are decompressed. The
+     * entries are extracted on several threads by a {@link VPExtractor}.
      * 
      * @param destFolder folder to extract to
      * @param regex regular expression to match
@@ -355,59 +526,16 @@ public class VPFile implements Closeable {
      * @throws IOException if an I/O error occurs
      */
     public void extract(File destFolder, String regex, String regexExclude) throws IOException {
+        checkExtractable();
+        new VPExtractor(this, destFolder).extract(regex, regexExclude);
+    }
+    
+    private void checkExtractable() throws IOException {
         if (!isOpen) {
             throw new IOException("VP file has already been closed.");
         }
-        if (activeInputStream != null || activeOutputStream != null) {
-            throw new IOException("Cannot extract this VP file while a stream is already open on it.");
-        }
-        
-        // Normalize all slashes to backslashes.
-        Pattern pattern = Pattern.compile(regex.replace("/", "\\\\"), REGEX_FLAGS);
-        Pattern excludePattern = Pattern.compile(regexExclude.replace("/", "\\\\"), REGEX_FLAGS);
-        
-        FileChannel vpChannel = file.getChannel();
-        
-        // Now extract the files.
-        for (VPEntry entry : entryList) {
-            String entryString = entry.fullPath;
-            if (!pattern.matcher(entryString).matches()
-                    || excludePattern.matcher(entryString).matches()) {
-                continue;
-            }
-            
-            // Replace backslashes with the file system's separator.
-            entryString = entryString.replace('\\', File.separatorChar);
-            File destFile = new File(destFolder, entryString);
-            destFile.getParentFile().mkdirs();
-            
-            WritableByteChannel destChannel = null;
-            try {
-                destChannel = new FileOutputStream(destFile).getChannel();
-                
-                long currentPosition = entry.offset;
-                long bytesRemaining = entry.size;
-                // transferTo isn't guaranteed to transfer all bytes on the
-                // first attempt, so keep trying until the entire entry is
-                // extracted. If 0 bytes are transferred during 16 consecutive
-                // attempts, then throw an IOException.
-                int patience = MAX_PATIENCE;
-                while (bytesRemaining > 0 && currentPosition < vpChannel.size()) {
-                    long bytesTransferred = vpChannel.transferTo(currentPosition, bytesRemaining, destChannel);
-                    if (bytesTransferred <= 0L) {
-                        if (--patience <= 0) {
-                            throw new IOException(String.format("Unable to fully extract %s.", entry));
-                        }
-                    } else {
-                        patience = MAX_PATIENCE;
-                    }
-                    bytesRemaining -= bytesTransferred;
-                }
-            } finally {
-                if (destChannel != null) {
-                    destChannel.close();
-                }
-            }
+        if (activeOutputStream != null) {
+            throw new IOException("Cannot extract this VP file while an output stream is open on it.");
         }
     }
     
@@ -427,25 +555,23 @@ public class VPFile implements Closeable {
         if (readOnly) {
             throw new IOException("VP file is open in read-only mode.");
         }
-        if (activeInputStream != null || activeOutputStream != null) {
+        if (hasOpenStreams()) {
             throw new IOException("Cannot rename an entry of this VP file while a stream is already open on it.");
         }
-        int oldEntryIndex = Collections.binarySearch(entryList, entry);
-        if (oldEntryIndex < 0) {
+        VPEntry realOldEntry = findEntry(entry);
+        if (realOldEntry == null) {
             throw new VPEntryNotFoundException(String.format("%s does not exist in VP file.", entry));
         }
         
-        VPEntry realOldEntry = entryList.get(oldEntryIndex);
         VPEntry newEntry = new VPEntry(realOldEntry.offset, realOldEntry.size, realOldEntry.folder, newName, realOldEntry.timestamp);
         if (newEntry.equals(realOldEntry)) {
             return;
         }
-        if (Collections.binarySearch(entryList, newEntry) >= 0) {
+        if (findEntry(newEntry) != null) {
             throw new VPEntryAlreadyExistsException(String.format("%s already exists in VP file.", newEntry));
         }
         modified = true;
-        entryList.set(oldEntryIndex, newEntry);
-        Collections.sort(entryList);
+        swapEntry(realOldEntry, newEntry);
     }
     
     /**
@@ -477,28 +603,26 @@ public class VPFile implements Closeable {
         if (readOnly) {
             throw new IOException("VP file is open in read-only mode.");
         }
-        if (activeInputStream != null || activeOutputStream != null) {
+        if (hasOpenStreams()) {
             throw new IOException("Cannot rename an entry of this VP file while a stream is already open on it.");
         }
-        int oldEntryIndex = Collections.binarySearch(entryList, entry);
-        if (oldEntryIndex < 0) {
+        VPEntry realOldEntry = findEntry(entry);
+        if (realOldEntry == null) {
             throw new VPEntryNotFoundException(String.format("%s does not exist in VP file.", entry));
         }
         
-        VPEntry realOldEntry = entryList.get(oldEntryIndex);
         VPEntry newEntry = new VPEntry(realOldEntry.offset, realOldEntry.size, destination, realOldEntry.name, realOldEntry.timestamp);
         if (newEntry.equals(realOldEntry)) {
             return;
         }
-        if (Collections.binarySearch(entryList, newEntry) >= 0) {
+        if (findEntry(newEntry) != null) {
             throw new VPEntryAlreadyExistsException(String.format("%s already exists in VP file.", newEntry));
         }
         modified = true;
         if (!folderSet.contains(destination)) {
             folderSet.add(destination);
         }
-        entryList.set(oldEntryIndex, newEntry);
-        Collections.sort(entryList);
+        swapEntry(realOldEntry, newEntry);
     }
     
     public void moveEntry(VPEntry entry, String destinationName) throws IOException {
@@ -526,268 +650,998 @@ public class VPFile implements Closeable {
             if (folder.path.length() == 0) {
                 continue;
             }
-            boolean folderIsEmpty = true;
-            for (VPEntry entry : entryList) {
-                if (entry.folder.equals(folder)) {
-                    folderIsEmpty = false;
-                    break;
-                }
-            }
+            List<VPEntry> folderEntries = folderMap.get(folder);
+            boolean folderIsEmpty = folderEntries == null || folderEntries.isEmpty();
             if (folderIsEmpty) {
+                // Subfolders sort immediately before their parent, so only the
+                // folder preceding this one needs to be checked. Empty
+                // subfolders have already been removed by the time their
+                // parent is reached.
                 String folderNameWithBackslash = folder.pathLowercase + "\\";
-                for (VPFolder folder2 : folderSet) {
-                    if (folder2.pathLowercase.startsWith(folderNameWithBackslash)) {
-                        folderIsEmpty = false;
-                        break;
-                    }
+                SortedSet<VPFolder> precedingFolders = folderSet.headSet(folder);
+                if (!precedingFolders.isEmpty() && precedingFolders.last().pathLowercase.startsWith(folderNameWithBackslash)) {
+                    folderIsEmpty = false;
                 }
             }
             if (folderIsEmpty) {
                 modified = true;
+                folderMap.remove(folder);
                 it.remove();
             }
         }
     }
     
     /**
-     * Closes all streams that are currently open on this VP file.
+     * Adds a new entry to this VP file, copying its data from the given file.
+     * The data is appended after everything that's already in this VP file,
+     * and the entry list is rewritten when this VP file is closed, so the
+     * cost of the update is roughly the size of the new entry.
+     * 
+     * @param entryName the name and path of the new entry
+     * @param source file containing the entry's data
+     * @return the new entry
+     * @throws VPEntryAlreadyExistsException if an entry with the same path already exists
+     * @throws IOException if an I/O error occurs
      */
-    public void closeStreams() {
-        if (activeInputStream != null) {
-            activeInputStream.close();
-        }
-        if (activeOutputStream != null) {
-            activeOutputStream.close();
+    public VPEntry addEntry(String entryName, File source) throws IOException {
+        VPEntry newEntry = newEntryTemplate(entryName, getUnixTime(source));
+        if (entryMap.containsKey(newEntry.fullPathLowercase)) {
+            throw new VPEntryAlreadyExistsException(String.format("%s already exists in VP file.", newEntry));
         }
+        
+        long offset = getAppendOffset();
+        long size = appendFile(source);
+        return addEntryRecord(newEntry.folder.path, newEntry.name, offset, size, newEntry.timestamp);
     }
     
     /**
-     * Closes this VP file and releases any system resources associated with
-     * it. If this VP file has been modified, then the entry list is updated.
+     * Opens an output stream that writes the data of a new entry, for when the
+     * data is pushed rather than read from a stream. The entry is added when
+     * the stream is closed. No other stream may be open on this VP file while
+     * the output stream is open.
      * 
+     * @param entryName the name and path of the new entry
+     * @param timestamp 32-bit Unix time of the entry
+     * @return a new output stream
+     * @throws VPEntryAlreadyExistsException if an entry with the same path already exists
      * @throws IOException if an I/O error occurs
      */
-    public void close() throws IOException {
-        if (!isOpen) {
-            return;
+    public synchronized VPEntryOutputStream createEntry(String entryName, int timestamp) throws IOException {
+        VPEntry newEntry = newEntryTemplate(entryName, timestamp);
+        if (entryMap.containsKey(newEntry.fullPathLowercase)) {
+            throw new VPEntryAlreadyExistsException(String.format("%s already exists in VP file.", newEntry));
         }
         
-        closeStreams();
-        if (modified) {
-            writeEntryList();
-        }
-        isOpen = false;
-        file.close();
+        activeOutputStream = new VPEntryOutputStream(newEntry, getAppendOffset());
+        return activeOutputStream;
+    }
+    
+    /**
+     * Adds a new entry to this VP file, reading its data from the given
+     * stream until the end of the stream is reached. The stream is not
+     * closed. The entry's timestamp is set to the current time.
+     * 
+     * @param entryName the name and path of the new entry
+     * @param in stream containing the entry's data
+     * @return the new entry
+     * @throws VPEntryAlreadyExistsException if an entry with the same path already exists
+     * @throws IOException if an I/O error occurs
+     */
+    public VPEntry addEntry(String entryName, InputStream in) throws IOException {
+        return addEntry(entryName, in, getCurrentUnixTime());
     }
     
     /**
-     * Reads a signed 32-bit integer in little-endian format.
+     * Adds a new entry to this VP file, reading its data from the given
+     * stream until the end of the stream is reached. The stream is not
+     * closed.
+     * 
+     * @param entryName the name and path of the new entry
+     * @param in stream containing the entry's data
+     * @param timestamp 32-bit Unix time of the entry
+     * @return the new entry
+     * @throws VPEntryAlreadyExistsException if an entry with the same path already exists
+     * @throws IOException if an I/O error occurs
      */
-    private int readInt() throws IOException {
-        return Integer.reverseBytes(file.readInt());
+    public VPEntry addEntry(String entryName, InputStream in, int timestamp) throws IOException {
+        VPEntry newEntry = newEntryTemplate(entryName, timestamp);
+        if (entryMap.containsKey(newEntry.fullPathLowercase)) {
+            throw new VPEntryAlreadyExistsException(String.format("%s already exists in VP file.", newEntry));
+        }
+        
+        long offset = getAppendOffset();
+        long size = appendStream(in, newEntry);
+        return addEntryRecord(newEntry.folder.path, newEntry.name, offset, size, newEntry.timestamp);
     }
     
     /**
-     * Reads an unsigned 32-bit integer in little-endian format.
+     * Replaces the data of the given entry with the contents of the given
+     * file. The new data is appended to this VP file and the old data becomes
+     * dead space, which can be reclaimed with {@link #compact()}.
+     * 
+     * @param entry entry to replace
+     * @param source file containing the entry's new data
+     * @return the updated entry
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
      */
-    private long readUnsignedInt() throws IOException {
-        return Integer.reverseBytes(file.readInt()) & 0xffffffffL;
+    public VPEntry replaceEntry(VPEntry entry, File source) throws IOException {
+        VPEntry realOldEntry = prepareReplacement(entry);
+        
+        long offset = getAppendOffset();
+        long size = appendFile(source);
+        VPEntry newEntry = new VPEntry(offset, size, realOldEntry.folder, realOldEntry.name, getUnixTime(source));
+        swapEntry(realOldEntry, newEntry);
+        return newEntry;
     }
     
     /**
-     * Reads a 32-byte string, trimming the first null terminator and all
-     * characters after it.
+     * Replaces the data of the entry matching the given name with the
+     * contents of the given file.
+     * 
+     * @param entryName the name and path of the entry
+     * @param source file containing the entry's new data
+     * @return the updated entry
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
      */
-    private String readString() throws IOException {
-        byte[] stringBytes = new byte[32];
-        file.readFully(stringBytes);
-        // In case there's no null terminator at all, set the default length to 31 rather than 32.
-        // This way, the string that gets stored won't be different from that one that will be saved to the file,
-        // which will definitely have a null terminator.
-        int stringLength = stringBytes.length - 1;
-        for (int i = 0; i < stringBytes.length; i++) {
-            if (stringBytes[i] == 0) {
-                stringLength = i;
-                break;
-            }
-        }
-        return new String(stringBytes, 0, stringLength, VP_CHARSET_NAME);
+    public VPEntry replaceEntry(String entryName, File source) throws IOException {
+        return replaceEntry(getEntry(entryName), source);
     }
     
     /**
-     * Writes a signed 32-bit integer in little-endian format.
+     * Replaces the data of the given entry with the remaining contents of the
+     * given stream. The stream is not closed. The entry's timestamp is set to
+     * the current time.
+     * 
+     * @param entry entry to replace
+     * @param in stream containing the entry's new data
+     * @return the updated entry
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
      */
-    private void writeInt(int n) throws IOException {
-        file.writeInt(Integer.reverseBytes(n));
+    public VPEntry replaceEntry(VPEntry entry, InputStream in) throws IOException {
+        return replaceEntry(entry, in, getCurrentUnixTime());
     }
     
     /**
-     * Writes an unsigned 32-bit integer in little-endian format.
+     * Replaces the data of the given entry with the remaining contents of the
+     * given stream. The stream is not closed.
+     * 
+     * @param entry entry to replace
+     * @param in stream containing the entry's new data
+     * @param timestamp new 32-bit Unix time of the entry
+     * @return the updated entry
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
      */
-    private void writeUnsignedInt(long n) throws IOException {
-        int cappedValue = (int)Math.min(Math.max(0L, n), 0xffffffffL);
-        file.writeInt(Integer.reverseBytes(cappedValue));
+    public VPEntry replaceEntry(VPEntry entry, InputStream in, int timestamp) throws IOException {
+        VPEntry realOldEntry = prepareReplacement(entry);
+        
+        long offset = getAppendOffset();
+        long size = appendStream(in, realOldEntry);
+        VPEntry newEntry = new VPEntry(offset, size, realOldEntry.folder, realOldEntry.name, timestamp);
+        swapEntry(realOldEntry, newEntry);
+        return newEntry;
     }
     
     /**
-     * Writes a string to the next 32 bytes using the ISO-8859-1 encoding,
-     * padding with nulls or cropping to 32 bytes if necessary.
+     * Replaces the data of the entry matching the given name with the
+     * remaining contents of the given stream.
+     * 
+     * @param entryName the name and path of the entry
+     * @param in stream containing the entry's new data
+     * @return the updated entry
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
      */
-    private void writeString(String s) throws IOException {
-        byte[] stringBytes = s.getBytes(VP_CHARSET_NAME);
-        if (stringBytes.length != 32) {
-            byte[] copy = new byte[32];
-            System.arraycopy(stringBytes, 0, copy, 0, Math.min(stringBytes.length, 32));
-            stringBytes = copy;
-        }
-        // Make sure that the string actually has a null terminator.
-        stringBytes[stringBytes.length - 1] = 0;
-        file.write(stringBytes);
+    public VPEntry replaceEntry(String entryName, InputStream in) throws IOException {
+        return replaceEntry(getEntry(entryName), in);
     }
     
-    private void writeEntryList() throws IOException {
-        file.seek(entryListOffset);
-        
-        long entryListSize = 0L;
-        VPFolder currentFolder = new VPFolder();
-        Set<VPFolder> writtenFolders = new HashSet<VPFolder>(folderSet.size() * 2);
-        for (VPFolder nextFolder : folderSet) {
-            if (!writtenFolders.contains(nextFolder)) {
-                String[] currentFolderArray = currentFolder.path.split("\\\\");
-                String[] nextFolderArray = nextFolder.path.split("\\\\");
-                if (currentFolderArray.length == 1 && currentFolderArray[0].length() == 0) {
-                    currentFolderArray = EMPTY_STRING_ARRAY;
-                }
-                if (nextFolderArray.length == 1 && nextFolderArray[0].length() == 0) {
-                    nextFolderArray = EMPTY_STRING_ARRAY;
-                }
-                int minLength = Math.min(currentFolderArray.length, nextFolderArray.length);
-                int i = 0;
-                for ( ; i < minLength; i++) {
-                    if (!currentFolderArray[i].equalsIgnoreCase(nextFolderArray[i])) {
-                        break;
-                    }
-                }
-                for (int j = i; j < currentFolderArray.length; j++) {
-                    writeInt(0);
-                    writeInt(0);
-                    writeString("..");
-                    writeInt(0);
-                    entryListSize++;
-                }
-                for (int j = i; j < nextFolderArray.length; j++) {
-                    writeInt(0);
-                    writeInt(0);
-                    writeString(nextFolderArray[j]);
-                    writeInt(0);
-                    entryListSize++;
-                }
-                
-                String filter = nextFolder.path.replace("\\", "\\\\");
-                if (nextFolderArray.length == 0) {
-                    filter += "[^\\\\]*";
-                } else {
-                    filter += "\\\\[^\\\\]*";
-                }
-                for (VPEntry entry : getEntryList(filter)) {
-                    writeUnsignedInt(entry.offset);
-                    writeUnsignedInt(entry.size);
-                    writeString(entry.name);
-                    writeInt(entry.timestamp);
-                    entryListSize++;
-                }
-                
-                writtenFolders.add(nextFolder);
-            }
-            
-            currentFolder = nextFolder;
+    /**
+     * Deletes the given entry from this VP file. Its data becomes dead space,
+     * which can be reclaimed with {@link #compact()}.
+     * 
+     * @param entry entry to delete
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
+     */
+    public void deleteEntry(VPEntry entry) throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
         }
-        
-        String[] currentFolderArray = currentFolder.path.split("\\\\");
-        if (currentFolderArray.length == 1 && currentFolderArray[0].length() == 0) {
-            currentFolderArray = EMPTY_STRING_ARRAY;
+        if (readOnly) {
+            throw new IOException("VP file is open in read-only mode.");
         }
-        for (int i = 0; i < currentFolderArray.length; i++) {
-            for (int j = i; j < currentFolderArray.length; j++) {
-                writeInt(0);
-                writeInt(0);
-                writeString("..");
-                writeInt(0);
-                entryListSize++;
-            }
+        if (hasOpenStreams()) {
+            throw new IOException("Cannot delete an entry of this VP file while a stream is already open on it.");
+        }
+        VPEntry realEntry = findEntry(entry);
+        if (realEntry == null) {
+            throw new VPEntryNotFoundException(String.format("%s does not exist in VP file.", entry));
         }
         
-        file.setLength(file.getFilePointer());
-        file.seek(8);
-        writeUnsignedInt(entryListOffset);
-        writeUnsignedInt(entryListSize);
+        modified = true;
+        entryList.remove(Collections.binarySearch(entryList, realEntry));
+        unindexEntry(realEntry);
     }
     
     /**
-     * Returns the current 32-bit Unix time. If the current time cannot be
-     * represented by 32-bit Unix time (that is, if the current date is earlier
-     * than December 12, 1901 or later than January 18, 2038), then the
-     * returned value is capped, without overflow, at the bounds of the 32-bit
-     * Unix time range, provided that the value returned by Java's
-     * {@link System#currentTimeMillis()} method is accurate.
+     * Deletes the entry matching the given name from this VP file.
      * 
-     * @return current 32-bit Unix time
+     * @param entryName the name and path of the entry
+     * @throws VPEntryNotFoundException if the given entry does not exist
+     * @throws IOException if an I/O error occurs
      */
-    public static int getCurrentUnixTime() {
-        // Convert the current Java time to seconds and cap it at the signed 32-bit integer range.
-        long longUnixTime = System.currentTimeMillis() / 1000;
-        return (int)Math.min(Math.max(Integer.MIN_VALUE, longUnixTime), Integer.MAX_VALUE);
+    public void deleteEntry(String entryName) throws IOException {
+        deleteEntry(getEntry(entryName));
     }
     
-    
     /**
-     *
-     * @author Ryan Sakowski
+     * Returns the number of bytes in this VP file's data area that don't
+     * belong to any entry, such as the data of deleted or replaced entries
+     * and entry lists that have been superseded.
+     * 
+     * @return the amount of dead space, in bytes
      */
-    public class VPEntry implements Comparable<VPEntry> {
-        
-        private long offset;
-        private final long size;
-        private final VPFolder folder;
-        private final String name;
-        private final String nameLowercase;
-        private final String fullPath;
-        private final String fullPathLowercase;
-        private final int timestamp;
-        
-        private VPEntry(long offset, long size, VPFolder folder, String name, int timestamp) {
-            this.offset = offset;
-            this.size = size;
-            this.folder = folder;
-            this.name = name;
-            this.nameLowercase = this.name.toLowerCase(Locale.ENGLISH);
-            if (folder.path.length() == 0) {
-                fullPath = name;
-            } else {
-                fullPath = folder.path + "\\" + name;
+    public long getDeadSpace() {
+        long liveSize = 0L;
+        long liveEnd = 16L;
+        for (VPEntry entry : getEntriesByOffset()) {
+            // Entries may share data, so only count each byte once.
+            long entryEnd = entry.offset + entry.size;
+            if (entryEnd > liveEnd) {
+                liveSize += entryEnd - Math.max(entry.offset, liveEnd);
+                liveEnd = entryEnd;
             }
-            this.fullPathLowercase = this.fullPath.toLowerCase(Locale.ENGLISH);
-            this.timestamp = timestamp;
-        }
-        
-        public long getSize() {
-            return size;
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        public String getFullPath() {
-            return fullPath;
         }
-        
-        public VPFolder getFolder() {
-            return folder;
+        return Math.max(0L, getDataEnd() - 16L - liveSize);
+    }
+    
+    /**
+     * Returns the fraction of this VP file's data area that is dead space.
+     * 
+     * @return a value between 0 and 1
+     */
+    public double getFragmentation() {
+        long dataSize = getDataEnd() - 16L;
+        if (dataSize <= 0L) {
+            return 0.0;
         }
-        
-        public int getTimestamp() {
-            return timestamp;
+        return (double)getDeadSpace() / dataSize;
+    }
+    
+    /**
+     * Compacts this VP file if more than {@link #DEFAULT_COMPACT_THRESHOLD}
+     * of its data area is dead space.
+     * 
+     * @return true if this VP file was compacted
+     * @throws IOException if an I/O error occurs
+     * @see #compact(double)
+     */
+    public boolean compact() throws IOException {
+        return compact(DEFAULT_COMPACT_THRESHOLD);
+    }
+    
+    /**
+     * Compacts this VP file if the fraction of its data area that is dead
+     * space exceeds the given threshold. Compaction moves the entries' data
+     * toward the start of the file in a single sequential pass, writes the
+     * entry list directly after it, and truncates the file.
+     * <p>
+     * The entries' data is moved in place, so the VP file will be left
+     * corrupted if the compaction is interrupted by a crash or power failure.
+     * 
+     * @param threshold fragmentation above which the file is compacted; 0
+     *        compacts the file whenever it has any dead space at all
+     * @return true if this VP file was compacted
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean compact(double threshold) throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
+        }
+        if (readOnly) {
+            throw new IOException("VP file is open in read-only mode.");
+        }
+        if (hasOpenStreams()) {
+            throw new IOException("Cannot compact this VP file while a stream is open on it.");
+        }
+        if (getDeadSpace() == 0L || getFragmentation() <= threshold) {
+            return false;
+        }
+        
+        // Moving an entry can only overwrite data that has already been moved
+        // if no two entries partially overlap, so check that first.
+        List<VPEntry> entriesByOffset = getEntriesByOffset();
+        VPEntry previousEntry = null;
+        for (VPEntry entry : entriesByOffset) {
+            if (previousEntry != null && entry.offset < previousEntry.offset + previousEntry.size
+                    && (entry.offset != previousEntry.offset || entry.size != previousEntry.size)) {
+                throw new IOException(String.format("%s overlaps %s, so this VP file cannot be compacted.", entry, previousEntry));
+            }
+            previousEntry = entry;
+        }
+        
+        FileChannel channel = file.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MOVE_BUFFER_SIZE);
+        long dataEnd = 16L;
+        long previousOffset = -1L;
+        long previousSize = -1L;
+        long previousNewOffset = 0L;
+        for (VPEntry entry : entriesByOffset) {
+            if (entry.offset == previousOffset && entry.size == previousSize) {
+                // This entry shares its data with the previous one.
+                entry.offset = previousNewOffset;
+                continue;
+            }
+            previousOffset = entry.offset;
+            previousSize = entry.size;
+            
+            // The destination is never after the source, so copying forward
+            // never overwrites data that hasn't been copied yet.
+            if (entry.offset != dataEnd) {
+                for (long bytesMoved = 0L; bytesMoved < entry.size; ) {
+                    buffer.clear();
+                    buffer.limit((int)Math.min(buffer.capacity(), entry.size - bytesMoved));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, entry.offset + bytesMoved + buffer.position()) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, dataEnd + bytesMoved + buffer.position());
+                    }
+                    bytesMoved += buffer.limit();
+                }
+                entry.offset = dataEnd;
+            }
+            previousNewOffset = entry.offset;
+            dataEnd += entry.size;
+        }
+        
+        // Write the entry list right away, since the old one no longer
+        // describes the file.
+        modified = true;
+        entryListOffset = dataEnd;
+        appendOffset = -1L;
+        writeEntryList();
+        return true;
+    }
+    
+    /**
+     * Adds a record for an entry whose data has already been written to this
+     * VP file, such as by {@link VPBuilder}. The entry list is rewritten when
+     * this VP file is closed.
+     * 
+     * @param folderPath path of the folder that contains the entry
+     * @param name name of the entry, not including path
+     * @param offset location of the entry's data in this VP file
+     * @param size size of the entry's data
+     * @param timestamp 32-bit Unix time of the entry
+     * @return the new entry
+     * @throws VPEntryAlreadyExistsException if an entry with the same path already exists
+     * @throws IOException if an I/O error occurs
+     */
+    VPEntry addEntryRecord(String folderPath, String name, long offset, long size, int timestamp) throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
+        }
+        if (readOnly) {
+            throw new IOException("VP file is open in read-only mode.");
+        }
+        
+        VPEntry entry = new VPEntry(offset, size, new VPFolder(folderPath), name, timestamp);
+        if (entryMap.containsKey(entry.fullPathLowercase)) {
+            throw new VPEntryAlreadyExistsException(String.format("%s already exists in VP file.", entry));
+        }
+        modified = true;
+        if (!folderSet.contains(entry.folder)) {
+            folderSet.add(entry.folder);
+        }
+        int entryIndex = Collections.binarySearch(entryList, entry);
+        entryList.add(-entryIndex - 1, entry);
+        indexEntry(entry);
+        return entry;
+    }
+    
+    /**
+     * Adds a folder to this VP file. The folder is kept even if it is empty,
+     * until {@link #deleteEmptyFolders()} is called.
+     * 
+     * @param folderPath path of the folder
+     * @throws IOException if an I/O error occurs
+     */
+    void addFolderRecord(String folderPath) throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
+        }
+        if (readOnly) {
+            throw new IOException("VP file is open in read-only mode.");
+        }
+        
+        VPFolder folder = new VPFolder(folderPath);
+        if (!folderSet.contains(folder)) {
+            modified = true;
+            folderSet.add(folder);
+        }
+    }
+    
+    /**
+     * Checks that this VP file can be modified and creates an entry, not yet
+     * added to this VP file, with the given path and timestamp.
+     */
+    private VPEntry newEntryTemplate(String entryName, int timestamp) throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
+        }
+        if (readOnly) {
+            throw new IOException("VP file is open in read-only mode.");
+        }
+        if (hasOpenStreams()) {
+            throw new IOException("Cannot add an entry to this VP file while a stream is already open on it.");
+        }
+        
+        // Normalize all slashes to backslashes.
+        entryName = entryName.replace('/', '\\');
+        int lastBackslashPos = entryName.lastIndexOf('\\');
+        String name = entryName.substring(lastBackslashPos + 1);
+        if (name.length() == 0 || name.getBytes(VP_CHARSET_NAME).length > 31) {
+            throw new IllegalArgumentException(String.format("%s is not a valid VP entry name.", name));
+        }
+        VPFolder folder = lastBackslashPos < 0 ? new VPFolder() : new VPFolder(entryName.substring(0, lastBackslashPos));
+        return new VPEntry(0L, 0L, folder, name, timestamp);
+    }
+    
+    /**
+     * Checks that the given entry can be replaced, and returns the entry in
+     * this VP file that is equal to it.
+     */
+    private VPEntry prepareReplacement(VPEntry entry) throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
+        }
+        if (readOnly) {
+            throw new IOException("VP file is open in read-only mode.");
+        }
+        if (hasOpenStreams()) {
+            throw new IOException("Cannot replace an entry of this VP file while a stream is already open on it.");
+        }
+        VPEntry realEntry = findEntry(entry);
+        if (realEntry == null) {
+            throw new VPEntryNotFoundException(String.format("%s does not exist in VP file.", entry));
+        }
+        return realEntry;
+    }
+    
+    /**
+     * Returns the location at which the next payload will be appended. The
+     * first payload is written after the current entry list, which stays
+     * valid on disk until the new one is written, so an update that is cut
+     * short leaves the VP file as it was.
+     */
+    private long getAppendOffset() throws IOException {
+        if (appendOffset < 0L) {
+            appendOffset = file.length();
+        }
+        return appendOffset;
+    }
+    
+    /**
+     * Returns the end of the data area, which is where the entry list will
+     * be written.
+     */
+    private long getDataEnd() {
+        return appendOffset < 0L ? entryListOffset : appendOffset;
+    }
+    
+    /**
+     * Marks the given number of bytes at the append offset as written.
+     */
+    private void finishAppend(long size) {
+        modified = true;
+        appendOffset += size;
+        entryListOffset = appendOffset;
+    }
+    
+    /**
+     * Appends the contents of the given file to this VP file and returns the
+     * number of bytes written.
+     */
+    private long appendFile(File source) throws IOException {
+        long size = source.length();
+        if (size == 0L) {
+            throw new IOException(String.format("%s is empty; VP files cannot contain empty entries.", source));
+        }
+        if (compressingEntries) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too large to compress.", source));
+            }
+            byte[] data = new byte[(int)size];
+            DataInputStream in = new DataInputStream(new FileInputStream(source));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+            return appendCompressed(data, data.length, source.toString());
+        }
+        long offset = getAppendOffset();
+        if (offset + size > 0xffffffffL) {
+            throw new IOException(String.format("%s is too large to fit in this VP file.", source));
+        }
+        
+        FileChannel channel = file.getChannel();
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel sourceChannel = in.getChannel();
+            long bytesTransferred = 0L;
+            // transferFrom isn't guaranteed to transfer all bytes at once.
+            int patience = MAX_PATIENCE;
+            while (bytesTransferred < size) {
+                long count = channel.transferFrom(sourceChannel, offset + bytesTransferred, size - bytesTransferred);
+                if (count <= 0L) {
+                    if (--patience <= 0) {
+                        throw new IOException(String.format("Unable to fully copy %s.", source));
+                    }
+                } else {
+                    patience = MAX_PATIENCE;
+                }
+                bytesTransferred += count;
+            }
+        } finally {
+            in.close();
+        }
+        
+        finishAppend(size);
+        return size;
+    }
+    
+    /**
+     * Appends the remaining contents of the given stream to this VP file and
+     * returns the number of bytes written.
+     */
+    private long appendStream(InputStream in, VPEntry entry) throws IOException {
+        if (compressingEntries) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] bytes = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(bytes)) >= 0) {
+                data.write(bytes, 0, bytesRead);
+            }
+            if (data.size() == 0) {
+                throw new IOException(String.format("%s is empty; VP files cannot contain empty entries.", entry));
+            }
+            return appendCompressed(data.toByteArray(), data.size(), entry.toString());
+        }
+        long offset = getAppendOffset();
+        FileChannel channel = file.getChannel();
+        byte[] bytes = new byte[BUFFER_SIZE];
+        long size = 0L;
+        int bytesRead;
+        while ((bytesRead = in.read(bytes)) >= 0) {
+            if (offset + size + bytesRead > 0xffffffffL) {
+                throw new IOException(String.format("%s is too large to fit in this VP file.", entry));
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytesRead);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + size + buffer.position());
+            }
+            size += bytesRead;
+        }
+        if (size == 0L) {
+            throw new IOException(String.format("%s is empty; VP files cannot contain empty entries.", entry));
+        }
+        
+        finishAppend(size);
+        return size;
+    }
+    
+    /**
+     * Compresses the given data, appends it to this VP file and returns the
+     * number of bytes written. The data is appended as it is if compressing
+     * it doesn't make it smaller.
+     */
+    private long appendCompressed(byte[] data, int length, String name) throws IOException {
+        byte[] compressed = LZ41.compress(data, 0, length, LZ41.DEFAULT_BLOCK_SIZE);
+        ByteBuffer buffer = compressed.length < length ? ByteBuffer.wrap(compressed) : ByteBuffer.wrap(data, 0, length);
+        long size = buffer.remaining();
+        long offset = getAppendOffset();
+        if (offset + size > 0xffffffffL) {
+            throw new IOException(String.format("%s is too large to fit in this VP file.", name));
+        }
+        
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        
+        finishAppend(size);
+        return size;
+    }
+    
+    /**
+     * Returns the entries of this VP file sorted by the location of their
+     * data.
+     */
+    private List<VPEntry> getEntriesByOffset() {
+        List<VPEntry> entriesByOffset = new ArrayList<VPEntry>(entryList);
+        Collections.sort(entriesByOffset, new Comparator<VPEntry>() {
+            public int compare(VPEntry o1, VPEntry o2) {
+                if (o1.offset != o2.offset) {
+                    return o1.offset < o2.offset ? -1 : 1;
+                }
+                return o1.size < o2.size ? -1 : (o1.size == o2.size ? 0 : 1);
+            }
+        });
+        return entriesByOffset;
+    }
+    
+    /**
+     * Returns the entry in this VP file that is equal to the given entry, or
+     * null if there is no such entry.
+     */
+    private VPEntry findEntry(VPEntry entry) {
+        VPEntry indexedEntry = entryMap.get(entry.fullPathLowercase);
+        if (indexedEntry == null) {
+            return null;
+        } else if (indexedEntry.equals(entry)) {
+            return indexedEntry;
+        }
+        
+        // Several entries can share a path if their timestamps or sizes
+        // differ, so fall back to the folder's sorted list.
+        List<VPEntry> folderEntries = folderMap.get(entry.folder);
+        int entryIndex = Collections.binarySearch(folderEntries, entry);
+        return entryIndex < 0 ? null : folderEntries.get(entryIndex);
+    }
+    
+    /**
+     * Replaces an entry of this VP file with a new one, keeping the entry
+     * list sorted and the indexes consistent.
+     */
+    private void swapEntry(VPEntry oldEntry, VPEntry newEntry) {
+        entryList.remove(Collections.binarySearch(entryList, oldEntry));
+        unindexEntry(oldEntry);
+        
+        int newEntryIndex = Collections.binarySearch(entryList, newEntry);
+        entryList.add(-newEntryIndex - 1, newEntry);
+        indexEntry(newEntry);
+    }
+    
+    /**
+     * Adds the given entry to the path and folder indexes. If another entry
+     * already has the same path, the entry that sorts last is kept in the
+     * path index.
+     */
+    private void indexEntry(VPEntry entry) {
+        VPEntry indexedEntry = entryMap.get(entry.fullPathLowercase);
+        if (indexedEntry == null || indexedEntry.compareTo(entry) < 0) {
+            entryMap.put(entry.fullPathLowercase, entry);
+        }
+        
+        List<VPEntry> folderEntries = folderMap.get(entry.folder);
+        if (folderEntries == null) {
+            folderEntries = new ArrayList<VPEntry>();
+            folderMap.put(entry.folder, folderEntries);
+        }
+        int entryIndex = Collections.binarySearch(folderEntries, entry);
+        if (entryIndex < 0) {
+            folderEntries.add(-entryIndex - 1, entry);
+        }
+    }
+    
+    /**
+     * Removes the given entry from the path and folder indexes.
+     */
+    private void unindexEntry(VPEntry entry) {
+        List<VPEntry> folderEntries = folderMap.get(entry.folder);
+        if (folderEntries != null) {
+            int entryIndex = Collections.binarySearch(folderEntries, entry);
+            if (entryIndex >= 0) {
+                folderEntries.remove(entryIndex);
+            }
+        }
+        
+        if (entryMap.get(entry.fullPathLowercase) == entry) {
+            entryMap.remove(entry.fullPathLowercase);
+            // If another entry has the same path, it takes over the index.
+            if (folderEntries != null) {
+                for (VPEntry e : folderEntries) {
+                    if (e.fullPathLowercase.equals(entry.fullPathLowercase)) {
+                        entryMap.put(e.fullPathLowercase, e);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tells whether any input or output streams are open on this VP file.
+     */
+    private synchronized boolean hasOpenStreams() {
+        return !activeInputStreams.isEmpty() || activeOutputStream != null;
+    }
+    
+    /**
+     * Closes all streams that are currently open on this VP file.
+     */
+    public synchronized void closeStreams() {
+        for (VPEntryInputStream inputStream : new ArrayList<VPEntryInputStream>(activeInputStreams)) {
+            inputStream.close();
+        }
+        if (activeOutputStream != null) {
+            activeOutputStream.abort();
+        }
+    }
+    
+    /**
+     * Closes this VP file and releases any system resources associated with
+     * it. If this VP file has been modified, then the entry list is updated.
+     * 
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        if (!isOpen) {
+            return;
+        }
+        
+        closeStreams();
+        if (modified) {
+            writeEntryList();
+        }
+        isOpen = false;
+        file.close();
+    }
+    
+    /**
+     * Reads <code>length</code> bytes starting at the given position into a
+     * new little-endian buffer, without moving the file pointer.
+     */
+    private ByteBuffer readBuffer(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Tells whether the 32-byte string at the given offset is "..".
+     */
+    private static boolean isBackdir(byte[] bytes, int offset) {
+        return bytes[offset] == '.' && bytes[offset + 1] == '.' && bytes[offset + 2] == 0;
+    }
+    
+    /**
+     * Decodes the 32-byte string at the given offset, trimming the first null
+     * terminator and all characters after it.
+     */
+    private static String decodeString(byte[] bytes, int offset) throws UnsupportedEncodingException {
+        // In case there's no null terminator at all, set the default length to 31 rather than 32.
+        // This way, the string that gets stored won't be different from that one that will be saved to the file,
+        // which will definitely have a null terminator.
+        int stringLength = 31;
+        for (int i = 0; i < 32; i++) {
+            if (bytes[offset + i] == 0) {
+                stringLength = i;
+                break;
+            }
+        }
+        return new String(bytes, offset, stringLength, VP_CHARSET_NAME);
+    }
+    
+    /**
+     * Splits a folder path into its components.
+     */
+    private static String[] splitPath(VPFolder folder) {
+        if (folder.path.length() == 0) {
+            return EMPTY_STRING_ARRAY;
+        }
+        return folder.path.split("\\\\");
+    }
+    
+    /**
+     * Returns the number of leading path components that two folders share,
+     * ignoring case.
+     */
+    private static int commonDepth(String[] folderArray1, String[] folderArray2) {
+        int minLength = Math.min(folderArray1.length, folderArray2.length);
+        int i = 0;
+        for ( ; i < minLength; i++) {
+            if (!folderArray1[i].equalsIgnoreCase(folderArray2[i])) {
+                break;
+            }
+        }
+        return i;
+    }
+    
+    /**
+     * Writes one 44-byte entry list record in little-endian format. Offsets
+     * and sizes are capped at the unsigned 32-bit range, and the name is
+     * encoded using ISO-8859-1, padded with nulls or cropped to 31 bytes plus
+     * a null terminator.
+     */
+    private static void putRecord(ByteBuffer buffer, long offset, long size, String name, int timestamp) throws IOException {
+        buffer.putInt((int)Math.min(Math.max(0L, offset), 0xffffffffL));
+        buffer.putInt((int)Math.min(Math.max(0L, size), 0xffffffffL));
+        byte[] stringBytes = name.getBytes(VP_CHARSET_NAME);
+        int stringLength = Math.min(stringBytes.length, 31);
+        buffer.put(stringBytes, 0, stringLength);
+        for (int i = stringLength; i < 32; i++) {
+            buffer.put((byte)0);
+        }
+        buffer.putInt(timestamp);
+    }
+    
+    /**
+     * Writes the entry list at <code>entryListOffset</code>, truncates the
+     * file after it, and updates the header. Both the folder set and the
+     * entry list are sorted in the same folder order, so the records are
+     * produced by a single merge pass over the two, into one buffer that is
+     * written with one positional write.
+     */
+    private void writeEntryList() throws IOException {
+        VPFolder[] folders = folderSet.toArray(new VPFolder[folderSet.size()]);
+        String[][] folderArrays = new String[folders.length][];
+        
+        // Count the records first so that the buffer can be sized exactly.
+        long recordCount = entryList.size();
+        String[] currentFolderArray = EMPTY_STRING_ARRAY;
+        for (int f = 0; f < folders.length; f++) {
+            folderArrays[f] = splitPath(folders[f]);
+            int depth = commonDepth(currentFolderArray, folderArrays[f]);
+            recordCount += (currentFolderArray.length - depth) + (folderArrays[f].length - depth);
+            currentFolderArray = folderArrays[f];
+        }
+        recordCount += currentFolderArray.length;
+        if (recordCount * 44L > Integer.MAX_VALUE) {
+            throw new IOException("Entry list is too large to be written.");
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int)recordCount * 44).order(ByteOrder.LITTLE_ENDIAN);
+        currentFolderArray = EMPTY_STRING_ARRAY;
+        int entryIndex = 0;
+        for (int f = 0; f < folders.length; f++) {
+            String[] nextFolderArray = folderArrays[f];
+            int depth = commonDepth(currentFolderArray, nextFolderArray);
+            for (int j = depth; j < currentFolderArray.length; j++) {
+                putRecord(buffer, 0L, 0L, "..", 0);
+            }
+            for (int j = depth; j < nextFolderArray.length; j++) {
+                putRecord(buffer, 0L, 0L, nextFolderArray[j], 0);
+            }
+            
+            // Skip any entries whose folder is missing from the folder set,
+            // then write the entries that belong to this folder.
+            while (entryIndex < entryList.size() && entryList.get(entryIndex).folder.compareTo(folders[f]) < 0) {
+                entryIndex++;
+            }
+            while (entryIndex < entryList.size() && entryList.get(entryIndex).folder.equals(folders[f])) {
+                VPEntry entry = entryList.get(entryIndex++);
+                putRecord(buffer, entry.offset, entry.size, entry.name, entry.timestamp);
+            }
+            
+            currentFolderArray = nextFolderArray;
+        }
+        for (int j = 0; j < currentFolderArray.length; j++) {
+            putRecord(buffer, 0L, 0L, "..", 0);
+        }
+        
+        // Records for skipped entries were counted but not written.
+        buffer.flip();
+        long entryListSize = buffer.limit() / 44;
+        
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, entryListOffset + buffer.position());
+        }
+        file.setLength(entryListOffset + buffer.limit());
+        
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt((int)Math.min(Math.max(0L, entryListOffset), 0xffffffffL));
+        header.putInt((int)entryListSize);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, 8L + header.position());
+        }
+    }
+    
+    /**
+     * Returns the channel of the underlying file, for positional transfers by
+     * other classes in this package.
+     */
+    FileChannel getChannel() throws IOException {
+        if (!isOpen) {
+            throw new IOException("VP file has already been closed.");
+        }
+        return file.getChannel();
+    }
+    
+    /**
+     * Returns the current 32-bit Unix time. If the current time cannot be
+     * represented by 32-bit Unix time (that is, if the current date is earlier
+     * than December 12, 1901 or later than January 18, 2038), then the
+     * returned value is capped, without overflow, at the bounds of the 32-bit
+     * Unix time range, provided that the value returned by Java's
+     * {@link System#currentTimeMillis()} method is accurate.
+     * 
+     * @return current 32-bit Unix time
+     */
+    public static int getCurrentUnixTime() {
+        // Convert the current Java time to seconds and cap it at the signed 32-bit integer range.
+        long longUnixTime = System.currentTimeMillis() / 1000;
+        return (int)Math.min(Math.max(Integer.MIN_VALUE, longUnixTime), Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Returns the last-modified time of the given file as 32-bit Unix time,
+     * capped in the same way as {@link #getCurrentUnixTime()}.
+     */
+    private static int getUnixTime(File file) {
+        long longUnixTime = file.lastModified() / 1000;
+        return (int)Math.min(Math.max(Integer.MIN_VALUE, longUnixTime), Integer.MAX_VALUE);
+    }
+    
+    
+    /**
+     *
+     * @author Ryan Sakowski
+     */
+    public class VPEntry implements Comparable<VPEntry> {
+        
+        private long offset;
+        private final long size;
+        private final VPFolder folder;
+        private final String name;
+        private final String nameLowercase;
+        private final String fullPath;
+        private final String fullPathLowercase;
+        private final int timestamp;
+        
+        private VPEntry(long offset, long size, VPFolder folder, String name, int timestamp) {
+            this.offset = offset;
+            this.size = size;
+            this.folder = folder;
+            this.name = name;
+            this.nameLowercase = this.name.toLowerCase(Locale.ENGLISH);
+            if (folder.path.length() == 0) {
+                fullPath = name;
+            } else {
+                fullPath = folder.path + "\\" + name;
+            }
+            this.fullPathLowercase = this.fullPath.toLowerCase(Locale.ENGLISH);
+            this.timestamp = timestamp;
+        }
+        
+        public long getOffset() {
+            return offset;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public String getFullPath() {
+            return fullPath;
+        }
+        
+        public VPFolder getFolder() {
+            return folder;
+        }
+        
+        public int getTimestamp() {
+            return timestamp;
         }
         
         @Override
@@ -830,7 +1684,7 @@ public class VPFile implements Closeable {
                     && timestamp == entry2.timestamp
                     && size == entry2.size;
         }
-
+        
         @Override
         public int hashCode() {
             int hash = 7;
@@ -841,6 +1695,50 @@ public class VPFile implements Closeable {
         }
     }
     
+    /**
+     * Compares two lowercase folder paths in the order in which folders, and
+     * so their entries, are kept in the entry list. The root folder comes
+     * last.
+     */
+    static int compareFolderPaths(String path1, String path2) {
+        int path1Length = path1.length();
+        int path2Length = path2.length();
+        int minLength = Math.min(path1Length, path2Length);
+        
+        if (path1Length == 0) {
+            if (path2Length == 0) {
+                return 0;
+            } else {
+                return 1;
+            }
+        } else {
+            if (path2Length == 0) {
+                return -1;
+            }
+        }
+        
+        int i = 0;
+        for ( ; i < minLength; i++) {
+            char ch1 = path1.charAt(i);
+            char ch2 = path2.charAt(i);
+            if (ch1 == '\\' && ch2 != '\\') {
+                return -1;
+            } else if (ch1 != '\\' && ch2 == '\\') {
+                return 1;
+            } else if (ch1 != ch2) {
+                return ch1 - ch2;
+            }
+        }
+        
+        if (i < path1Length && path1.charAt(i) == '\\') {
+            return -1;
+        } else if (i < path2Length && path2.charAt(i) == '\\') {
+            return 1;
+        } else {
+            return path1Length - path2Length;
+        }
+    }
+    
     /**
      *
      * @author Ryan Sakowski
@@ -894,43 +1792,7 @@ public class VPFile implements Closeable {
             if (this == o) {
                 return 0;
             }
-            
-            int path1Length = pathLowercase.length();
-            int path2Length = o.pathLowercase.length();
-            int minLength = Math.min(path1Length, path2Length);
-            
-            if (path1Length == 0) {
-                if (path2Length == 0) {
-                    return 0;
-                } else {
-                    return 1;
-                }
-            } else {
-                if (path2Length == 0) {
-                    return -1;
-                }
-            }
-            
-            int i = 0;
-            for ( ; i < minLength; i++) {
-                char ch1 = pathLowercase.charAt(i);
-                char ch2 = o.pathLowercase.charAt(i);
-                if (ch1 == '\\' && ch2 != '\\') {
-                    return -1;
-                } else if (ch1 != '\\' && ch2 == '\\') {
-                    return 1;
-                } else if (ch1 != ch2) {
-                    return ch1 - ch2;
-                }
-            }
-            
-            if (i < path1Length && pathLowercase.charAt(i) == '\\') {
-                return -1;
-            } else if (i < path2Length && o.pathLowercase.charAt(i) == '\\') {
-                return 1;
-            } else {
-                return pathLowercase.length() - o.pathLowercase.length();
-            }
+            return compareFolderPaths(pathLowercase, o.pathLowercase);
         }
         
         @Override
@@ -944,7 +1806,7 @@ public class VPFile implements Closeable {
             
             return pathLowercase.equals(((VPFolder)o).pathLowercase);
         }
-
+        
         @Override
         public int hashCode() {
             int hash = 7;
@@ -959,15 +1821,46 @@ public class VPFile implements Closeable {
      */
     public class VPEntryInputStream extends InputStream {
         
+        private final VPEntry entry;
+        private long position = 0L;
         private long markPosition = -1;
-        private final long startLimit;
-        private final long endLimit;
         private boolean isOpen = true;
         
-        private VPEntryInputStream(VPEntry entry) throws IOException {
-            startLimit = entry.offset;
-            endLimit = entry.offset + entry.size;
-            file.seek(entry.offset);
+        /** Block table of the entry, or null if the entry is read as stored. */
+        private final LZ41.Layout layout;
+        
+        /** Number of bytes this stream can read. */
+        private final long length;
+        
+        /** Buffers for the compressed and decompressed current block. */
+        private byte[] compressedBlock;
+        private byte[] block;
+        
+        /** Index of the block in <code>block</code>, or -1 if none. */
+        private int blockIndex = -1;
+        
+        /** Buffer for single-byte reads of entries read as stored. */
+        private final byte[] singleByte = new byte[1];
+        
+        private VPEntryInputStream(VPEntry entry, boolean raw) throws IOException {
+            this.entry = entry;
+            this.layout = raw ? null : LZ41.readLayout(VPFile.this, entry);
+            this.length = layout == null ? entry.size : layout.getOriginalSize();
+        }
+        
+        /**
+         * Tells whether this stream decompresses the entry it reads.
+         */
+        public boolean isDecompressing() {
+            return layout != null;
+        }
+        
+        /**
+         * Returns the total number of bytes this stream can read, which is
+         * the decompressed size of a compressed entry.
+         */
+        public long getLength() {
+            return length;
         }
         
         @Override
@@ -976,11 +1869,21 @@ public class VPFile implements Closeable {
                 throw new IOException("Stream has already been closed.");
             }
             
-            if (file.getFilePointer() < endLimit) {
-                return file.read();
-            } else {
-                return -1;
+            // Take the byte straight from the decompressed block.
+            if (layout != null) {
+                if (position >= length) {
+                    return -1;
+                }
+                int blockPosition = loadBlock();
+                position++;
+                return block[blockPosition] & 0xff;
             }
+            
+            int bytesRead;
+            do {
+                bytesRead = read(singleByte, 0, 1);
+            } while (bytesRead == 0);
+            return bytesRead < 0 ? -1 : singleByte[0] & 0xff;
         }
         
         @Override
@@ -997,14 +1900,53 @@ public class VPFile implements Closeable {
                 return 0;
             }
             
-            long bytesRemaining = endLimit - file.getFilePointer();
-            if (bytesRemaining <= 0L) {
-                return -1;
-            } else if (len <= bytesRemaining) {
-                return file.read(b, off, len);
+            int bytesRead;
+            if (layout == null) {
+                bytesRead = VPFile.this.read(entry, position, ByteBuffer.wrap(b, off, len));
             } else {
-                return file.read(b, off, (int)bytesRemaining);
+                bytesRead = readDecompressed(b, off, len);
+            }
+            if (bytesRead > 0) {
+                position += bytesRead;
+            }
+            return bytesRead;
+        }
+        
+        private int readDecompressed(byte[] b, int off, int len) throws IOException {
+            if (position >= length) {
+                return -1;
             }
+            int blockPosition = loadBlock();
+            int bytesToCopy = Math.min(len, layout.getBlockLength(blockIndex) - blockPosition);
+            System.arraycopy(block, blockPosition, b, off, bytesToCopy);
+            return bytesToCopy;
+        }
+        
+        /**
+         * Decompresses the block holding the current position, unless it is
+         * already in <code>block</code>, and returns the position within it.
+         */
+        private int loadBlock() throws IOException {
+            int index = (int)(position / layout.getBlockSize());
+            if (index != blockIndex) {
+                if (block == null) {
+                    compressedBlock = new byte[layout.getMaxCompressedLength()];
+                    block = new byte[layout.getBlockLength(0)];
+                }
+                blockIndex = -1;
+                layout.readBlock(VPFile.this, entry, index, compressedBlock, block);
+                blockIndex = index;
+            }
+            return (int)(position - (long)index * layout.getBlockSize());
+        }
+        
+        @Override
+        public int available() {
+            if (!isOpen) {
+                return 0;
+            }
+            
+            return (int)Math.min(length - position, Integer.MAX_VALUE);
         }
         
         @Override
@@ -1018,12 +1960,7 @@ public class VPFile implements Closeable {
                 return;
             }
             
-            try {
-                markPosition = file.getFilePointer();
-            } catch (IOException ex) {
-                // IOException cannot be thrown from this method, so suppress it here.
-                markPosition = -1;
-            }
+            markPosition = position;
         }
         
         @Override
@@ -1035,7 +1972,7 @@ public class VPFile implements Closeable {
                 return;
             }
             
-            file.seek(markPosition);
+            position = markPosition;
         }
         
         @Override
@@ -1044,14 +1981,13 @@ public class VPFile implements Closeable {
                 return 0L;
             }
             
-            long currentPosition = file.getFilePointer();
-            if (n > 0L && currentPosition < endLimit) {
-                long bytesToAdvance = Math.min(n, endLimit - currentPosition);
-                file.seek(currentPosition + bytesToAdvance);
+            if (n > 0L && position < length) {
+                long bytesToAdvance = Math.min(n, length - position);
+                position += bytesToAdvance;
                 return bytesToAdvance;
-            } else if (n < 0L && currentPosition > startLimit) {
-                long bytesToAdvance = Math.max(n, startLimit - currentPosition);
-                file.seek(currentPosition + bytesToAdvance);
+            } else if (n < 0L && position > 0L) {
+                long bytesToAdvance = Math.max(n, -position);
+                position += bytesToAdvance;
                 return bytesToAdvance;
             } else {
                 return 0L;
@@ -1065,36 +2001,47 @@ public class VPFile implements Closeable {
             }
             
             isOpen = false;
-            activeInputStream = null;
+            synchronized (VPFile.this) {
+                activeInputStreams.remove(this);
+            }
         }
     }
     
     /**
-     *
+     * Writes the data of a new entry. The data is appended to the VP file as
+     * it is written, and the entry is added when the stream is closed.
+     * 
      * @author Ryan Sakowski
      */
     public class VPEntryOutputStream extends OutputStream {
         
-        private final long endLimit;
+        private final VPEntry template;
+        private final long offset;
+        
+        /** Holds the data until the stream is closed if the entry will be compressed; otherwise null. */
+        private final ByteArrayOutputStream buffer;
+        
         private long bytesWritten;
-        private boolean isOpen;
+        private boolean isOpen = true;
+        private VPEntry entry = null;
+        
+        private VPEntryOutputStream(VPEntry template, long offset) {
+            this.template = template;
+            this.offset = offset;
+            this.buffer = compressingEntries ? new ByteArrayOutputStream() : null;
+        }
         
-        private VPEntryOutputStream(long endLimit) {
-            this.endLimit = endLimit;
+        /**
+         * Returns the entry that was added when this stream was closed, or
+         * null if the stream is still open or if nothing was written.
+         */
+        public VPEntry getEntry() {
+            return entry;
         }
         
         @Override
         public void write(int b) throws IOException {
-            if (!isOpen) {
-                throw new IOException("Stream has already been closed.");
-            }
-            
-            if (file.getFilePointer() < endLimit) {
-                file.write(b);
-                bytesWritten++;
-            } else {
-                throw new IOException("Size limit of VP file has been reached.");
-            }
+            write(new byte[] { (byte)b }, 0, 1);
         }
         
         @Override
@@ -1112,24 +2059,58 @@ public class VPFile implements Closeable {
                 return;
             }
             
-            if (file.getFilePointer() + len < endLimit) {
-                file.write(b, off, len);
-                bytesWritten += len;
-            } else {
+            if (offset + bytesWritten + len > 0xffffffffL) {
                 throw new IOException("Size limit of VP file has been reached.");
             }
+            if (buffer != null) {
+                buffer.write(b, off, len);
+            } else {
+                ByteBuffer data = ByteBuffer.wrap(b, off, len);
+                FileChannel channel = file.getChannel();
+                while (data.hasRemaining()) {
+                    channel.write(data, offset + bytesWritten + (data.position() - off));
+                }
+            }
+            bytesWritten += len;
         }
         
+        /**
+         * Closes this stream and adds the entry to the VP file. Nothing is
+         * added if nothing was written, since VP files cannot contain empty
+         * entries.
+         * 
+         * @throws IOException if an I/O error occurs
+         */
         @Override
-        public void close() {
+        public void close() throws IOException {
             if (!isOpen) {
                 return;
             }
             
             isOpen = false;
-            if (bytesWritten > 0) {
-                
+            synchronized (VPFile.this) {
+                activeOutputStream = null;
+            }
+            if (bytesWritten == 0L) {
+                return;
+            }
+            
+            long size;
+            if (buffer != null) {
+                size = appendCompressed(buffer.toByteArray(), buffer.size(), template.toString());
+            } else {
+                finishAppend(bytesWritten);
+                size = bytesWritten;
             }
+            entry = addEntryRecord(template.folder.path, template.name, offset, size, template.timestamp);
+        }
+        
+        /**
+         * Closes this stream without adding the entry. Whatever was written
+         * will be overwritten by the next entry that is appended.
+         */
+        private void abort() {
+            isOpen = false;
             activeOutputStream = null;
         }
     }
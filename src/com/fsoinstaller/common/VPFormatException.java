@@ -1,3 +1,5 @@
+package com.fsoinstaller.common;
+
 /**
  *
  * @author Ryan
@@ -0,0 +1,399 @@
+package com.fsoinstaller.common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tells which VP file, or which loose file, supplies each path for a stack of
+ * mod folders, following the engine's override order:
+ * <ol>
+ * <li>mod folders come first, in the order given, followed by the main
+ *     installation folder;</li>
+ * <li>within a folder, loose files under <code>data</code> override packed
+ *     files;</li>
+ * <li>within a folder, VP files are searched in alphabetical order, and the
+ *     first one that contains a path supplies it.</li>
+ * </ol>
+ * The entry lists of all VP files are read in parallel. The index can be saved
+ * and loaded again; when it is refreshed, only VP files whose size or
+ * last-modified time changed are read again.
+ */
+public class VPIndex {
+    
+    /** First 4 bytes of a saved index. */
+    private static final int INDEX_FILE_ID = 0x58495056;
+    
+    /** Version of the saved index format. */
+    private static final int INDEX_FILE_VERSION = 1;
+    
+    /** Name of the folder that holds loose files. */
+    private static final String DATA_FOLDER_NAME = "data";
+    
+    
+    /** Folders to search, highest priority first. */
+    private final List<File> searchFolders;
+    
+    /** Number of worker threads to use. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    
+    /** The entry lists of the VP files that have been read, keyed by canonical path. */
+    private final Map<String, ScannedVP> scannedVPs = new HashMap<String, ScannedVP>();
+    
+    /** Where each path comes from, keyed by lowercase path with backslashes. */
+    private Map<String, Location> locations = new HashMap<String, Location>();
+    
+    
+    /**
+     * Creates an empty index. Call {@link #refresh()} to fill it.
+     *
+     * @param installFolder the main installation folder
+     * @param modFolders names of the mod folders relative to the installation
+     *        folder, highest priority first, as they would be given to -mod
+     */
+    public VPIndex(File installFolder, List<String> modFolders) {
+        List<File> folders = new ArrayList<File>(modFolders.size() + 1);
+        for (String modFolder : modFolders) {
+            folders.add(new File(installFolder, modFolder));
+        }
+        folders.add(installFolder);
+        searchFolders = Collections.unmodifiableList(folders);
+    }
+    
+    /**
+     * Sets the number of threads used to read VP files. The default is the
+     * number of available processors.
+     *
+     * @param threadCount number of worker threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Returns the location that supplies the given path, or null if no VP
+     * file or loose file supplies it.
+     *
+     * @param path path relative to the mod root, such as
+     *        <code>data/tables/ships.tbl</code>; case and slashes don't matter
+     * @return the location of the path
+     */
+    public synchronized Location lookup(String path) {
+        return locations.get(normalize(path));
+    }
+    
+    /**
+     * Returns the number of distinct paths in this index.
+     */
+    public synchronized int size() {
+        return locations.size();
+    }
+    
+    /**
+     * Brings this index up to date with the files on disk. VP files whose
+     * size and last-modified time haven't changed since they were last read
+     * are not read again; loose files are always listed again.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void refresh() throws IOException {
+        // Find the VP files in every search folder and decide which of them
+        // need to be read.
+        List<List<File>> vpFilesByFolder = new ArrayList<List<File>>(searchFolders.size());
+        Map<String, File> staleVPs = new LinkedHashMap<String, File>();
+        Set<String> presentVPs = new HashSet<String>();
+        for (File folder : searchFolders) {
+            List<File> vpFiles = listVPFiles(folder);
+            vpFilesByFolder.add(vpFiles);
+            for (File vpFile : vpFiles) {
+                String key = vpFile.getCanonicalPath();
+                presentVPs.add(key);
+                ScannedVP scannedVP = scannedVPs.get(key);
+                if (scannedVP == null || scannedVP.size != vpFile.length() || scannedVP.lastModified != vpFile.lastModified()) {
+                    staleVPs.put(key, vpFile);
+                }
+            }
+        }
+        scannedVPs.keySet().retainAll(presentVPs);
+        
+        // Read the stale VP files and list the loose files at the same time.
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            Map<String, Future<ScannedVP>> vpFutures = new HashMap<String, Future<ScannedVP>>();
+            for (final Map.Entry<String, File> stale : staleVPs.entrySet()) {
+                vpFutures.put(stale.getKey(), executor.submit(new Callable<ScannedVP>() {
+                    public ScannedVP call() throws IOException {
+                        return scan(stale.getValue());
+                    }
+                }));
+            }
+            List<Future<Map<String, Location>>> looseFutures = new ArrayList<Future<Map<String, Location>>>(searchFolders.size());
+            for (final File folder : searchFolders) {
+                looseFutures.add(executor.submit(new Callable<Map<String, Location>>() {
+                    public Map<String, Location> call() throws IOException {
+                        Map<String, Location> looseFiles = new HashMap<String, Location>();
+                        listLooseFiles(new File(folder, DATA_FOLDER_NAME), DATA_FOLDER_NAME, looseFiles);
+                        return looseFiles;
+                    }
+                }));
+            }
+            
+            for (Map.Entry<String, Future<ScannedVP>> vpFuture : vpFutures.entrySet()) {
+                scannedVPs.put(vpFuture.getKey(), getResult(vpFuture.getValue()));
+            }
+            
+            // Merge everything in priority order; the first location found
+            // for a path wins.
+            Map<String, Location> newLocations = new HashMap<String, Location>(Math.max(16, locations.size() * 2));
+            for (int i = 0; i < searchFolders.size(); i++) {
+                for (Map.Entry<String, Location> looseFile : getResult(looseFutures.get(i)).entrySet()) {
+                    if (!newLocations.containsKey(looseFile.getKey())) {
+                        newLocations.put(looseFile.getKey(), looseFile.getValue());
+                    }
+                }
+                for (File vpFile : vpFilesByFolder.get(i)) {
+                    ScannedVP scannedVP = scannedVPs.get(vpFile.getCanonicalPath());
+                    for (Location location : scannedVP.entries) {
+                        String key = normalize(location.path);
+                        if (!newLocations.containsKey(key)) {
+                            newLocations.put(key, location);
+                        }
+                    }
+                }
+            }
+            locations = newLocations;
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Saves the entry lists of the VP files that have been read, so that a
+     * later {@link #load(File)} and {@link #refresh()} only need to read the
+     * VP files that have changed since.
+     *
+     * @param indexFile file to write
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void save(File indexFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(INDEX_FILE_ID);
+            out.writeInt(INDEX_FILE_VERSION);
+            out.writeInt(scannedVPs.size());
+            for (Map.Entry<String, ScannedVP> scanned : scannedVPs.entrySet()) {
+                ScannedVP scannedVP = scanned.getValue();
+                out.writeUTF(scanned.getKey());
+                out.writeLong(scannedVP.size);
+                out.writeLong(scannedVP.lastModified);
+                out.writeInt(scannedVP.entries.size());
+                for (Location location : scannedVP.entries) {
+                    out.writeUTF(location.path);
+                    out.writeLong(location.offset);
+                    out.writeLong(location.size);
+                    out.writeInt(location.timestamp);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Loads the entry lists saved by {@link #save(File)}. The loaded lists are
+     * only used for VP files that still have the same size and last-modified
+     * time; call {@link #refresh()} afterward to bring the index up to date.
+     *
+     * @param indexFile file to read
+     * @throws IOException if an I/O error occurs, or if the file is not a saved index
+     */
+    public synchronized void load(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_FILE_ID) {
+                throw new IOException(String.format("%s is not a VP index.", indexFile.getName()));
+            }
+            if (in.readInt() != INDEX_FILE_VERSION) {
+                throw new IOException(String.format("Format of %s is not %d.", indexFile.getName(), INDEX_FILE_VERSION));
+            }
+            
+            int vpCount = in.readInt();
+            for (int i = 0; i < vpCount; i++) {
+                String key = in.readUTF();
+                File vpFile = new File(key);
+                ScannedVP scannedVP = new ScannedVP(in.readLong(), in.readLong());
+                int entryCount = in.readInt();
+                for (int j = 0; j < entryCount; j++) {
+                    scannedVP.entries.add(new Location(vpFile, in.readUTF(), in.readLong(), in.readLong(), in.readInt()));
+                }
+                scannedVPs.put(key, scannedVP);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Reads the entry list of a single VP file.
+     */
+    private static ScannedVP scan(File file) throws IOException {
+        // Record the size and time before reading, so that a change made
+        // while the file is being read is picked up next time.
+        ScannedVP scannedVP = new ScannedVP(file.length(), file.lastModified());
+        VPEntryTable table;
+        try {
+            table = VPEntryTable.read(file);
+        } catch (VPFormatException vpfe) {
+            // The engine skips VP files it can't read, so do the same.
+            return scannedVP;
+        }
+        for (int i = 0; i < table.size(); i++) {
+            scannedVP.entries.add(new Location(file, table.getPath(i), table.getOffset(i), table.getSize(i), table.getTimestamp(i)));
+        }
+        return scannedVP;
+    }
+    
+    /**
+     * Returns the VP files directly inside the given folder, in the order in
+     * which they are searched.
+     */
+    private static List<File> listVPFiles(File folder) {
+        File[] files = folder.listFiles();
+        List<File> vpFiles = new ArrayList<File>();
+        if (files == null) {
+            return vpFiles;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().toLowerCase(Locale.ENGLISH).endsWith(".vp")) {
+                vpFiles.add(file);
+            }
+        }
+        Collections.sort(vpFiles, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return f1.getName().compareToIgnoreCase(f2.getName());
+            }
+        });
+        return vpFiles;
+    }
+    
+    /**
+     * Adds every loose file under the given folder to the map.
+     */
+    private static void listLooseFiles(File folder, String path, Map<String, Location> looseFiles) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String filePath = path + "\\" + file.getName();
+            if (file.isDirectory()) {
+                listLooseFiles(file, filePath, looseFiles);
+            } else {
+                long unixTime = file.lastModified() / 1000L;
+                int timestamp = (int)Math.min(Math.max(Integer.MIN_VALUE, unixTime), Integer.MAX_VALUE);
+                looseFiles.put(normalize(filePath), new Location(file, filePath, -1L, file.length(), timestamp));
+            }
+        }
+    }
+    
+    private static String normalize(String path) {
+        return path.replace('/', '\\').replaceAll("^\\\\+", "").toLowerCase(Locale.ENGLISH);
+    }
+    
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException)ee.getCause();
+            }
+            throw (IOException)new IOException("Unable to index VP files.").initCause(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Thread was interrupted while indexing VP files.");
+        }
+    }
+    
+    
+    /**
+     * Where the data for a path comes from: either an entry of a VP file or a
+     * loose file.
+     */
+    public static class Location {
+        
+        private final File file;
+        private final String path;
+        private final long offset;
+        private final long size;
+        private final int timestamp;
+        
+        private Location(File file, String path, long offset, long size, int timestamp) {
+            this.file = file;
+            this.path = path;
+            this.offset = offset;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+        
+        /**
+         * Returns the VP file that contains the entry, or the loose file itself.
+         */
+        public File getFile() {
+            return file;
+        }
+        
+        /**
+         * Returns the path of the data, relative to the mod root, with its
+         * original case.
+         */
+        public String getPath() {
+            return path;
+        }
+        
+        /**
+         * Tells whether the data is an entry of a VP file rather than a loose file.
+         */
+        public boolean isPacked() {
+            return offset >= 0L;
+        }
+        
+        /**
+         * Returns the location of the data in the VP file, or -1 for a loose file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public int getTimestamp() {
+            return timestamp;
+        }
+        
+        @Override
+        public String toString() {
+            return isPacked() ? file.getName() + ": " + path : file.getPath();
+        }
+    }
+    
+    /**
+     * The entry list of one VP file, along with the size and last-modified
+     * time the file had when it was read.
+     */
+    private static class ScannedVP {
+        
+        private final long size;
+        private final long lastModified;
+        private final List<Location> entries = new ArrayList<Location>();
+        
+        private ScannedVP(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
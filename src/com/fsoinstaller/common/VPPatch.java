@@ -0,0 +1,1028 @@
+package com.fsoinstaller.common;
+
+import io.sigpipe.jbsdiff.DefaultDiffSettings;
+import io.sigpipe.jbsdiff.Diff;
+import io.sigpipe.jbsdiff.DiffSettings;
+import io.sigpipe.jbsdiff.InvalidHeaderException;
+import io.sigpipe.jbsdiff.Patch;
+import io.sigpipe.jbsdiff.SAISDiffSettings;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/**
+ * Creates and applies patches between two versions of a VP file one entry at
+ * a time, so that patching never needs more memory than the largest entry.
+ * <p>
+ * A VP patch is itself a VP file. Its manifest, <code>vppatch.txt</code>,
+ * describes every region of the new VP file in order of offset: entries that
+ * are unchanged, even if they were renamed or moved, are copied from the old
+ * VP file, entries that changed are rebuilt from a bsdiff delta against the
+ * old entry, and new entries, the header and the entry list are stored
+ * compressed. Entries of the old VP
+ * file that no longer exist are listed as deleted. Every rebuilt region is
+ * checked against an MD5 digest before it is written.
+ * <p>
+ * {@link #apply(File, File, File)} reproduces the new VP file byte for byte,
+ * so a whole-file hash of the result can be checked as with any other patch.
+ * {@link #applyInPlace(File, File)} updates the old VP file through
+ * {@link VPFile}'s incremental operations instead; its entries match the new
+ * VP file, but its layout does not.
+ */
+public class VPPatch {
+    
+    /** Patch type used in mod files for patches created by this class. */
+    public static final String PATCH_TYPE = "vp";
+    
+    /** Name of the manifest entry in a VP patch. */
+    private static final String MANIFEST_NAME = "vppatch.txt";
+    
+    /** First field of the first line of the manifest. */
+    private static final String MANIFEST_ID = "VPPATCH";
+    
+    /** Version of the manifest format. */
+    private static final int MANIFEST_VERSION = 1;
+    
+    /** Charset of the manifest; the same as that of VP entry names. */
+    private static final String MANIFEST_CHARSET_NAME = "ISO-8859-1";
+    
+    /** Algorithm of the per-entry digests. */
+    private static final String DIGEST_ALGORITHM = "MD5";
+    
+    /** Size of the buffer used to copy and digest entry data. */
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    
+    /** Number of worker threads to use. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    
+    /** Whether suffixes are sorted with SA-IS rather than qsufsort when diffing entries. */
+    private boolean sortingWithSAIS = false;
+    
+    /** Listeners to notify of progress. */
+    private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<ProgressListener>();
+    
+    /** Total number of bytes of the current operation. */
+    private volatile long totalBytes = 0L;
+    
+    /** Number of bytes processed so far. */
+    private final AtomicLong bytesProcessed = new AtomicLong();
+    
+    
+    /**
+     * Sets the number of threads used to diff or patch entries. The default
+     * is the number of available processors.
+     *
+     * @param threadCount number of worker threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+    
+    /**
+     * Sets whether entries are diffed with {@link SAISDiffSettings} rather
+     * than the default qsufsort. The deltas are the same either way; SA-IS
+     * is faster and needs less memory for large entries.
+     */
+    public void setSortingWithSAIS(boolean sortingWithSAIS) {
+        this.sortingWithSAIS = sortingWithSAIS;
+    }
+    
+    public void addProgressListener(ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+    
+    public void removeProgressListener(ProgressListener listener) {
+        progressListeners.remove(listener);
+    }
+    
+    /**
+     * Tells whether the given file is a VP patch.
+     *
+     * @param file file to check
+     * @return true if the file is a VP file containing a VP patch manifest
+     */
+    public static boolean isPatch(File file) {
+        try {
+            VPFile vpFile = new VPFile(file, "r");
+            try {
+                vpFile.getEntry(MANIFEST_NAME);
+                return true;
+            } finally {
+                vpFile.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        } catch (VPFormatException vpfe) {
+            return false;
+        }
+    }
+    
+    /**
+     * Creates a patch that turns <code>oldFile</code> into
+     * <code>newFile</code>. Entries are diffed in parallel.
+     *
+     * @param oldFile the old VP file
+     * @param newFile the new VP file
+     * @param patchFile the patch to create; it must not exist
+     * @param compressorType compressor used for deltas and stored data, one of
+     *        {@link CompressorStreamFactory#SUPPORTED_TYPES}
+     * @throws IOException if an I/O error occurs, or if either file is not a valid VP file
+     */
+    public void generate(File oldFile, File newFile, File patchFile, final String compressorType) throws IOException {
+        if (patchFile.exists()) {
+            throw new IllegalArgumentException("Patch file must not exist!");
+        }
+        
+        final VPFile oldVP = openVP(oldFile, "r");
+        final VPFile newVP = openVP(newFile, "r");
+        final File workFolder = new File(patchFile.getPath() + ".parts");
+        try {
+            if (!workFolder.mkdirs()) {
+                throw new IOException(String.format("Unable to create folder %s.", workFolder));
+            }
+            
+            Map<String, VPFile.VPEntry> oldEntries = new HashMap<String, VPFile.VPEntry>();
+            for (VPFile.VPEntry entry : oldVP.getEntryList()) {
+                oldEntries.put(entry.getFullPath().toLowerCase(Locale.ENGLISH), entry);
+            }
+            
+            // Describe every region of the new file, in order. Anything that
+            // isn't an entry's data, such as the header and the entry list,
+            // is stored as is.
+            List<Operation> operations = new ArrayList<Operation>();
+            final Map<Operation, VPFile.VPEntry> newEntryOf = new HashMap<Operation, VPFile.VPEntry>();
+            final Map<Operation, VPFile.VPEntry> oldEntryOf = new HashMap<Operation, VPFile.VPEntry>();
+            long coveredEnd = 0L;
+            for (VPFile.VPEntry entry : sortByOffset(newVP.getEntryList())) {
+                if (entry.getOffset() > coveredEnd) {
+                    operations.add(Operation.raw(coveredEnd, entry.getOffset() - coveredEnd));
+                }
+                coveredEnd = Math.max(coveredEnd, entry.getOffset() + entry.getSize());
+                
+                Operation operation = Operation.entry(entry.getOffset(), entry.getSize(), entry.getTimestamp(), entry.getFullPath());
+                operations.add(operation);
+                newEntryOf.put(operation, entry);
+                VPFile.VPEntry oldEntry = oldEntries.remove(entry.getFullPath().toLowerCase(Locale.ENGLISH));
+                if (oldEntry != null) {
+                    oldEntryOf.put(operation, oldEntry);
+                }
+            }
+            long newLength = newFile.length();
+            if (newLength > coveredEnd) {
+                operations.add(Operation.raw(coveredEnd, newLength - coveredEnd));
+            }
+            for (VPFile.VPEntry oldEntry : oldVP.getEntryList()) {
+                if (oldEntries.containsKey(oldEntry.getFullPath().toLowerCase(Locale.ENGLISH))) {
+                    operations.add(Operation.delete(oldEntry.getFullPath()));
+                }
+            }
+            
+            // An entry that was renamed or moved is copied from its old path
+            // rather than stored again, so the old entries that are deleted
+            // are the candidates, matched by size and then by digest.
+            final Map<Long, List<VPFile.VPEntry>> deletedBySize = new HashMap<Long, List<VPFile.VPEntry>>();
+            for (VPFile.VPEntry oldEntry : oldEntries.values()) {
+                List<VPFile.VPEntry> sameSize = deletedBySize.get(oldEntry.getSize());
+                if (sameSize == null) {
+                    sameSize = new ArrayList<VPFile.VPEntry>();
+                    deletedBySize.put(oldEntry.getSize(), sameSize);
+                }
+                sameSize.add(oldEntry);
+            }
+            final Map<VPFile.VPEntry, String> deletedDigests = new ConcurrentHashMap<VPFile.VPEntry, String>();
+            
+            final DiffSettings diffSettings = sortingWithSAIS ? new SAISDiffSettings(compressorType) : new DefaultDiffSettings(compressorType);
+            startProgress(newLength);
+            final RandomAccessFile newRaf = new RandomAccessFile(newFile, "r");
+            try {
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(operations.size());
+                for (int i = 0; i < operations.size(); i++) {
+                    final Operation operation = operations.get(i);
+                    final File part = new File(workFolder, Integer.toString(i));
+                    if (operation.type == Type.RAW) {
+                        operation.source = "raw" + "\\" + i;
+                        tasks.add(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                operation.digest = compressRegion(newRaf.getChannel(), operation.offset, operation.size, part, compressorType);
+                                addProgress(operation.size);
+                                return null;
+                            }
+                        });
+                    } else if (operation.type != Type.DELETE) {
+                        final String partName = "\\" + i;
+                        tasks.add(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                VPFile.VPEntry newEntry = newEntryOf.get(operation);
+                                VPFile.VPEntry oldEntry = oldEntryOf.get(operation);
+                                if (oldEntry == null) {
+                                    oldEntry = findRenamedEntry(oldVP, newVP, newEntry, deletedBySize.get(newEntry.getSize()), deletedDigests);
+                                }
+                                diffEntry(operation, oldVP, oldEntry, newVP, newEntry, part, partName, compressorType, diffSettings);
+                                addProgress(operation.size);
+                                return null;
+                            }
+                        });
+                    }
+                }
+                runAll(tasks, "Unable to generate VP patch.");
+            } finally {
+                newRaf.close();
+            }
+            
+            // Pack the manifest and the parts into the patch.
+            File manifest = new File(workFolder, MANIFEST_NAME);
+            writeManifest(manifest, newLength, operations);
+            VPBuilder builder = new VPBuilder();
+            builder.setThreadCount(threadCount);
+            builder.addFile(MANIFEST_NAME, manifest);
+            for (int i = 0; i < operations.size(); i++) {
+                Operation operation = operations.get(i);
+                if (operation.type == Type.RAW || operation.type == Type.PATCH || operation.type == Type.ADD) {
+                    builder.addFile(operation.source, new File(workFolder, Integer.toString(i)));
+                }
+            }
+            builder.build(patchFile);
+        } finally {
+            oldVP.close();
+            newVP.close();
+            File[] parts = workFolder.listFiles();
+            if (parts != null) {
+                for (File part : parts) {
+                    part.delete();
+                }
+            }
+            workFolder.delete();
+        }
+    }
+    
+    /**
+     * Estimates the memory that {@link #apply(File, File, File)} needs for
+     * the given patch. Every worker holds at most one entry at a time, so
+     * this is the need of the largest entry times the number of workers.
+     *
+     * @param oldFile the VP file to patch
+     * @param patchFile the patch
+     * @return estimated number of bytes
+     * @throws IOException if an I/O error occurs, or if either file is invalid
+     */
+    public long estimateMemory(File oldFile, File patchFile) throws IOException {
+        VPFile oldVP = openVP(oldFile, "r");
+        VPFile patchVP = openVP(patchFile, "r");
+        try {
+            List<Operation> operations = new ArrayList<Operation>();
+            readManifest(patchVP, operations);
+            
+            Patch patch = new Patch();
+            patch.setReadingAhead(false);
+            long largest = 0L;
+            int taskCount = 0;
+            for (Operation operation : operations) {
+                long need;
+                if (operation.type == Type.DELETE) {
+                    continue;
+                } else if (operation.type == Type.PATCH) {
+                    // the old entry, the patch, and the new entry twice, since it is copied out of its stream
+                    long oldSize = oldVP.getEntry(operation.target).getSize();
+                    long patchSize = patchVP.getEntry(operation.source).getSize();
+                    need = oldSize + patchSize + 2 * operation.size + patch.estimateMemory(operation.size);
+                } else if (operation.type == Type.COPY) {
+                    need = BUFFER_SIZE;
+                } else {
+                    need = BUFFER_SIZE + Patch.SECTION_MEMORY;
+                }
+                largest = Math.max(largest, need);
+                taskCount++;
+            }
+            return largest * Math.min(threadCount, Math.max(1, taskCount));
+        } finally {
+            oldVP.close();
+            patchVP.close();
+        }
+    }
+    
+    /**
+     * Applies a patch to <code>oldFile</code>, writing the patched VP file to
+     * <code>newFile</code>. Entries are patched in parallel, and each one is
+     * written straight to its location in the new file.
+     *
+     * @param oldFile the VP file to patch
+     * @param patchFile the patch
+     * @param newFile the file to write; it must not exist
+     * @throws IOException if an I/O error occurs, if either file is invalid,
+     *         or if any entry fails verification
+     */
+    public void apply(File oldFile, File patchFile, File newFile) throws IOException {
+        if (newFile.exists()) {
+            throw new IllegalArgumentException("Target file must not exist!");
+        }
+        
+        final VPFile oldVP = openVP(oldFile, "r");
+        final VPFile patchVP = openVP(patchFile, "r");
+        boolean complete = false;
+        try {
+            List<Operation> operations = new ArrayList<Operation>();
+            long newLength = readManifest(patchVP, operations);
+            startProgress(newLength);
+            
+            RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw");
+            try {
+                newRaf.setLength(newLength);
+                final FileChannel newChannel = newRaf.getChannel();
+                
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(operations.size());
+                for (final Operation operation : operations) {
+                    if (operation.type == Type.DELETE) {
+                        continue;
+                    }
+                    final VPFile.VPEntry oldEntry = operation.type == Type.COPY ? oldVP.getEntry(operation.source)
+                            : operation.type == Type.PATCH ? oldVP.getEntry(operation.target) : null;
+                    tasks.add(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            if (operation.type == Type.COPY) {
+                                copyEntry(operation, oldVP, oldEntry, newChannel);
+                            } else if (operation.type == Type.PATCH) {
+                                writeFully(newChannel, ByteBuffer.wrap(patchEntry(operation, oldVP, oldEntry, patchVP)), operation.offset);
+                                addProgress(operation.size);
+                            } else {
+                                expandEntry(operation, patchVP, newChannel);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                runAll(tasks, "Unable to apply VP patch.");
+            } finally {
+                newRaf.close();
+            }
+            complete = true;
+        } finally {
+            oldVP.close();
+            patchVP.close();
+            if (!complete) {
+                newFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Applies a patch to the given VP file in place, using
+     * {@link VPFile#replaceEntry(VPFile.VPEntry, InputStream, int)} and the
+     * related operations. Unchanged entries are not touched, so this costs
+     * roughly the size of the changes, but the resulting file is not
+     * byte-identical to the one the patch was created from. The file is
+     * compacted afterward if that leaves too much dead space.
+     * <p>
+     * Entries are patched in parallel, but updated in the order of the
+     * manifest. If an entry fails verification, the entries that were already
+     * updated keep their new contents.
+     *
+     * @param vpFile the VP file to patch
+     * @param patchFile the patch
+     * @throws IOException if an I/O error occurs, if either file is invalid,
+     *         or if any entry fails verification
+     */
+    public void applyInPlace(File vpFile, File patchFile) throws IOException {
+        final VPFile vp = openVP(vpFile, "rw");
+        final VPFile patchVP = openVP(patchFile, "r");
+        try {
+            List<Operation> operations = new ArrayList<Operation>();
+            readManifest(patchVP, operations);
+            long total = 0L;
+            for (Operation operation : operations) {
+                if (operation.type == Type.PATCH || operation.type == Type.ADD) {
+                    total += operation.size;
+                }
+            }
+            startProgress(total);
+            
+            // Entries are produced by the workers but the VP file is only
+            // changed from this thread; a bounded window of pending entries
+            // keeps the memory use proportional to the number of threads.
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                LinkedList<Operation> pendingOperations = new LinkedList<Operation>();
+                LinkedList<Future<byte[]>> pendingData = new LinkedList<Future<byte[]>>();
+                Iterator<Operation> it = operations.iterator();
+                while (it.hasNext() || !pendingData.isEmpty()) {
+                    while (it.hasNext() && pendingData.size() < threadCount * 2) {
+                        final Operation operation = it.next();
+                        if (operation.type != Type.PATCH && operation.type != Type.ADD) {
+                            continue;
+                        }
+                        final VPFile.VPEntry oldEntry = operation.type == Type.PATCH ? vp.getEntry(operation.target) : null;
+                        pendingOperations.add(operation);
+                        pendingData.add(executor.submit(new Callable<byte[]>() {
+                            public byte[] call() throws IOException {
+                                byte[] data = operation.type == Type.PATCH ? patchEntry(operation, vp, oldEntry, patchVP) : readStoredEntry(operation, patchVP);
+                                addProgress(operation.size);
+                                return data;
+                            }
+                        }));
+                    }
+                    if (pendingData.isEmpty()) {
+                        break;
+                    }
+                    
+                    Operation operation = pendingOperations.removeFirst();
+                    byte[] data = getResult(pendingData.removeFirst(), "Unable to apply VP patch.");
+                    VPFile.VPEntry existingEntry = findEntry(vp, operation.target);
+                    if (existingEntry != null) {
+                        vp.replaceEntry(existingEntry, new ByteArrayInputStream(data), operation.timestamp);
+                    } else {
+                        vp.addEntry(operation.target, new ByteArrayInputStream(data), operation.timestamp);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            
+            // Entries that were renamed are copied before their old paths are
+            // deleted.
+            for (Operation operation : operations) {
+                if (operation.type == Type.COPY && !operation.source.equalsIgnoreCase(operation.target)) {
+                    VPFile.VPEntry oldEntry = vp.getEntry(operation.source);
+                    VPFile.VPEntryInputStream in = vp.openRawEntry(oldEntry);
+                    byte[] data;
+                    try {
+                        data = readFully(in, operation.size);
+                    } finally {
+                        in.close();
+                    }
+                    checkDigest(operation, digest(data), operation.digest);
+                    VPFile.VPEntry existingEntry = findEntry(vp, operation.target);
+                    if (existingEntry != null) {
+                        vp.deleteEntry(existingEntry);
+                    }
+                    vp.addEntry(operation.target, new ByteArrayInputStream(data), operation.timestamp);
+                }
+            }
+            for (Operation operation : operations) {
+                if (operation.type == Type.DELETE) {
+                    VPFile.VPEntry oldEntry = findEntry(vp, operation.target);
+                    if (oldEntry != null) {
+                        vp.deleteEntry(oldEntry);
+                    }
+                }
+            }
+            
+            vp.compact();
+        } finally {
+            patchVP.close();
+            vp.close();
+        }
+    }
+    
+    /**
+     * Returns the deleted old entry with the same data as the given new
+     * entry, or null if there is none. Digests of the candidates are kept in
+     * <code>digests</code>, which is shared by all workers.
+     */
+    private static VPFile.VPEntry findRenamedEntry(VPFile oldVP, VPFile newVP, VPFile.VPEntry newEntry,
+            List<VPFile.VPEntry> candidates, Map<VPFile.VPEntry, String> digests) throws IOException {
+        if (candidates == null) {
+            return null;
+        }
+        String newDigest = digest(newVP, newEntry);
+        for (VPFile.VPEntry candidate : candidates) {
+            String candidateDigest = digests.get(candidate);
+            if (candidateDigest == null) {
+                candidateDigest = digest(oldVP, candidate);
+                digests.put(candidate, candidateDigest);
+            }
+            if (candidateDigest.equals(newDigest)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Decides how a single entry of the new VP file is stored in the patch,
+     * and writes its part.
+     */
+    private static void diffEntry(Operation operation, VPFile oldVP, VPFile.VPEntry oldEntry, VPFile newVP,
+            VPFile.VPEntry newEntry, File part, String partName, String compressorType, DiffSettings diffSettings) throws IOException {
+        operation.digest = digest(newVP, newEntry);
+        
+        if (oldEntry == null) {
+            operation.type = Type.ADD;
+            operation.source = "add" + partName;
+            compressRegion(newVP.getChannel(), newEntry.getOffset(), newEntry.getSize(), part, compressorType);
+            return;
+        }
+        
+        String oldDigest = digest(oldVP, oldEntry);
+        if (oldDigest.equals(operation.digest) && oldEntry.getSize() == newEntry.getSize()) {
+            operation.type = Type.COPY;
+            operation.source = oldEntry.getFullPath();
+            return;
+        }
+        
+        operation.type = Type.PATCH;
+        operation.source = "patch" + partName;
+        operation.oldDigest = oldDigest;
+        byte[] oldBytes = readEntry(oldVP, oldEntry);
+        byte[] newBytes = readEntry(newVP, newEntry);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(part));
+        try {
+            new Diff().diff(oldBytes, newBytes, out, diffSettings);
+        } catch (CompressorException ce) {
+            IOException ioe = new IOException("There was a problem creating the compressor");
+            ioe.initCause(ce);
+            throw ioe;
+        } catch (InvalidHeaderException ihe) {
+            IOException ioe = new IOException("Invalid header in patch file");
+            ioe.initCause(ihe);
+            throw ioe;
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Compresses a region of a file into the given part, and returns the
+     * digest of the uncompressed region.
+     */
+    private static String compressRegion(FileChannel channel, long offset, long size, File part, String compressorType) throws IOException {
+        MessageDigest digest = newDigest();
+        OutputStream out;
+        try {
+            out = new CompressorStreamFactory().createCompressorOutputStream(compressorType, new BufferedOutputStream(new FileOutputStream(part)));
+        } catch (CompressorException ce) {
+            IOException ioe = new IOException("There was a problem creating the compressor");
+            ioe.initCause(ce);
+            throw ioe;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(BUFFER_SIZE, size));
+            for (long position = 0L; position < size; ) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), size - position));
+                readFully(channel, buffer, offset + position);
+                digest.update(buffer.array(), 0, buffer.limit());
+                out.write(buffer.array(), 0, buffer.limit());
+                position += buffer.limit();
+            }
+        } finally {
+            out.close();
+        }
+        return toHex(digest.digest());
+    }
+    
+    /**
+     * Copies an unchanged entry from the old VP file to its location in the
+     * new one, verifying it along the way.
+     */
+    private void copyEntry(Operation operation, VPFile oldVP, VPFile.VPEntry oldEntry, FileChannel newChannel) throws IOException {
+        if (oldEntry.getSize() != operation.size) {
+            throw new IOException(String.format("%s does not match the entry in the patch.", oldEntry));
+        }
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(BUFFER_SIZE, operation.size));
+        for (long position = 0L; position < operation.size; ) {
+            buffer.clear();
+            while (buffer.hasRemaining() && oldVP.read(oldEntry, position + buffer.position(), buffer) >= 0) {
+                // keep reading until the buffer is full or the entry ends
+            }
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                throw new EOFException();
+            }
+            digest.update(buffer.array(), 0, buffer.limit());
+            writeFully(newChannel, buffer, operation.offset + position);
+            position += buffer.limit();
+            addProgress(buffer.limit());
+        }
+        checkDigest(operation, toHex(digest.digest()), operation.digest);
+    }
+    
+    /**
+     * Rebuilds a changed entry from the old entry and its delta, and returns
+     * the verified data.
+     */
+    private static byte[] patchEntry(Operation operation, VPFile oldVP, VPFile.VPEntry oldEntry, VPFile patchVP) throws IOException {
+        byte[] oldBytes = readEntry(oldVP, oldEntry);
+        checkDigest(operation, digest(oldBytes), operation.oldDigest);
+        byte[] patchBytes = readEntry(patchVP, patchVP.getEntry(operation.source));
+        
+        // entries are already patched on a pool of workers, so don't start read-ahead threads for each one
+        Patch patch = new Patch();
+        patch.setReadingAhead(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int)operation.size);
+        try {
+            patch.patch(oldBytes, patchBytes, out);
+        } catch (CompressorException ce) {
+            IOException ioe = new IOException("There was a problem creating the compressor");
+            ioe.initCause(ce);
+            throw ioe;
+        } catch (InvalidHeaderException ihe) {
+            IOException ioe = new IOException("Invalid header in patch file");
+            ioe.initCause(ihe);
+            throw ioe;
+        }
+        byte[] newBytes = out.toByteArray();
+        if (newBytes.length != operation.size) {
+            throw new IOException(String.format("Patching %s produced the wrong number of bytes.", operation.target));
+        }
+        checkDigest(operation, digest(newBytes), operation.digest);
+        return newBytes;
+    }
+    
+    /**
+     * Decompresses a stored region of the patch to its location in the new
+     * VP file, verifying it along the way.
+     */
+    private void expandEntry(Operation operation, VPFile patchVP, FileChannel newChannel) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = openStoredEntry(operation, patchVP);
+        try {
+            byte[] bytes = new byte[(int)Math.min(BUFFER_SIZE, operation.size)];
+            for (long position = 0L; position < operation.size; ) {
+                int length = (int)Math.min(bytes.length, operation.size - position);
+                int bytesRead = readFully(in, bytes, length);
+                if (bytesRead < length) {
+                    throw new EOFException();
+                }
+                digest.update(bytes, 0, length);
+                writeFully(newChannel, ByteBuffer.wrap(bytes, 0, length), operation.offset + position);
+                position += length;
+                addProgress(length);
+            }
+        } finally {
+            in.close();
+        }
+        checkDigest(operation, toHex(digest.digest()), operation.digest);
+    }
+    
+    /**
+     * Decompresses a stored entry of the patch and returns the verified data.
+     */
+    private static byte[] readStoredEntry(Operation operation, VPFile patchVP) throws IOException {
+        InputStream in = openStoredEntry(operation, patchVP);
+        byte[] data;
+        try {
+            data = readFully(in, operation.size);
+        } finally {
+            in.close();
+        }
+        checkDigest(operation, digest(data), operation.digest);
+        return data;
+    }
+    
+    private static InputStream openStoredEntry(Operation operation, VPFile patchVP) throws IOException {
+        InputStream in = new BufferedInputStream(patchVP.openEntry(operation.source));
+        try {
+            return new CompressorStreamFactory().createCompressorInputStream(in);
+        } catch (CompressorException ce) {
+            in.close();
+            IOException ioe = new IOException("There was a problem creating the compressor");
+            ioe.initCause(ce);
+            throw ioe;
+        }
+    }
+    
+    /**
+     * Reads the manifest of a patch into the given list, and returns the
+     * length of the new VP file.
+     */
+    private static long readManifest(VPFile patchVP, List<Operation> operations) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(patchVP.openEntry(MANIFEST_NAME), MANIFEST_CHARSET_NAME));
+        try {
+            String[] header = split(reader.readLine());
+            if (header.length != 3 || !header[0].equals(MANIFEST_ID)) {
+                throw new IOException("The patch does not have a valid manifest.");
+            }
+            if (Integer.parseInt(header[1]) != MANIFEST_VERSION) {
+                throw new IOException(String.format("Version %s of the VP patch format is not supported.", header[1]));
+            }
+            long newLength = Long.parseLong(header[2]);
+            
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    operations.add(Operation.parse(split(line)));
+                }
+            }
+            return newLength;
+        } catch (NumberFormatException nfe) {
+            IOException ioe = new IOException("The patch does not have a valid manifest.");
+            ioe.initCause(nfe);
+            throw ioe;
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private static void writeManifest(File manifest, long newLength, List<Operation> operations) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), MANIFEST_CHARSET_NAME));
+        try {
+            writer.write(MANIFEST_ID + "\t" + MANIFEST_VERSION + "\t" + newLength + "\n");
+            for (Operation operation : operations) {
+                writer.write(operation.format());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    private void runAll(List<Callable<Void>> tasks, String failureMessage) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, Math.max(1, tasks.size())));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                getResult(future, failureMessage);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static <T> T getResult(Future<T> future, String failureMessage) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException)ee.getCause();
+            }
+            throw (IOException)new IOException(failureMessage).initCause(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Thread was interrupted while processing VP patch.");
+        }
+    }
+    
+    private void startProgress(long total) {
+        totalBytes = total;
+        bytesProcessed.set(0L);
+    }
+    
+    private void addProgress(long bytes) {
+        long processed = bytesProcessed.addAndGet(bytes);
+        for (ProgressListener listener : progressListeners) {
+            listener.progressMade(processed, totalBytes);
+        }
+    }
+    
+    private static VPFile openVP(File file, String mode) throws IOException {
+        try {
+            return new VPFile(file, mode);
+        } catch (VPFormatException vpfe) {
+            IOException ioe = new IOException(String.format("%s is not a valid VP file.", file.getName()));
+            ioe.initCause(vpfe);
+            throw ioe;
+        }
+    }
+    
+    private static VPFile.VPEntry findEntry(VPFile vp, String entryName) throws IOException {
+        try {
+            return vp.getEntry(entryName);
+        } catch (VPEntryNotFoundException vpenfe) {
+            return null;
+        }
+    }
+    
+    private static List<VPFile.VPEntry> sortByOffset(List<VPFile.VPEntry> entries) {
+        Collections.sort(entries, new Comparator<VPFile.VPEntry>() {
+            public int compare(VPFile.VPEntry e1, VPFile.VPEntry e2) {
+                return e1.getOffset() < e2.getOffset() ? -1 : (e1.getOffset() > e2.getOffset() ? 1 : 0);
+            }
+        });
+        return entries;
+    }
+    
+    /**
+     * Reads a whole entry into a new array, using positional reads so that
+     * several entries can be read at once.
+     */
+    private static byte[] readEntry(VPFile vp, VPFile.VPEntry entry) throws IOException {
+        if (entry.getSize() > Integer.MAX_VALUE) {
+            throw new IOException(String.format("%s is too large to patch.", entry));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int)entry.getSize());
+        while (buffer.hasRemaining()) {
+            if (vp.read(entry, buffer.position(), buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+    
+    private static byte[] readFully(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Entry is too large to patch.");
+        }
+        byte[] data = new byte[(int)size];
+        if (readFully(in, data, data.length) < data.length) {
+            throw new EOFException();
+        }
+        return data;
+    }
+    
+    private static int readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = in.read(bytes, total, length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+    
+    private static String digest(VPFile vp, VPFile.VPEntry entry) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(BUFFER_SIZE, entry.getSize()));
+        long position = 0L;
+        int bytesRead;
+        while ((bytesRead = vp.read(entry, position, buffer)) >= 0) {
+            digest.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+            position += bytesRead;
+        }
+        return toHex(digest.digest());
+    }
+    
+    private static String digest(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support MD5.
+            throw new IllegalStateException(nsae);
+        }
+    }
+    
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+    
+    private static void checkDigest(Operation operation, String computed, String expected) throws IOException {
+        if (!computed.equalsIgnoreCase(expected)) {
+            throw new IOException(String.format("Computed hash value of %s does not match required hash value of %s for %s.",
+                    computed, expected, operation.target != null ? operation.target : operation.source));
+        }
+    }
+    
+    private static String[] split(String line) throws IOException {
+        if (line == null) {
+            throw new IOException("The patch does not have a valid manifest.");
+        }
+        return line.split("\t", -1);
+    }
+    
+    
+    /**
+     * One line of the manifest. Fields are separated by tabs, since entry
+     * names may contain spaces:
+     * <pre>
+     * RAW     offset size source digest
+     * COPY    offset size timestamp target oldPath digest
+     * PATCH   offset size timestamp target source oldDigest digest
+     * ADD     offset size timestamp target source digest
+     * DELETE  oldPath
+     * </pre>
+     */
+    private static class Operation {
+        
+        private Type type;
+        private long offset;
+        private long size;
+        private int timestamp;
+        private String target;
+        private String source;
+        private String oldDigest;
+        private String digest;
+        
+        private static Operation raw(long offset, long size) {
+            Operation operation = new Operation();
+            operation.type = Type.RAW;
+            operation.offset = offset;
+            operation.size = size;
+            return operation;
+        }
+        
+        private static Operation entry(long offset, long size, int timestamp, String target) {
+            Operation operation = new Operation();
+            operation.offset = offset;
+            operation.size = size;
+            operation.timestamp = timestamp;
+            operation.target = target;
+            return operation;
+        }
+        
+        private static Operation delete(String oldPath) {
+            Operation operation = new Operation();
+            operation.type = Type.DELETE;
+            operation.target = oldPath;
+            return operation;
+        }
+        
+        private static Operation parse(String[] fields) throws IOException {
+            Operation operation = new Operation();
+            try {
+                operation.type = Type.valueOf(fields[0]);
+            } catch (IllegalArgumentException iae) {
+                throw new IOException("The patch does not have a valid manifest.");
+            }
+            if (fields.length != operation.type.fieldCount) {
+                throw new IOException("The patch does not have a valid manifest.");
+            }
+            
+            if (operation.type == Type.DELETE) {
+                operation.target = fields[1];
+                return operation;
+            }
+            operation.offset = Long.parseLong(fields[1]);
+            operation.size = Long.parseLong(fields[2]);
+            operation.digest = fields[fields.length - 1];
+            if (operation.type == Type.RAW) {
+                operation.source = fields[3];
+                return operation;
+            }
+            operation.timestamp = Integer.parseInt(fields[3]);
+            operation.target = fields[4];
+            operation.source = fields[5];
+            if (operation.type == Type.PATCH) {
+                operation.oldDigest = fields[6];
+            }
+            return operation;
+        }
+        
+        private String format() {
+            if (type == Type.DELETE) {
+                return Type.DELETE + "\t" + target;
+            } else if (type == Type.RAW) {
+                return Type.RAW + "\t" + offset + "\t" + size + "\t" + source + "\t" + digest;
+            } else if (type == Type.PATCH) {
+                return Type.PATCH + "\t" + offset + "\t" + size + "\t" + timestamp + "\t" + target + "\t" + source + "\t" + oldDigest + "\t" + digest;
+            } else {
+                return type.name() + "\t" + offset + "\t" + size + "\t" + timestamp + "\t" + target + "\t" + source + "\t" + digest;
+            }
+        }
+    }
+    
+    /**
+     * The kinds of manifest lines, with the number of fields in each.
+     */
+    private enum Type {
+        
+        RAW(5), COPY(7), PATCH(8), ADD(7), DELETE(2);
+        
+        private final int fieldCount;
+        
+        private Type(int fieldCount) {
+            this.fieldCount = fieldCount;
+        }
+    }
+    
+    /**
+     * Receives the aggregate progress of creating or applying a patch.
+     * Listeners are called from the worker threads.
+     */
+    public interface ProgressListener {
+        
+        void progressMade(long bytesProcessed, long totalBytes);
+    }
+}
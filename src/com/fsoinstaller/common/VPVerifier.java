@@ -0,0 +1,273 @@
+package com.fsoinstaller.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Computes and checks digests of the individual entries of a VP file, so that
+ * damage can be narrowed down to the entries that are affected.
+ * <p>
+ * The entries are divided among several workers in the same way as by
+ * {@link VPExtractor}, and each worker reads its entries with positional
+ * reads, so the workers never share a file pointer. Entries are listed with
+ * a {@link VPEntryTable}, since only their paths, offsets and sizes are
+ * needed.
+ * <p>
+ * Expected digests are kept in a sidecar manifest. Its first line names the
+ * digest algorithm, and every other line holds a hexadecimal digest and an
+ * entry path, separated by a tab:
+ * <pre>
+ * ALGORITHM    SHA-256
+ * 3a7bd3e2...  data\tables\ships.tbl
+ * </pre>
+ */
+public class VPVerifier {
+    
+    /** First field of the first line of a manifest. */
+    private static final String ALGORITHM_FIELD = "ALGORITHM";
+    
+    /** Charset of the manifest; the same as that of VP entry names. */
+    private static final String MANIFEST_CHARSET_NAME = "ISO-8859-1";
+    
+    /** Size of the buffer each worker reads into. */
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    
+    /** The VP file to verify. */
+    private final File file;
+    
+    /** Name of the digest algorithm. */
+    private final String algorithm;
+    
+    /** Number of worker threads to use. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    
+    
+    /**
+     * @param file the VP file whose entries will be digested
+     * @param algorithm name of a {@link MessageDigest} algorithm, such as
+     *        <code>SHA-256</code>; <code>SHA1</code> and <code>SHA256</code>
+     *        are accepted as well, as in mod files
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public VPVerifier(File file, String algorithm) throws NoSuchAlgorithmException {
+        this.file = file;
+        this.algorithm = normalizeAlgorithm(algorithm);
+        // Fail now rather than in the workers.
+        MessageDigest.getInstance(this.algorithm);
+    }
+    
+    /**
+     * Sets the number of threads used to compute digests. The default is the
+     * number of available processors.
+     *
+     * @param threadCount number of worker threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+    
+    public String getAlgorithm() {
+        return algorithm;
+    }
+    
+    /**
+     * Computes the digest of every entry of the VP file.
+     *
+     * @return hexadecimal digests keyed by entry path, in entry list order
+     * @throws VPFormatException if the file is not a valid VP file
+     * @throws IOException if an I/O error occurs
+     */
+    public Map<String, String> computeDigests() throws VPFormatException, IOException {
+        final VPEntryTable table = VPEntryTable.read(file);
+        long[] sizes = new long[table.size()];
+        long[] offsets = new long[table.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = table.getSize(i);
+            offsets[i] = table.getOffset(i);
+        }
+        List<int[]> partitions = VPExtractor.partition(sizes, offsets, Math.min(threadCount, Math.max(1, table.size())));
+        
+        // Each worker fills in the digests of its own entries.
+        final String[] digests = new String[table.size()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+        try {
+            final FileChannel channel = raf.getChannel();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions.size());
+            for (final int[] partition : partitions) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException, NoSuchAlgorithmException {
+                        MessageDigest digest = MessageDigest.getInstance(algorithm);
+                        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                        for (int index : partition) {
+                            digests[index] = digest(channel, table.getOffset(index), table.getSize(index), digest, buffer);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof IOException) {
+                        throw (IOException)ee.getCause();
+                    }
+                    throw (IOException)new IOException("Unable to compute entry digests.").initCause(ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Thread was interrupted while computing entry digests.");
+                }
+            }
+        } finally {
+            executor.shutdown();
+            raf.close();
+        }
+        
+        Map<String, String> digestsByPath = new LinkedHashMap<String, String>(table.size() * 2);
+        for (int i = 0; i < digests.length; i++) {
+            digestsByPath.put(table.getPath(i), digests[i]);
+        }
+        return digestsByPath;
+    }
+    
+    /**
+     * Checks every entry listed in the given digests against the VP file.
+     * Entries of the VP file that aren't listed are not checked.
+     *
+     * @param expectedDigests hexadecimal digests keyed by entry path
+     * @return the paths of the entries that are missing or whose digests don't
+     *         match, in the order of the given map; empty if all entries are intact
+     * @throws VPFormatException if the file is not a valid VP file
+     * @throws IOException if an I/O error occurs
+     */
+    public List<String> verify(Map<String, String> expectedDigests) throws VPFormatException, IOException {
+        Map<String, String> computedDigests = new HashMap<String, String>();
+        for (Map.Entry<String, String> computed : computeDigests().entrySet()) {
+            computedDigests.put(computed.getKey().toLowerCase(Locale.ENGLISH), computed.getValue());
+        }
+        
+        List<String> damagedEntries = new ArrayList<String>();
+        for (Map.Entry<String, String> expected : expectedDigests.entrySet()) {
+            String computed = computedDigests.get(expected.getKey().replace('/', '\\').toLowerCase(Locale.ENGLISH));
+            if (computed == null || !computed.equalsIgnoreCase(expected.getValue())) {
+                damagedEntries.add(expected.getKey());
+            }
+        }
+        return damagedEntries;
+    }
+    
+    /**
+     * Checks the VP file against a manifest written by
+     * {@link #writeManifest(File)}, using the manifest's algorithm.
+     *
+     * @param file the VP file to verify
+     * @param manifest the manifest to check against
+     * @return the paths of the entries that are missing or damaged
+     * @throws VPFormatException if the file is not a valid VP file
+     * @throws IOException if an I/O error occurs, or if the manifest is invalid
+     */
+    public static List<String> verify(File file, File manifest) throws VPFormatException, IOException {
+        Map<String, String> expectedDigests = new LinkedHashMap<String, String>();
+        String manifestAlgorithm = readManifest(manifest, expectedDigests);
+        VPVerifier verifier;
+        try {
+            verifier = new VPVerifier(file, manifestAlgorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            IOException ioe = new IOException(String.format("'%s' is not a recognized algorithm.", manifestAlgorithm));
+            ioe.initCause(nsae);
+            throw ioe;
+        }
+        return verifier.verify(expectedDigests);
+    }
+    
+    /**
+     * Computes the digests of all entries and writes them to a manifest.
+     *
+     * @param manifest the file to write
+     * @throws VPFormatException if the file is not a valid VP file
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeManifest(File manifest) throws VPFormatException, IOException {
+        Map<String, String> digests = computeDigests();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), MANIFEST_CHARSET_NAME));
+        try {
+            writer.write(ALGORITHM_FIELD + "\t" + algorithm + "\n");
+            for (Map.Entry<String, String> digest : digests.entrySet()) {
+                writer.write(digest.getValue() + "\t" + digest.getKey() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Reads a manifest into the given map and returns its algorithm.
+     */
+    private static String readManifest(File manifest, Map<String, String> digests) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), MANIFEST_CHARSET_NAME));
+        try {
+            String line = reader.readLine();
+            String[] fields = line == null ? new String[0] : line.split("\t");
+            if (fields.length != 2 || !fields[0].equals(ALGORITHM_FIELD)) {
+                throw new IOException(String.format("%s is not a valid VP digest manifest.", manifest.getName()));
+            }
+            String manifestAlgorithm = fields[1];
+            
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                int tabPos = line.indexOf('\t');
+                if (tabPos <= 0) {
+                    throw new IOException(String.format("%s is not a valid VP digest manifest.", manifest.getName()));
+                }
+                digests.put(line.substring(tabPos + 1), line.substring(0, tabPos));
+            }
+            return manifestAlgorithm;
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private static String digest(FileChannel channel, long offset, long size, MessageDigest digest, ByteBuffer buffer) throws IOException {
+        long position = 0L;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), size - position));
+            int bytesRead = channel.read(buffer, offset + position);
+            if (bytesRead < 0) {
+                break;
+            }
+            digest.update(buffer.array(), 0, buffer.position());
+            position += bytesRead;
+        }
+        
+        byte[] hashedBytes = digest.digest();
+        StringBuilder sb = new StringBuilder(hashedBytes.length * 2);
+        for (byte b : hashedBytes) {
+            sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+    
+    private static String normalizeAlgorithm(String algorithm) {
+        String normalized = algorithm.toUpperCase(Locale.ENGLISH);
+        if (normalized.equals("SHA1")) {
+            return "SHA-1";
+        } else if (normalized.equals("SHA256")) {
+            return "SHA-256";
+        }
+        return normalized;
+    }
+}
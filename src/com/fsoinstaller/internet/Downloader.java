@@ -30,11 +30,14 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.sevenzipjbinding.ArchiveFormat;
 import net.sf.sevenzipjbinding.ExtractAskMode;
@@ -49,6 +52,7 @@ import net.sf.sevenzipjbinding.SevenZipException;
 import com.fsoinstaller.common.InputStreamInStream;
 import com.fsoinstaller.common.InputStreamSource;
 import com.fsoinstaller.common.OutputStreamSequentialOutStream;
+import com.fsoinstaller.common.VPFile;
 import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.Logger;
@@ -72,6 +76,8 @@ public class Downloader
 {
 	private static final Logger defaultLogger = Logger.getLogger(Downloader.class);
 	
+	private static final Charset VP_CHARSET = Charset.forName("ISO-8859-1");
+	
 	protected static final int BUFFER_SIZE = 2048;
 	
 	// the user can configure the number of download slots
@@ -104,6 +110,10 @@ public class Downloader
 		downloadPermits = new Semaphore(num, true);
 	}
 	
+	// bytes and time of all completed file downloads, from which the bandwidth is estimated
+	private static final AtomicLong measuredBytes = new AtomicLong();
+	private static final AtomicLong measuredNanos = new AtomicLong();
+	
 	protected final List<DownloadListener> downloadListeners;
 	protected final Connector connector;
 	protected final URL sourceURL;
@@ -118,6 +128,12 @@ public class Downloader
 	protected File extractingFile = null;
 	protected OutputStreamSequentialOutStream extractingOutStream = null;
 	
+	// when packing, files under data/ are extracted into a VP named after the archive instead of as loose files
+	protected boolean packingIntoVP = false;
+	protected VPFile packingVP = null;
+	protected File packingVPFile = null;
+	protected boolean extractingIntoVP = false;
+	
 	public Downloader(Connector connector, URL sourceURL, File destination)
 	{
 		this(connector, sourceURL, destination, null);
@@ -139,6 +155,20 @@ public class Downloader
 		this.downloadListeners = new CopyOnWriteArrayList<DownloadListener>();
 	}
 	
+	/**
+	 * Sets whether the files under <tt>data/</tt> in an archive should be
+	 * written straight into a VP file named after the archive, rather than
+	 * extracted as loose files.  The VP is built in a temporary file, whose
+	 * entry list is written and which replaces any earlier VP of the same
+	 * name once the whole archive has been extracted.  Files that can't be
+	 * stored in a VP, such as empty files or files with long names, are
+	 * still extracted loose.
+	 */
+	public void setPackingIntoVP(boolean packingIntoVP)
+	{
+		this.packingIntoVP = packingIntoVP;
+	}
+	
 	public boolean download()
 	{
 		// wait for a download slot
@@ -202,48 +232,37 @@ public class Downloader
 			
 			// normalize any contracted file extension we may have
 			String normalized = IOUtils.normalizeFileExtension(sourceFileName);
-			
-			// now grab the extension
 			int periodPos = normalized.lastIndexOf('.');
-			String extension = (periodPos >= 0) ? normalized.substring(periodPos + 1) : "";
-			
-			// make sure 7zip is ready to go
-			MiscUtils.initSevenZip();
 			
 			// see if this file is a 7zip-supported archive, including .zip
-			for (ArchiveFormat format: ArchiveFormat.values())
+			ArchiveFormat format = getArchiveFormat(sourceFileName);
+			if (format != null)
 			{
-				if (format.getMethodName().equalsIgnoreCase(extension))
+				// if this is a compressed .tar file, create a holder for the temporary .tar file name
+				ObjectHolder<String> tarResultHolder = null;
+				if (periodPos >= 0 && normalized.substring(0, periodPos).toLowerCase().endsWith(".tar"))
+					tarResultHolder = new ObjectHolder<String>();
+				
+				result = downloadFromArchive(sourceURL, destinationDirectory, format, tarResultHolder);
+				
+				// if we ended up with a tar archive, extract that too
+				if (result.booleanValue() && tarResultHolder != null && tarResultHolder.get() != null)
 				{
-					// if this is a compressed .tar file, create a holder for the temporary .tar file name
-					ObjectHolder<String> tarResultHolder = null;
-					if (periodPos >= 0 && normalized.substring(0, periodPos).toLowerCase().endsWith(".tar"))
-						tarResultHolder = new ObjectHolder<String>();
-					
-					result = downloadFromArchive(sourceURL, destinationDirectory, format, tarResultHolder);
-					
-					// if we ended up with a tar archive, extract that too
-					if (result.booleanValue() && tarResultHolder != null && tarResultHolder.get() != null)
+					File tarFile = new File(destinationDirectory, tarResultHolder.get());
+					if (tarFile.exists())
 					{
-						File tarFile = new File(destinationDirectory, tarResultHolder.get());
-						if (tarFile.exists())
+						try
 						{
-							try
-							{
-								result = downloadFromArchive(tarFile.toURI().toURL(), destinationDirectory, ArchiveFormat.TAR, null);
-								
-								if (result.booleanValue() && !tarFile.delete())
-									logger.warn("TAR file was not deleted...");
-							}
-							catch (MalformedURLException murle)
-							{
-								logger.error("Could not extract from '" + tarFile.getName() + "'!");
-							}
+							result = downloadFromArchive(tarFile.toURI().toURL(), destinationDirectory, ArchiveFormat.TAR, null);
+							
+							if (result.booleanValue() && !tarFile.delete())
+								logger.warn("TAR file was not deleted...");
+						}
+						catch (MalformedURLException murle)
+						{
+							logger.error("Could not extract from '" + tarFile.getName() + "'!");
 						}
 					}
-					
-					// this extension matched: no need to check any other extensions
-					break;
 				}
 			}
 			
@@ -268,6 +287,43 @@ public class Downloader
 		return result.booleanValue();
 	}
 	
+	/**
+	 * Returns the 7zip format of an archive, judging by its file name, or
+	 * null if the file is not an archive that 7zip knows how to extract.
+	 * Such files are downloaded as they are.
+	 */
+	public static ArchiveFormat getArchiveFormat(String fileName)
+	{
+		// normalize any contracted file extension we may have
+		String normalized = IOUtils.normalizeFileExtension(fileName);
+		
+		// now grab the extension
+		int periodPos = normalized.lastIndexOf('.');
+		String extension = (periodPos >= 0) ? normalized.substring(periodPos + 1) : "";
+		
+		// make sure 7zip is ready to go
+		MiscUtils.initSevenZip();
+		
+		for (ArchiveFormat format: ArchiveFormat.values())
+			if (format.getMethodName().equalsIgnoreCase(extension))
+				return format;
+		return null;
+	}
+	
+	/**
+	 * Returns the bandwidth measured over all file downloads so far, in bytes
+	 * per second, or 0 if nothing has been downloaded yet.  Archives that are
+	 * extracted as they are read are not counted.
+	 */
+	public static double getMeasuredBandwidth()
+	{
+		long nanos = measuredNanos.get();
+		if (nanos <= 0)
+			return 0.0;
+		
+		return measuredBytes.get() * 1e9 / nanos;
+	}
+	
 	public void cancel()
 	{
 		synchronized (stateHolder)
@@ -387,6 +443,15 @@ public class Downloader
 			archive = SevenZip.openInArchive(format, inStream);
 			int numItems = archive.getNumberOfItems();
 			
+			// the outer layer of a .tar.gz only holds the .tar, so it is never packed
+			if (packingIntoVP && tarResultHolder == null)
+			{
+				String vpName = getPackedVPName();
+				packingVPFile = new File(destinationDirectory, vpName);
+				logger.info("Packing data files into '" + vpName + "'");
+				packingVP = VPFile.create(new File(destinationDirectory, vpName + ".part"));
+			}
+			
 			List<Integer> extractionIndexes = new ArrayList<Integer>();
 			String[] archiveEntries = new String[numItems];
 			long[] archiveSizes = new long[numItems];
@@ -438,7 +503,7 @@ public class Downloader
 				
 				logger.debug("Checking if the file is up to date...");
 				File destinationFile = IOUtils.syncFileLetterCase(new File(destinationDirectory, currentEntry));
-				if (uptodate(destinationFile, totalBytes))
+				if (!isPackable(currentEntry, totalBytes) && uptodate(destinationFile, totalBytes))
 				{
 					fireNoDownloadNecessary(destinationFile.getName(), 0, totalBytes);
 					continue;
@@ -482,6 +547,9 @@ public class Downloader
 			inStream.close();
 			inStream = null;
 			
+			if (packingVP != null)
+				finishPackedVP();
+			
 			return true;
 		}
 		catch (SevenZipException sze)
@@ -525,7 +593,7 @@ public class Downloader
 			inStream = null;
 			cleanup(extractingOutStream);
 			extractingOutStream = null;
-			if (extractingFile != null && !extractingFile.delete())
+			if (extractingFile != null && !extractingIntoVP && !extractingFile.delete())
 				logger.warn("Could not delete incompletely downloaded file '" + extractingFile.getAbsolutePath() + "'!");
 			
 			// restore interrupt and exit
@@ -536,9 +604,79 @@ public class Downloader
 		{
 			cleanup(archive, inStream);
 			cleanup(extractingOutStream);
+			cleanup(packingVP);
+			packingVP = null;
 		}
 	}
 	
+	/**
+	 * Returns the name of the VP that an archive is packed into, which is the
+	 * archive's name with its extension, and any .tar, replaced by .vp.
+	 */
+	protected String getPackedVPName()
+	{
+		String name = IOUtils.normalizeFileExtension(new File(sourceURL.getPath()).getName());
+		int periodPos = name.lastIndexOf('.');
+		if (periodPos > 0)
+			name = name.substring(0, periodPos);
+		if (name.toLowerCase().endsWith(".tar"))
+			name = name.substring(0, name.length() - 4);
+		return name + ".vp";
+	}
+	
+	/**
+	 * Checks whether an archive entry should be written into the VP being
+	 * packed.  Only non-empty files under data/ are packed, and only if
+	 * every folder and file name in the path fits in a VP entry; anything
+	 * else is extracted loose rather than stored under a cropped name.
+	 */
+	protected boolean isPackable(String archivePath, long size)
+	{
+		if (packingVP == null || size <= 0)
+			return false;
+		
+		String path = archivePath.replace('\\', '/');
+		if (!path.toLowerCase().startsWith("data/"))
+			return false;
+		
+		// VP entry names are limited to 31 ISO-8859-1 bytes, and VPFile crops anything longer
+		CharsetEncoder encoder = VP_CHARSET.newEncoder();
+		for (String component: path.split("/", -1))
+		{
+			if (component.length() == 0 || component.length() > 31 || !encoder.canEncode(component))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the entry list of the packed VP and moves it into place, or
+	 * deletes it if nothing was packed into it.
+	 */
+	protected void finishPackedVP() throws IOException
+	{
+		VPFile vp = packingVP;
+		packingVP = null;
+		
+		File partFile = new File(packingVPFile.getParentFile(), packingVPFile.getName() + ".part");
+		boolean empty = vp.getEntries().isEmpty();
+		vp.close();
+		
+		if (empty)
+		{
+			logger.info("No files were packed into '" + packingVPFile.getName() + "'");
+			if (!partFile.delete())
+				logger.warn("Could not delete '" + partFile.getAbsolutePath() + "'!");
+			return;
+		}
+		
+		if (packingVPFile.exists() && !packingVPFile.delete())
+			throw new IOException("Could not replace '" + packingVPFile.getAbsolutePath() + "'!");
+		if (!partFile.renameTo(packingVPFile))
+			throw new IOException("Could not rename '" + partFile.getAbsolutePath() + "' to '" + packingVPFile.getName() + "'!");
+		logger.info("Packed data files into '" + packingVPFile.getName() + "'");
+	}
+	
 	protected OutputStream openOutputStream(File file) throws IOException
 	{
 		logger.debug("output file: " + file.getAbsolutePath());
@@ -634,7 +772,7 @@ public class Downloader
 	{
 		final File _destinationDirectory = destinationDirectory;
 		final String[] _archiveEntries = archiveEntries;
-		//final long[] _archiveSizes = archiveSizes;
+		final long[] _archiveSizes = archiveSizes;
 		final long[] _archiveModifiedTimes = archiveModifiedTimes;
 		
 		return new IArchiveExtractCallback()
@@ -661,7 +799,19 @@ public class Downloader
 						{
 							logger.debug("Opening output stream...");
 							extractingFile = IOUtils.syncFileLetterCase(new File(_destinationDirectory, _archiveEntries[index]));
-							extractingOutStream = new OutputStreamSequentialOutStream(openOutputStream(extractingFile));
+							extractingIntoVP = isPackable(_archiveEntries[index], _archiveSizes[index]);
+							if (extractingIntoVP)
+							{
+								// a loose copy would take precedence over the packed one
+								if (extractingFile.exists())
+									logger.warn("'" + extractingFile.getAbsolutePath() + "' exists and will override the packed copy!");
+								
+								long modified = _archiveModifiedTimes[index];
+								int timestamp = (modified > 0) ? (int) (modified / 1000) : VPFile.getCurrentUnixTime();
+								extractingOutStream = new OutputStreamSequentialOutStream(packingVP.createEntry(_archiveEntries[index], timestamp));
+							}
+							else
+								extractingOutStream = new OutputStreamSequentialOutStream(openOutputStream(extractingFile));
 						}
 						catch (IOException ioe)
 						{
@@ -751,17 +901,22 @@ public class Downloader
 					{
 						logger.debug("Closing output stream...");
 						extractingOutStream.close();
-						if (_archiveModifiedTimes[currentIndex] > 0 && !extractingFile.setLastModified(_archiveModifiedTimes[currentIndex]))
+						if (!extractingIntoVP && _archiveModifiedTimes[currentIndex] > 0 && !extractingFile.setLastModified(_archiveModifiedTimes[currentIndex]))
 							logger.warn("Could not set file modification time for '" + extractingFile.getAbsolutePath() + "'!");
 					}
 					catch (IOException ioe)
 					{
 						logger.warn("Could not close file stream!", ioe);
+						
+						// the entry is only added to the VP when its stream is closed
+						if (extractingIntoVP && exception == null)
+							exception = new SevenZipException("Error packing file into VP", ioe);
 					}
 					finally
 					{
 						extractingFile = null;
 						extractingOutStream = null;
+						extractingIntoVP = false;
 					}
 				}
 				
@@ -796,6 +951,7 @@ public class Downloader
 	protected void downloadUsingStreams(InputStream inputStream, OutputStream outputStream, String downloadName, long downloadTotalSize) throws IOException, InterruptedException
 	{
 		long totalBytesWritten = 0;
+		long startTime = System.nanoTime();
 		
 		logger.debug("Downloading...");
 		fireAboutToStart(downloadName, totalBytesWritten, downloadTotalSize);
@@ -817,6 +973,9 @@ public class Downloader
 			fireProgressReport(downloadName, totalBytesWritten, downloadTotalSize);
 		}
 		
+		measuredBytes.addAndGet(totalBytesWritten);
+		measuredNanos.addAndGet(System.nanoTime() - startTime);
+		
 		logger.debug("Download complete");
 		fireDownloadComplete(downloadName, totalBytesWritten, downloadTotalSize);
 	}
@@ -880,6 +1039,27 @@ public class Downloader
 		}
 	}
 	
+	/**
+	 * Closes and deletes a VP that was not completely packed.
+	 */
+	protected void cleanup(VPFile vp)
+	{
+		if (vp != null)
+		{
+			File partFile = new File(packingVPFile.getParentFile(), packingVPFile.getName() + ".part");
+			try
+			{
+				vp.close();
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not close VP file!", ioe);
+			}
+			if (!partFile.delete())
+				logger.warn("Could not delete incompletely packed file '" + partFile.getAbsolutePath() + "'!");
+		}
+	}
+	
 	protected void cleanup(OutputStreamSequentialOutStream outStream)
 	{
 		if (outStream != null)
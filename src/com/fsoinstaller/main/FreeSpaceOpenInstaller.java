@@ -31,10 +31,16 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -49,17 +55,28 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 
 import com.fsoinstaller.common.InstallerNode;
 import com.fsoinstaller.common.InstallerNodeParseException;
+import com.fsoinstaller.common.VPBuilder;
+import com.fsoinstaller.common.VPFile;
+import com.fsoinstaller.common.VPFormatException;
+import com.fsoinstaller.common.VPPatch;
+import com.fsoinstaller.common.VPVerifier;
+import com.fsoinstaller.utils.FileTraverse;
 import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.KeyPair;
 import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.MemoryBudget;
 import com.fsoinstaller.utils.OperatingSystem;
 import com.fsoinstaller.utils.SwingUtils;
 import com.fsoinstaller.utils.ThreadSafeJOptionPane;
 import com.fsoinstaller.wizard.InstallerGUI;
 
+import io.sigpipe.jbsdiff.BlockPatch;
+import io.sigpipe.jbsdiff.DefaultDiffSettings;
 import io.sigpipe.jbsdiff.Diff;
+import io.sigpipe.jbsdiff.DiffSettings;
 import io.sigpipe.jbsdiff.Patch;
+import io.sigpipe.jbsdiff.SAISDiffSettings;
 import io.sigpipe.jbsdiff.progress.ProgressEvent;
 import io.sigpipe.jbsdiff.progress.ProgressListener;
 
@@ -89,6 +106,22 @@ public class FreeSpaceOpenInstaller
 		"http://scp.indiegames.us/fsoinstaller/"
 	}));
 	
+	/**
+	 * Extension of the per-entry digest manifests written next to VP files.
+	 */
+	private static final String VP_MANIFEST_EXTENSION = ".hashes";
+	
+	/**
+	 * Options of the diff command that select the suffix sort used to create patches.
+	 */
+	private static final String SORT_QSUFSORT = "qsufsort";
+	private static final String SORT_SAIS = "sais";
+	
+	/**
+	 * Hash algorithm of the PATCH blocks written when diffing directory trees.
+	 */
+	private static final String TREE_HASH_ALGORITHM = "SHA-256";
+	
 	/**
 	 * Use the Initialization On Demand Holder idiom for thread-safe
 	 * non-synchronized singletons.
@@ -401,6 +434,21 @@ rootLoop:		for (File root: roots)
 		{
 			selectAndPatchFiles(args);
 		}
+		// write digests of the individual entries of VP files
+		else if (command.equals("vphash"))
+		{
+			selectAndHashVPFiles(args);
+		}
+		// check the individual entries of a VP file against its digests
+		else if (command.equals("vpverify"))
+		{
+			selectAndVerifyVPFile(args);
+		}
+		// rebuild a VP file with compressed entries and measure the compression
+		else if (command.equals("vpcompress"))
+		{
+			selectAndCompressVPFile(args);
+		}
 		// default command is the standard wizard installation
 		else
 		{
@@ -575,11 +623,234 @@ rootLoop:		for (File root: roots)
 		}
 	}
 	
+	private static void selectAndHashVPFiles(String[] args)
+	{
+		final Configuration config = Configuration.getInstance();
+		String algorithm;
+		
+		// get the algorithm
+		if (args.length > 1)
+		{
+			algorithm = args[1];
+		}
+		// if not, prompt for it
+		else
+		{
+			String[] options = new String[] { "SHA-256", "SHA-1", "MD5" };
+			
+			int result = ThreadSafeJOptionPane.showOptionDialog(null, XSTR.getString("chooseHashAlgorithm"), XSTR.getString("chooseOptionTitle"), JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+			if (result < 0)
+			{
+				logger.warn("No hash option selected!");
+				return;
+			}
+			algorithm = options[result];
+		}
+		
+		// get the VP files
+		List<File> vpFiles = new ArrayList<File>();
+		if (args.length > 2)
+		{
+			for (int i = 2; i < args.length; i++)
+				vpFiles.add(new File(args[i]));
+		}
+		// if not, prompt for one
+		else
+		{
+			File vpFile = SwingUtils.promptForFile(null, XSTR.getString("chooseFileTitle"), config.getApplicationDir());
+			if (vpFile == null)
+				return;
+			vpFiles.add(vpFile);
+		}
+		
+		for (File vpFile: vpFiles)
+		{
+			// warn if invalid
+			if (!canUse(vpFile))
+				continue;
+			
+			// the digests are written next to the VP file
+			File manifest = new File(vpFile.getParentFile(), vpFile.getName() + VP_MANIFEST_EXTENSION);
+			try
+			{
+				logger.info("Computing entry digests for '" + vpFile.getAbsolutePath() + "'...");
+				new VPVerifier(vpFile, algorithm).writeManifest(manifest);
+				logger.info(manifest.getAbsolutePath());
+			}
+			catch (NoSuchAlgorithmException nsae)
+			{
+				logger.error("Unable to compute hash; '" + algorithm + "' is not a recognized algorithm!", nsae);
+				return;
+			}
+			catch (VPFormatException vpfe)
+			{
+				logger.error("'" + vpFile.getAbsolutePath() + "' is not a valid VP file!", vpfe);
+			}
+			catch (IOException ioe)
+			{
+				logger.error("There was a problem computing the entry digests for '" + vpFile + "'...", ioe);
+			}
+		}
+	}
+	
+	private static void selectAndVerifyVPFile(String[] args)
+	{
+		final Configuration config = Configuration.getInstance();
+		
+		// get the VP file
+		File vpFile;
+		if (args.length > 1)
+		{
+			vpFile = new File(args[1]);
+		}
+		// if not, prompt for it
+		else
+		{
+			vpFile = SwingUtils.promptForFile(null, XSTR.getString("chooseFileTitle"), config.getApplicationDir());
+			if (vpFile == null)
+				return;
+		}
+		
+		// the digests are next to the VP file unless specified otherwise
+		File manifest;
+		if (args.length > 2)
+			manifest = new File(args[2]);
+		else
+			manifest = new File(vpFile.getParentFile(), vpFile.getName() + VP_MANIFEST_EXTENSION);
+		
+		// warn if invalid
+		if (!canUse(vpFile) || !canUse(manifest))
+			return;
+		
+		try
+		{
+			logger.info("Verifying the entries of '" + vpFile.getAbsolutePath() + "'...");
+			List<String> damagedEntries = VPVerifier.verify(vpFile, manifest);
+			if (damagedEntries.isEmpty())
+			{
+				logger.info("All entries are intact.");
+			}
+			else
+			{
+				for (String entry: damagedEntries)
+					logger.warn("Entry '" + entry + "' is missing or damaged!");
+				logger.warn(damagedEntries.size() + " entries are missing or damaged.");
+			}
+		}
+		catch (VPFormatException vpfe)
+		{
+			logger.error("'" + vpFile.getAbsolutePath() + "' is not a valid VP file!", vpfe);
+		}
+		catch (IOException ioe)
+		{
+			logger.error("There was a problem verifying '" + vpFile + "'...", ioe);
+		}
+	}
+	
+	private static void selectAndCompressVPFile(String[] args)
+	{
+		final Configuration config = Configuration.getInstance();
+		
+		// get the VP file
+		File vpFile;
+		if (args.length > 1)
+		{
+			vpFile = new File(args[1]);
+		}
+		// if not, prompt for it
+		else
+		{
+			vpFile = SwingUtils.promptForFile(null, XSTR.getString("chooseFileTitle"), config.getApplicationDir());
+			if (vpFile == null)
+				return;
+		}
+		
+		// the compressed copy goes next to the VP file unless specified otherwise
+		File compressedFile;
+		if (args.length > 2)
+			compressedFile = new File(args[2]);
+		else
+			compressedFile = new File(vpFile.getParentFile(), vpFile.getName() + ".lz41");
+		
+		// warn if invalid
+		if (!canUse(vpFile))
+			return;
+		
+		try
+		{
+			VPFile vp = new VPFile(vpFile, "r");
+			try
+			{
+				logger.info("Compressing the entries of '" + vpFile.getAbsolutePath() + "'...");
+				VPBuilder builder = new VPBuilder();
+				builder.setCompressingEntries(true);
+				for (VPFile.VPFolder folder: vp.getFolderSet())
+					if (folder.toString().length() > 0)
+						builder.addFolder(folder.toString());
+				for (VPFile.VPEntry entry: vp.getEntryList())
+					builder.addEntry(entry.getFullPath(), vp, entry);
+				
+				long start = System.nanoTime();
+				builder.build(compressedFile);
+				long compressTime = System.nanoTime() - start;
+				logger.info(compressedFile.getAbsolutePath());
+				
+				// read everything back, both to check it and to time decompression
+				long decompressedBytes = 0L;
+				VPFile compressed = new VPFile(compressedFile, "r");
+				try
+				{
+					byte[] buffer = new byte[1 << 16];
+					start = System.nanoTime();
+					for (VPFile.VPEntry entry: compressed.getEntryList())
+					{
+						VPFile.VPEntryInputStream in = compressed.openEntry(entry);
+						try
+						{
+							int bytesRead;
+							while ((bytesRead = in.read(buffer)) >= 0)
+								decompressedBytes += bytesRead;
+						}
+						finally
+						{
+							in.close();
+						}
+					}
+				}
+				finally
+				{
+					compressed.close();
+				}
+				long decompressTime = System.nanoTime() - start;
+				
+				logger.info(String.format("Size: %d -> %d bytes (%.1f%%)", vpFile.length(), compressedFile.length(), 100.0 * compressedFile.length() / vpFile.length()));
+				logger.info(String.format("Compression: %.1f MB/s", decompressedBytes / 1048576.0 / Math.max(compressTime / 1e9, 1e-9)));
+				logger.info(String.format("Decompression: %.1f MB/s", decompressedBytes / 1048576.0 / Math.max(decompressTime / 1e9, 1e-9)));
+			}
+			finally
+			{
+				vp.close();
+			}
+		}
+		catch (VPFormatException vpfe)
+		{
+			logger.error("'" + vpFile.getAbsolutePath() + "' is not a valid VP file!", vpfe);
+		}
+		catch (IOException ioe)
+		{
+			logger.error("There was a problem compressing '" + vpFile + "'...", ioe);
+		}
+	}
+	
 	private static void selectAndDiffFiles(String[] args)
 	{
 		final Configuration config = Configuration.getInstance();
 		String patchType;
-		String[] options = CompressorStreamFactory.SUPPORTED_TYPES;
+		String[] options = new String[CompressorStreamFactory.SUPPORTED_TYPES.length + 3];
+		System.arraycopy(CompressorStreamFactory.SUPPORTED_TYPES, 0, options, 0, CompressorStreamFactory.SUPPORTED_TYPES.length);
+		options[options.length - 3] = CompressorStreamFactory.AUTO;
+		options[options.length - 2] = VPPatch.PATCH_TYPE;
+		options[options.length - 1] = BlockPatch.PATCH_TYPE;
 		
 		// get the patch type
 		if (args.length > 1)
@@ -630,6 +901,13 @@ rootLoop:		for (File root: roots)
 				return;
 		}
 		
+		// two releases are diffed file by file
+		if (sourceFile.isDirectory() && targetFile.isDirectory())
+		{
+			diffTrees(args, patchType, sourceFile, targetFile);
+			return;
+		}
+		
 		// warn if invalid
 		if (!canUse(sourceFile) || !canUse(targetFile))
 			return;
@@ -642,8 +920,10 @@ rootLoop:		for (File root: roots)
 		// create patch
 		try
 		{
+			// large files are scanned in parallel regions
 			Diff diff = new Diff();
-			diff.addProgressListener(new ProgressListener()
+			diff.setThreadCount(Runtime.getRuntime().availableProcessors());
+			ProgressListener listener = new ProgressListener()
 			{
 				int lastPercent = -1;
 				
@@ -656,10 +936,59 @@ rootLoop:		for (File root: roots)
 						logger.debug(event.getCurrent() + " of " + event.getTotal() + " (" + percent + "%)");
 					}
 				}
-			});
+			};
+			diff.addProgressListener(listener);
+			
+			// the arguments after the files may pick the suffix sort and, for VP and block patches, the compressor
+			boolean sortingWithSAIS = false;
+			boolean containerType = patchType.equals(VPPatch.PATCH_TYPE) || patchType.equals(BlockPatch.PATCH_TYPE);
+			String compressorType = null;
+			for (int i = 4; i < args.length; i++)
+			{
+				if (args[i].equals(SORT_SAIS) || args[i].equals(SORT_QSUFSORT))
+					sortingWithSAIS = args[i].equals(SORT_SAIS);
+				else if (patchType.equals(CompressorStreamFactory.AUTO) && parseWeight(args[i]) >= 0)
+					diff.setDecompressionWeight(parseWeight(args[i]));
+				else if (containerType && compressorType == null)
+					compressorType = args[i];
+				else
+				{
+					logger.error("Unrecognized diff option '" + args[i] + "'!");
+					return;
+				}
+			}
+			
+			logger.info("Generating patch file" + (sortingWithSAIS ? " using SA-IS..." : "..."));
+			long start = System.nanoTime();
+			if (containerType)
+			{
+				// the deltas of VP and block patches use the compressor given after the files, if any
+				if (compressorType == null)
+					compressorType = CompressorStreamFactory.BZIP2;
+				if (!Arrays.asList(CompressorStreamFactory.SUPPORTED_TYPES).contains(compressorType) && !(patchType.equals(BlockPatch.PATCH_TYPE) && compressorType.equals(CompressorStreamFactory.AUTO)))
+				{
+					logger.error("Unsupported compressor type '" + compressorType + "'!");
+					return;
+				}
+			}
 			
-			logger.info("Generating patch file...");
-			IOUtils.generatePatch(diff, patchType, sourceFile, targetFile, patchFile);
+			if (patchType.equals(VPPatch.PATCH_TYPE))
+			{
+				// VP files are diffed entry by entry
+				VPPatch vpPatch = new VPPatch();
+				vpPatch.setSortingWithSAIS(sortingWithSAIS);
+				vpPatch.generate(sourceFile, targetFile, patchFile, compressorType);
+			}
+			else if (patchType.equals(BlockPatch.PATCH_TYPE))
+			{
+				// block patches are diffed one block at a time, concurrently
+				BlockPatch blockPatch = new BlockPatch();
+				blockPatch.addProgressListener(listener);
+				IOUtils.generateBlockPatch(blockPatch, sortingWithSAIS ? new SAISDiffSettings(compressorType) : new DefaultDiffSettings(compressorType), sourceFile, targetFile, patchFile);
+			}
+			else
+				IOUtils.generatePatch(diff, sortingWithSAIS ? new SAISDiffSettings(patchType) : new DefaultDiffSettings(patchType), sourceFile, targetFile, patchFile);
+			logger.info(String.format("Patch generated in %.2f seconds", (System.nanoTime() - start) / 1e9));
 			
 			logger.info(patchFile.getAbsolutePath());
 		}
@@ -669,6 +998,210 @@ rootLoop:		for (File root: roots)
 		}
 	}
 	
+	/**
+	 * Diffs every file of the new tree against the file with the same relative path in the old tree, several files at
+	 * a time, and prints a PATCH block for each patch.  Files are admitted against a memory budget, so that several
+	 * large files aren't diffed at once.
+	 */
+	private static void diffTrees(String[] args, final String patchType, File sourceDir, File targetDir)
+	{
+		if (patchType.equals(VPPatch.PATCH_TYPE) || patchType.equals(BlockPatch.PATCH_TYPE))
+		{
+			logger.error("Directory trees can only be diffed into bsdiff patches; use one of " + Arrays.toString(CompressorStreamFactory.SUPPORTED_TYPES) + " or " + CompressorStreamFactory.AUTO + "!");
+			return;
+		}
+		
+		// the arguments after the directories may pick the suffix sort and the decompression weight
+		boolean sortingWithSAIS = false;
+		double weight = 0;
+		for (int i = 4; i < args.length; i++)
+		{
+			if (args[i].equals(SORT_SAIS) || args[i].equals(SORT_QSUFSORT))
+				sortingWithSAIS = args[i].equals(SORT_SAIS);
+			else if (patchType.equals(CompressorStreamFactory.AUTO) && parseWeight(args[i]) >= 0)
+				weight = parseWeight(args[i]);
+			else
+			{
+				logger.error("Unrecognized diff option '" + args[i] + "'!");
+				return;
+			}
+		}
+		final DiffSettings settings = sortingWithSAIS ? new SAISDiffSettings(patchType) : new DefaultDiffSettings(patchType);
+		final double decompressionWeight = weight;
+		
+		// pair the files by relative path
+		Map<String, KeyPair<String, File>> sourceFiles;
+		Map<String, KeyPair<String, File>> targetFiles;
+		try
+		{
+			sourceFiles = listTree(sourceDir);
+			targetFiles = listTree(targetDir);
+		}
+		catch (IOException ioe)
+		{
+			logger.error("Unable to list the files to diff!", ioe);
+			return;
+		}
+		
+		// find a destination folder
+		final File patchDir;
+		if (!new File(targetDir.getParentFile(), targetDir.getName() + ".patches").exists())
+			patchDir = new File(targetDir.getParentFile(), targetDir.getName() + ".patches");
+		else
+			patchDir = new File(targetDir.getParentFile(), InstallerUtils.UUID() + ".patches");
+		if (!patchDir.mkdirs())
+		{
+			logger.error("Unable to create the patch folder '" + patchDir.getAbsolutePath() + "'!");
+			return;
+		}
+		
+		logger.info("Diffing " + sourceDir.getAbsolutePath() + " against " + targetDir.getAbsolutePath() + (sortingWithSAIS ? " using SA-IS..." : "..."));
+		long start = System.nanoTime();
+		
+		// each file is diffed on one thread, and as many files as there are processors are diffed at once
+		final MemoryBudget budget = MemoryBudget.fromMaxMemory();
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		Map<String, Future<InstallerNode.PatchTriple>> futures = new LinkedHashMap<String, Future<InstallerNode.PatchTriple>>();
+		Set<String> patchNames = new HashSet<String>();
+		for (Map.Entry<String, KeyPair<String, File>> entry: targetFiles.entrySet())
+		{
+			KeyPair<String, File> source = sourceFiles.get(entry.getKey());
+			final String path = entry.getValue().getObject1();
+			if (source == null)
+			{
+				logger.info("'" + path + "' is new and can't be patched");
+				continue;
+			}
+			final File oldFile = source.getObject2();
+			final File newFile = entry.getValue().getObject2();
+			
+			// patches are downloaded into the mod folder itself, so their names are flattened
+			String patchName = path.replace('/', '_') + "." + patchType;
+			for (int i = 2; !patchNames.add(patchName.toLowerCase()); i++)
+				patchName = path.replace('/', '_') + "." + i + "." + patchType;
+			final File patchFile = new File(patchDir, patchName);
+			
+			futures.put(path, executor.submit(new Callable<InstallerNode.PatchTriple>()
+			{
+				public InstallerNode.PatchTriple call() throws IOException, InterruptedException, NoSuchAlgorithmException
+				{
+					MessageDigest digest = MessageDigest.getInstance(TREE_HASH_ALGORITHM);
+					String preHash = IOUtils.computeHash(digest, oldFile);
+					String postHash = IOUtils.computeHash(digest, newFile);
+					if (preHash.equalsIgnoreCase(postHash))
+						return null;
+					
+					Diff diff = new Diff();
+					diff.setDecompressionWeight(decompressionWeight);
+					diff.fitWindow(oldFile.length(), newFile.length(), settings.getCompression(), budget.getBudget());
+					long memory = diff.estimateMemory(oldFile.length(), newFile.length(), settings.getCompression());
+					budget.acquire(memory);
+					try
+					{
+						IOUtils.generatePatch(diff, settings, oldFile, newFile, patchFile);
+					}
+					finally
+					{
+						budget.release(memory);
+					}
+					logger.info("Diffed '" + path + "'");
+					
+					return new InstallerNode.PatchTriple(patchType, new InstallerNode.HashTriple(TREE_HASH_ALGORITHM, path, preHash), new InstallerNode.HashTriple(TREE_HASH_ALGORITHM, patchFile.getName(), IOUtils.computeHash(digest, patchFile)), new InstallerNode.HashTriple(TREE_HASH_ALGORITHM, path, postHash));
+				}
+			}));
+		}
+		for (Map.Entry<String, KeyPair<String, File>> entry: sourceFiles.entrySet())
+			if (!targetFiles.containsKey(entry.getKey()))
+				logger.info("'" + entry.getValue().getObject1() + "' was removed");
+		
+		// print the blocks in path order, once they are all done
+		int patches = 0;
+		int unchanged = 0;
+		int failures = 0;
+		StringBuilder blocks = new StringBuilder();
+		try
+		{
+			for (Map.Entry<String, Future<InstallerNode.PatchTriple>> entry: futures.entrySet())
+			{
+				InstallerNode.PatchTriple triple;
+				try
+				{
+					triple = entry.getValue().get();
+				}
+				catch (ExecutionException ee)
+				{
+					logger.error("There was a problem diffing '" + entry.getKey() + "'...", ee.getCause());
+					failures++;
+					continue;
+				}
+				
+				if (triple == null)
+				{
+					unchanged++;
+					continue;
+				}
+				patches++;
+				blocks.append("PATCH\n").append(triple.getPatchType()).append('\n');
+				for (InstallerNode.HashTriple hash: new InstallerNode.HashTriple[] { triple.getPrePatch(), triple.getPatch(), triple.getPostPatch() })
+					blocks.append(hash.getAlgorithm()).append('\n').append(hash.getFilename()).append('\n').append(hash.getHash()).append('\n');
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			logger.error("Thread was interrupted while waiting for the patches!", ie);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		System.out.print(blocks);
+		logger.info(String.format("%d patches generated in %.2f seconds; %d files unchanged, %d failed", patches, (System.nanoTime() - start) / 1e9, unchanged, failures));
+		logger.info("Peak memory budgeted: " + budget.getPeakUsed() + " of " + budget.getBudget() + " bytes; up to " + budget.getPeakWaiting() + " files waited for memory at once");
+		logger.info(patchDir.getAbsolutePath());
+	}
+	
+	/**
+	 * Parses the decompression weight of automatically compressed patches: the number of patch bytes that one second
+	 * of decompressing is worth.
+	 * 
+	 * @return the weight, or -1 if the argument isn't one
+	 */
+	private static double parseWeight(String arg)
+	{
+		try
+		{
+			double weight = Double.parseDouble(arg);
+			return weight >= 0 && !Double.isInfinite(weight) ? weight : -1;
+		}
+		catch (NumberFormatException nfe)
+		{
+			return -1;
+		}
+	}
+	
+	/**
+	 * Lists the files of a tree, keyed by lower-case relative path, with their relative paths as found.
+	 */
+	private static Map<String, KeyPair<String, File>> listTree(final File root) throws IOException
+	{
+		final Map<String, KeyPair<String, File>> files = new TreeMap<String, KeyPair<String, File>>();
+		final String rootPath = root.getAbsolutePath();
+		new FileTraverse<Void>()
+		{
+			@Override
+			public Void forFile(File file)
+			{
+				String path = file.getAbsolutePath().substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+				files.put(path.toLowerCase(), new KeyPair<String, File>(path, file));
+				return null;
+			}
+		}.on(root);
+		return files;
+	}
+	
 	private static void selectAndPatchFiles(String[] args)
 	{
 		final Configuration config = Configuration.getInstance();
@@ -729,7 +1262,10 @@ rootLoop:		for (File root: roots)
 			});
 			
 			logger.info("Applying patch file...");
-			IOUtils.applyPatch(patch, sourceFile, patchFile, targetFile);
+			if (VPPatch.isPatch(patchFile))
+				new VPPatch().apply(sourceFile, patchFile, targetFile);
+			else
+				IOUtils.applyPatch(patch, sourceFile, patchFile, targetFile);
 			
 			logger.info(targetFile.getAbsolutePath());
 		}
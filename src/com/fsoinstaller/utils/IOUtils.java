@@ -44,6 +44,7 @@ import com.fsoinstaller.common.InstallerNode;
 import com.fsoinstaller.common.InstallerNodeFactory;
 import com.fsoinstaller.common.InstallerNodeParseException;
 
+import io.sigpipe.jbsdiff.BlockPatch;
 import io.sigpipe.jbsdiff.DefaultDiffSettings;
 import io.sigpipe.jbsdiff.Diff;
 import io.sigpipe.jbsdiff.DiffSettings;
@@ -233,6 +234,18 @@ public class IOUtils
 	}
 	
 	public static void generatePatch(Diff diff, String patchType, File sourceFile, File targetFile, File patchFile) throws IOException
+	{
+		generatePatch(diff, new DefaultDiffSettings(patchType), sourceFile, targetFile, patchFile);
+	}
+	
+	/**
+	 * Diffs the two files into a bsdiff patch.  Files are diffed as a whole
+	 * when that fits in {@link MemoryBudget#MAX_MEMORY_FRACTION} of the
+	 * heap, so that moved data is matched wherever it went.  Larger files
+	 * are diffed in windows, which bounds the memory used but only matches
+	 * data that moved by less than about half a window.
+	 */
+	public static void generatePatch(Diff diff, DiffSettings settings, File sourceFile, File targetFile, File patchFile) throws IOException
 	{
 		if (!sourceFile.exists() || sourceFile.isDirectory())
 			throw new IllegalArgumentException("Source file must exist and must not be a directory!");
@@ -241,18 +254,15 @@ public class IOUtils
 		if (patchFile.exists())
 			throw new IllegalArgumentException("Patch file must not exist!");
 			
-		DiffSettings settings = new DefaultDiffSettings(patchType);
+		// diff the files whole if they fit, and in windows if they don't
+		long maxMemory = (long) (Runtime.getRuntime().maxMemory() * MemoryBudget.MAX_MEMORY_FRACTION);
+		if (!diff.fitWindow(sourceFile.length(), targetFile.length(), settings.getCompression(), maxMemory))
+			logger.debug("Files are too large to diff whole; diffing them in windows");
 		
-		logger.debug("Reading source file...");
-		byte[] sourceBytes = IOUtils.readBytes(sourceFile);
-		logger.debug("Reading target file...");
-		byte[] targetBytes = IOUtils.readBytes(targetFile);
-		
-		FileOutputStream fos = new FileOutputStream(patchFile);
 		try
 		{
 			logger.debug("Performing file diff...");
-			diff.diff(sourceBytes, targetBytes, fos, settings);
+			diff.diff(sourceFile, targetFile, patchFile, settings);
 		}
 		catch (CompressorException ce)
 		{
@@ -266,9 +276,33 @@ public class IOUtils
 			ioe.initCause(ihe);
 			throw ioe;
 		}
-		finally
+	}
+	
+	public static void generateBlockPatch(BlockPatch blockPatch, DiffSettings settings, File sourceFile, File targetFile, File patchFile) throws IOException
+	{
+		if (!sourceFile.exists() || sourceFile.isDirectory())
+			throw new IllegalArgumentException("Source file must exist and must not be a directory!");
+		if (!targetFile.exists() || targetFile.isDirectory())
+			throw new IllegalArgumentException("Target file must exist and must not be a directory!");
+		if (patchFile.exists())
+			throw new IllegalArgumentException("Patch file must not exist!");
+			
+		try
 		{
-			fos.close();
+			logger.debug("Performing block diff...");
+			blockPatch.diff(sourceFile, targetFile, patchFile, settings);
+		}
+		catch (CompressorException ce)
+		{
+			IOException ioe = new IOException("There was a problem creating the compressor");
+			ioe.initCause(ce);
+			throw ioe;
+		}
+		catch (InvalidHeaderException ihe)
+		{
+			IOException ioe = new IOException("Invalid header in patch file");
+			ioe.initCause(ihe);
+			throw ioe;
 		}
 	}
 	
@@ -278,19 +312,15 @@ public class IOUtils
 			throw new IllegalArgumentException("Source file must exist and must not be a directory!");
 		if (!patchFile.exists() || patchFile.isDirectory())
 			throw new IllegalArgumentException("Patch file must exist and must not be a directory!");
-		if (targetFile.exists())
+		// block patches resume into an existing target, keeping the blocks that are already done
+		if (targetFile.exists() && !BlockPatch.isBlockPatch(patchFile))
 			throw new IllegalArgumentException("Target file must not exist!");
 			
-		logger.debug("Reading source file...");
-		byte[] sourceBytes = IOUtils.readBytes(sourceFile);
-		logger.debug("Reading patch file...");
-		byte[] patchBytes = IOUtils.readBytes(patchFile);
-		
-		FileOutputStream fos = new FileOutputStream(targetFile);
+		// the files are streamed rather than read into memory, so that large patches can run side by side
 		try
 		{
 			logger.debug("Performing file patch...");
-			patch.patch(sourceBytes, patchBytes, fos);
+			patch.patch(sourceFile, targetFile, patchFile);
 		}
 		catch (CompressorException ce)
 		{
@@ -304,10 +334,6 @@ public class IOUtils
 			ioe.initCause(ihe);
 			throw ioe;
 		}
-		finally
-		{
-			fos.close();
-		}
 	}
 	
 	public static void copy(File from, File to) throws IOException
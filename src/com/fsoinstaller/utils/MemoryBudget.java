@@ -0,0 +1,148 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2014 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.utils;
+
+import java.util.LinkedList;
+
+/**
+ * Admits memory-hungry tasks only while their projected memory use fits a
+ * budget.  Tasks are admitted in the order they ask; a task that doesn't fit
+ * waits, along with every task behind it, until enough memory is released.
+ * A task larger than the whole budget is admitted once nothing else is
+ * running, so that it can't wait forever.
+ */
+public class MemoryBudget
+{
+	private static final Logger logger = Logger.getLogger(MemoryBudget.class);
+	
+	/**
+	 * Fraction of the maximum heap given to a budget created by
+	 * {@link #fromMaxMemory()}; the rest is left for everything else.
+	 */
+	public static final double MAX_MEMORY_FRACTION = 0.6;
+	
+	private final long budget;
+	
+	// guarded by this
+	private final LinkedList<Object> queue = new LinkedList<Object>();
+	private long used = 0;
+	private long peakUsed = 0;
+	private int waiting = 0;
+	private int peakWaiting = 0;
+	
+	public MemoryBudget(long budget)
+	{
+		if (budget <= 0)
+			throw new IllegalArgumentException("Budget must be positive!");
+		
+		this.budget = budget;
+	}
+	
+	/**
+	 * Creates a budget of {@link #MAX_MEMORY_FRACTION} of the maximum heap.
+	 */
+	public static MemoryBudget fromMaxMemory()
+	{
+		return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * MAX_MEMORY_FRACTION));
+	}
+	
+	/**
+	 * Waits until the given amount of memory fits the budget, and reserves it.
+	 * Every call must be matched by a call to {@link #release(long)} with the
+	 * same amount.
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException
+	{
+		if (bytes < 0)
+			throw new IllegalArgumentException("Cannot acquire a negative amount of memory!");
+		
+		Object ticket = new Object();
+		queue.add(ticket);
+		boolean waited = false;
+		try
+		{
+			while (queue.getFirst() != ticket || (used > 0 && used + bytes > budget))
+			{
+				if (!waited)
+				{
+					logger.debug("Waiting for " + bytes + " bytes; " + used + " of " + budget + " are in use");
+					waited = true;
+					waiting++;
+					peakWaiting = Math.max(peakWaiting, waiting);
+				}
+				wait();
+			}
+		}
+		finally
+		{
+			if (waited)
+				waiting--;
+			queue.remove(ticket);
+			// the next task in line may fit now
+			notifyAll();
+		}
+		
+		used += bytes;
+		peakUsed = Math.max(peakUsed, used);
+	}
+	
+	public synchronized void release(long bytes)
+	{
+		used -= bytes;
+		notifyAll();
+	}
+	
+	public long getBudget()
+	{
+		return budget;
+	}
+	
+	/**
+	 * Returns the memory currently reserved.
+	 */
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+	
+	/**
+	 * Returns the most memory that has been reserved at once.
+	 */
+	public synchronized long getPeakUsed()
+	{
+		return peakUsed;
+	}
+	
+	/**
+	 * Returns the number of tasks currently waiting to be admitted.
+	 */
+	public synchronized int getWaiting()
+	{
+		return waiting;
+	}
+	
+	/**
+	 * Returns the most tasks that have been waiting at once.
+	 */
+	public synchronized int getPeakWaiting()
+	{
+		return peakWaiting;
+	}
+}
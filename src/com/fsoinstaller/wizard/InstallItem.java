@@ -54,6 +54,8 @@ import com.fsoinstaller.common.InstallerNode.FilePair;
 import com.fsoinstaller.common.InstallerNode.HashTriple;
 import com.fsoinstaller.common.InstallerNode.InstallUnit;
 import com.fsoinstaller.common.InstallerNode.PatchTriple;
+import com.fsoinstaller.common.PatchPlanner;
+import com.fsoinstaller.common.VPPatch;
 import com.fsoinstaller.internet.Connector;
 import com.fsoinstaller.internet.Downloader;
 import com.fsoinstaller.main.Configuration;
@@ -63,8 +65,11 @@ import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.KeyPair;
 import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.MemoryBudget;
 import com.fsoinstaller.utils.MiscUtils;
 
+import io.sigpipe.jbsdiff.BlockPatch;
+import io.sigpipe.jbsdiff.InvalidHeaderException;
 import io.sigpipe.jbsdiff.Patch;
 import io.sigpipe.jbsdiff.progress.ProgressEvent;
 import io.sigpipe.jbsdiff.progress.ProgressListener;
@@ -77,6 +82,9 @@ public class InstallItem extends JPanel
 {
 	private static final Logger logger = Logger.getLogger(InstallItem.class);
 	
+	// patches of all mods share one memory budget, so that several large patches can't exhaust the heap together
+	private static final MemoryBudget patchMemory = MemoryBudget.fromMaxMemory();
+	
 	private final InstallerNode node;
 	private final List<ChangeListener> listenerList;
 	
@@ -803,12 +811,21 @@ public class InstallItem extends JPanel
 			
 			final Connector connector = (Connector) configuration.getSettings().get(Configuration.CONNECTOR_KEY);
 			
+			// patches of the same file are planned together, since they may form a chain that must be applied in order
+			List<KeyPair<InstallUnit, List<PatchTriple>>> groups = new ArrayList<KeyPair<InstallUnit, List<PatchTriple>>>();
+			for (InstallUnit install: node.getInstallList())
+				for (List<PatchTriple> group: groupPatches(install.getPatchList()))
+					groups.add(new KeyPair<InstallUnit, List<PatchTriple>>(install, group));
+			
 			final int totalTasks = patchItems;
 			final AtomicInteger completions = new AtomicInteger(0);
-			final CountDownLatch latch = new CountDownLatch(totalTasks);
+			final CountDownLatch latch = new CountDownLatch(groups.size());
 			
-			for (InstallUnit install: node.getInstallList())
+			for (KeyPair<InstallUnit, List<PatchTriple>> pair: groups)
 			{
+				final InstallUnit install = pair.getObject1();
+				final List<PatchTriple> group = pair.getObject2();
+				
 				// try mirrors in random order
 				List<BaseURL> tempURLs = install.getBaseURLList();
 				if (tempURLs.size() > 1)
@@ -818,43 +835,37 @@ public class InstallItem extends JPanel
 				}
 				final List<BaseURL> urls = tempURLs;
 				
-				// perform all patches for the unit
-				for (final PatchTriple triple: install.getPatchList())
+				String fileName = group.get(0).getPrePatch().getFilename();
+				modLogger.debug("Submitting patch task for " + fileName);
+				
+				// submit a task for this file
+				FreeSpaceOpenInstaller.getInstance().submitTask(XSTR.getString("patchTitle") + " " + fileName, new Callable<Void>()
 				{
-					modLogger.debug("Submitting patch task for " + triple.getPrePatch().getFilename());
-					
-					int patchTaskIndex = patchTaskIndexes.get(new KeyPair<InstallUnit, PatchTriple>(install, triple));
-					final DownloadPanel patchPanel = (DownloadPanel) installTaskPanelList.get(patchTaskIndex);
-					
-					// submit a task for this patch
-					FreeSpaceOpenInstaller.getInstance().submitTask(XSTR.getString("patchTitle") + " " + triple.getPrePatch().getFilename(), new Callable<Void>()
+					public Void call()
 					{
-						public Void call()
+						// this technique will attempt to perform the patches,
+						// and then signal its completion via the countdown latch
+						try
 						{
-							// this technique will attempt to perform the patch,
-							// and then signal its completion via the countdown latch
-							try
-							{
-								// first do the patch
-								patchOne(connector, modFolder, urls, triple, patchPanel);
-								int complete = completions.incrementAndGet();
-								
-								// next update the progress bar
-								setRatioComplete(complete / ((double) totalTasks));
-							}
-							catch (RuntimeException re)
-							{
-								modLogger.error("Unhandled runtime exception!", re);
-								logInstallError(XSTR.getString("installResultUnexpectedRuntimeException"));
-							}
-							finally
-							{
-								latch.countDown();
-							}
-							return null;
+							// first do the patches
+							patchFile(connector, modFolder, urls, install, group);
+							int complete = completions.addAndGet(group.size());
+							
+							// next update the progress bar
+							setRatioComplete(complete / ((double) totalTasks));
 						}
-					});
-				}
+						catch (RuntimeException re)
+						{
+							modLogger.error("Unhandled runtime exception!", re);
+							logInstallError(XSTR.getString("installResultUnexpectedRuntimeException"));
+						}
+						finally
+						{
+							latch.countDown();
+						}
+						return null;
+					}
+				});
 			}
 			
 			// wait until all tasks have finished
@@ -870,12 +881,264 @@ public class InstallItem extends JPanel
 				return false;
 			}
 			modLogger.info("All patch tasks have completed!");
+			modLogger.debug("Patch memory so far: peak of " + patchMemory.getPeakUsed() + " out of " + patchMemory.getBudget() + " bytes, with up to " + patchMemory.getPeakWaiting() + " patches waiting at once");
 		}
 		
 		// always return true (we don't stop the installation if one of the PATCH items failed)
 		return true;
 	}
 	
+	/**
+	 * Splits a list of patches into groups that touch the same files, so that a patch whose post-patch file is the
+	 * pre-patch file of another patch ends up in the same group.
+	 */
+	private static List<List<PatchTriple>> groupPatches(List<PatchTriple> patches)
+	{
+		Map<String, List<PatchTriple>> groupsByFile = new HashMap<String, List<PatchTriple>>();
+		List<List<PatchTriple>> groups = new ArrayList<List<PatchTriple>>();
+		for (PatchTriple patch: patches)
+		{
+			String pre = patch.getPrePatch().getFilename().toLowerCase();
+			String post = patch.getPostPatch().getFilename().toLowerCase();
+			List<PatchTriple> group = groupsByFile.get(pre);
+			List<PatchTriple> other = groupsByFile.get(post);
+			
+			if (group == null)
+				group = (other == null) ? new ArrayList<PatchTriple>() : other;
+			// the patch joins two groups, so merge them
+			else if (other != null && other != group)
+			{
+				group.addAll(other);
+				groups.remove(other);
+				for (Map.Entry<String, List<PatchTriple>> entry: groupsByFile.entrySet())
+					if (entry.getValue() == other)
+						entry.setValue(group);
+			}
+			
+			if (group.isEmpty())
+				groups.add(group);
+			group.add(patch);
+			groupsByFile.put(pre, group);
+			groupsByFile.put(post, group);
+		}
+		return groups;
+	}
+	
+	/**
+	 * Brings one file up to date by the cheapest chain of patches, unless the install unit also downloads the final
+	 * version as it is and downloading it again is expected to be faster.
+	 */
+	private void patchFile(Connector connector, File modFolder, List<BaseURL> baseURLList, InstallUnit install, List<PatchTriple> group)
+	{
+		PatchPlanner planner = new PatchPlanner(group);
+		
+		// find which version the local file is, hashing each file only once per algorithm
+		Map<String, String> computedHashes = new HashMap<String, String>();
+		HashTriple current = null;
+		File localFile = null;
+		for (PatchTriple triple: group)
+		{
+			HashTriple prePatch = triple.getPrePatch();
+			File file = IOUtils.getFileIgnoreCase(modFolder, prePatch.getFilename());
+			if (file == null)
+				continue;
+			
+			String key = prePatch.getFilename().toLowerCase() + "\0" + prePatch.getAlgorithm().toUpperCase();
+			if (!computedHashes.containsKey(key))
+				computedHashes.put(key, computeHash(modFolder, prePatch));
+			String computedHash = computedHashes.get(key);
+			if (computedHash == null)
+				continue;
+			
+			HashTriple version = new HashTriple(prePatch.getAlgorithm(), prePatch.getFilename(), computedHash);
+			if (planner.isPatchable(version))
+			{
+				current = version;
+				localFile = file;
+				break;
+			}
+		}
+		if (current == null)
+		{
+			modLogger.info("No patch applies to the local version of " + group.get(0).getPrePatch().getFilename());
+			return;
+		}
+		
+		// gather what the plan depends on
+		double bandwidth = Downloader.getMeasuredBandwidth();
+		if (bandwidth > 0)
+			planner.setBandwidth(bandwidth);
+		for (PatchTriple triple: group)
+		{
+			long size = getRemoteFileSize(connector, baseURLList, triple.getPatch().getFilename());
+			if (size >= 0)
+				planner.setPatchSize(triple, size);
+		}
+		
+		// a full download is only an option if the unit downloads a final version as it is, rather than in an archive
+		String fullDownload = findFullDownload(install, group);
+		long fullDownloadSize = (fullDownload == null) ? -1 : getRemoteFileSize(connector, baseURLList, fullDownload);
+		
+		PatchPlanner.Plan plan = planner.plan(current, localFile.length(), fullDownloadSize);
+		if (plan == null)
+		{
+			modLogger.info("No chain of patches leads from the local version of " + current.getFilename() + " to a final version");
+			return;
+		}
+		modLogger.info("Plan for " + current.getFilename() + ": " + plan);
+		
+		HashTriple finalVersion = plan.getSteps().get(plan.getSteps().size() - 1).getPostPatch();
+		if (plan.isFullDownload() && finalVersion.getFilename().equalsIgnoreCase(fullDownload))
+		{
+			modLogger.info("Downloading " + fullDownload + " again should be faster than patching it");
+			int patchTaskIndex = patchTaskIndexes.get(new KeyPair<InstallUnit, PatchTriple>(install, plan.getSteps().get(0)));
+			DownloadPanel patchPanel = (DownloadPanel) installTaskPanelList.get(patchTaskIndex);
+			if (downloadFullVersion(connector, modFolder, baseURLList, fullDownload, finalVersion, patchPanel))
+				return;
+			
+			// the file is untouched, so patching it is still worth a try
+			modLogger.warn("Unable to download " + fullDownload + " again; patching it instead");
+		}
+		
+		// apply the chain in order; each step checks the hash of its result, which the next step starts from
+		for (PatchTriple step: plan.getSteps())
+		{
+			if (Thread.currentThread().isInterrupted())
+				return;
+			
+			int patchTaskIndex = patchTaskIndexes.get(new KeyPair<InstallUnit, PatchTriple>(install, step));
+			DownloadPanel patchPanel = (DownloadPanel) installTaskPanelList.get(patchTaskIndex);
+			if (!patchOne(connector, modFolder, baseURLList, step, patchPanel, true))
+			{
+				modLogger.warn("Stopping the patch chain for " + current.getFilename() + " at " + step.getPatch().getFilename());
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the file of an install unit that is a final version of a group of patches, downloaded as it is.  Such a
+	 * file is downloaded into the mod folder under its own name, so only final versions in the mod folder itself
+	 * qualify.  Archives are not considered, since what they contain isn't known until they are downloaded.
+	 * 
+	 * @return the name of the file, or null if the unit has none
+	 */
+	private static String findFullDownload(InstallUnit install, List<PatchTriple> group)
+	{
+		for (String file: install.getFileList())
+		{
+			String name = new File(file).getName();
+			if (Downloader.getArchiveFormat(name) != null)
+				continue;
+			
+			for (PatchTriple triple: group)
+			{
+				String postPatch = triple.getPostPatch().getFilename();
+				if (postPatch.indexOf('/') < 0 && postPatch.indexOf('\\') < 0 && postPatch.equalsIgnoreCase(name))
+					return postPatch;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Downloads the final version of a file in place of patching it.  The download goes to a temporary file, which
+	 * replaces the local file only once its hash matches; the INSTALL step would not necessarily do this, since it
+	 * skips files that are already the same size.
+	 */
+	private boolean downloadFullVersion(Connector connector, File modFolder, List<BaseURL> baseURLList, String file, HashTriple finalVersion, final DownloadPanel downloadPanel)
+	{
+		File tempFile = new File(modFolder, InstallerUtils.UUID() + ".download");
+		
+		boolean success = false;
+		for (BaseURL baseURL: baseURLList)
+		{
+			URL url;
+			try
+			{
+				url = baseURL.toURL(file);
+			}
+			catch (MalformedURLException murle)
+			{
+				modLogger.error("Bad URL '" + baseURL.toString() + file + "'", murle);
+				continue;
+			}
+			
+			// a destination that is not a directory is downloaded to as it is
+			final Downloader downloader = new Downloader(connector, url, tempFile, node.getTreePath());
+			EventQueue.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					downloadPanel.setPending();
+					downloadPanel.setDownloader(downloader);
+				}
+			});
+			
+			try
+			{
+				success = downloader.download();
+			}
+			catch (RuntimeException re)
+			{
+				modLogger.error("Unexpected runtime exception while downloading!", re);
+			}
+			if (success || Thread.currentThread().isInterrupted())
+				break;
+		}
+		
+		// check that we got the version the patches would have produced
+		String computedHash = success ? computeHash(modFolder, new InstallerNode.HashTriple(finalVersion.getAlgorithm(), tempFile.getName(), finalVersion.getHash())) : null;
+		if (computedHash == null || !finalVersion.getHash().equalsIgnoreCase(computedHash))
+		{
+			if (computedHash != null)
+				modLogger.warn("Downloaded file has a computed hash value of " + computedHash + " rather than the required hash value of " + finalVersion.getHash());
+			if (tempFile.exists() && !tempFile.delete())
+				modLogger.error("Unable to delete '" + tempFile.getName() + "'!");
+			return false;
+		}
+		
+		// replace the local file
+		File localFile = IOUtils.newFileIgnoreCase(modFolder, file);
+		if (localFile.exists() && !localFile.delete())
+		{
+			modLogger.error("Unable to delete the old version of '" + file + "'!");
+			tempFile.delete();
+			return false;
+		}
+		if (!tempFile.renameTo(localFile))
+		{
+			modLogger.error("Unable to rename '" + tempFile.getName() + "' to '" + localFile.getName() + "'!");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the size of a remote file from the first mirror that reports it, or -1 if none does.
+	 */
+	private long getRemoteFileSize(Connector connector, List<BaseURL> baseURLList, String file)
+	{
+		for (BaseURL baseURL: baseURLList)
+		{
+			try
+			{
+				int length = connector.getContentLength(baseURL.toURL(file));
+				if (length >= 0)
+					return length;
+			}
+			catch (MalformedURLException murle)
+			{
+				modLogger.error("Bad URL '" + baseURL.toString() + file + "'", murle);
+			}
+			catch (IOException ioe)
+			{
+				modLogger.debug("Unable to get the size of '" + file + "' from " + baseURL, ioe);
+			}
+		}
+		return -1;
+	}
+	
 	/**
 	 * Perform the main installation tasks for this node.
 	 */
@@ -1141,7 +1404,11 @@ public class InstallItem extends JPanel
 		return true;
 	}
 	
-	private void patchOne(Connector connector, File modFolder, List<BaseURL> baseURLList, PatchTriple triple, final DownloadPanel downloadPanel)
+	/**
+	 * Downloads and applies one patch.  The hash of the pre-patch file is checked first unless the caller has already
+	 * checked it.
+	 */
+	private boolean patchOne(Connector connector, File modFolder, List<BaseURL> baseURLList, PatchTriple triple, final DownloadPanel downloadPanel, boolean prePatchVerified)
 	{
 		modLogger.info("Patching " + triple.getPrePatch().getFilename());
 		
@@ -1150,27 +1417,31 @@ public class InstallItem extends JPanel
 		if (prePatchFile == null)
 		{
 			modLogger.info("File does not exist; cannot patch it");
-			return;
+			return false;
 		}
 		
 		// see if the hash is what we expect
-		String computedHash = computeHash(modFolder, triple.getPrePatch());
-		if (computedHash == null)
-		{
-			// warning message was already displayed in computeHash()
-			return;
-		}
-		else if (!triple.getPrePatch().getHash().equalsIgnoreCase(computedHash))
+		String computedHash;
+		if (!prePatchVerified)
 		{
-			modLogger.info("Cannot proceed with patch; computed hash value of " + computedHash + " does not match required hash value of " + triple.getPrePatch().getHash());
-			return;
+			computedHash = computeHash(modFolder, triple.getPrePatch());
+			if (computedHash == null)
+			{
+				// warning message was already displayed in computeHash()
+				return false;
+			}
+			else if (!triple.getPrePatch().getHash().equalsIgnoreCase(computedHash))
+			{
+				modLogger.info("Cannot proceed with patch; computed hash value of " + computedHash + " does not match required hash value of " + triple.getPrePatch().getHash());
+				return false;
+			}
 		}
 		
 		// we can patch this file, so download the patch!
 		if (!downloadOne(connector, modFolder, baseURLList, triple.getPatch().getFilename(), downloadPanel))
 		{
 			modLogger.warn("Unable to download the patch for '" + triple.getPrePatch().getFilename() + "'!");
-			return;
+			return false;
 		}
 		
 		// hash the patch itself
@@ -1178,7 +1449,7 @@ public class InstallItem extends JPanel
 		if (computedHash == null)
 		{
 			// warning message was already displayed in computeHash()
-			return;
+			return false;
 		}
 		else if (!triple.getPatch().getHash().equalsIgnoreCase(computedHash))
 		{
@@ -1201,34 +1472,89 @@ public class InstallItem extends JPanel
 			else
 				modLogger.error("Unable to delete the patch file!");						
 			
-			return;
+			return false;
 		}
 		File patchFile = IOUtils.newFileIgnoreCase(modFolder, triple.getPatch().getFilename());
 
 		// create a temporary file as the patch destination
-		String unique = InstallerUtils.UUID() + ".patched";
+		// (block patches get a predictable one, so that an interrupted patch resumes where it stopped; it is named
+		// after the whole path of the file, escaped so that files of the same name in different folders, which are
+		// patched at the same time, never share it)
+		String unique = BlockPatch.isBlockPatch(patchFile) ? escapePath(triple.getPrePatch().getFilename()) + ".patching" : InstallerUtils.UUID() + ".patched";
 		File targetFile = new File(modFolder, unique);
 		
+		// wait until the patch fits in memory alongside the others
+		long memoryNeeded;
+		try
+		{
+			memoryNeeded = estimatePatchMemory(triple, prePatchFile, patchFile);
+		}
+		catch (IOException ioe)
+		{
+			downloadPanel.setTaskFailed(prePatchFile.getName());
+			modLogger.warn("Unable to read the patch for " + prePatchFile.getName(), ioe);
+			
+			return false;
+		}
+		modLogger.debug("Patching " + prePatchFile.getName() + " needs about " + memoryNeeded + " bytes of memory");
+		try
+		{
+			patchMemory.acquire(memoryNeeded);
+		}
+		catch (InterruptedException ie)
+		{
+			modLogger.error("Thread was interrupted while waiting for memory to patch " + prePatchFile.getName() + "!", ie);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		
 		// we have good files, so perform the patching!
-		Patch patch = new Patch();
-		patch.addProgressListener(new ProgressListener()
+		try
 		{
-			public void progressMade(ProgressEvent event)
+			// VP patches are applied entry by entry rather than to the whole file
+			if (VPPatch.PATCH_TYPE.equalsIgnoreCase(triple.getPatchType()))
 			{
-				// in the same way we report progress on downloaded files, do so on patched files 
-				downloadPanel.setTaskProgress(prePatchFile.getName(), event.getCurrent(), event.getTotal());
+				VPPatch vpPatch = new VPPatch();
+				vpPatch.addProgressListener(new VPPatch.ProgressListener()
+				{
+					public void progressMade(final long bytesProcessed, final long totalBytes)
+					{
+						// the listener is called from the patching threads
+						EventQueue.invokeLater(new Runnable()
+						{
+							public void run()
+							{
+								downloadPanel.setTaskProgress(prePatchFile.getName(), bytesProcessed, totalBytes);
+							}
+						});
+					}
+				});
+				vpPatch.apply(prePatchFile, patchFile, targetFile);
+			}
+			else
+			{
+				Patch patch = new Patch();
+				patch.addProgressListener(new ProgressListener()
+				{
+					public void progressMade(ProgressEvent event)
+					{
+						// in the same way we report progress on downloaded files, do so on patched files 
+						downloadPanel.setTaskProgress(prePatchFile.getName(), event.getCurrent(), event.getTotal());
+					}
+				});
+				IOUtils.applyPatch(patch, prePatchFile, patchFile, targetFile);
 			}
-		});
-		try
-		{
-			IOUtils.applyPatch(patch, prePatchFile, patchFile, targetFile);
 		}
 		catch (IOException ioe)
 		{
 			downloadPanel.setTaskFailed(prePatchFile.getName());
 			modLogger.warn("Unable to patch " + prePatchFile.getName(), ioe);
 			
-			return;
+			return false;
+		}
+		finally
+		{
+			patchMemory.release(memoryNeeded);
 		}
 		
 		// now hash the resulting file
@@ -1256,7 +1582,7 @@ public class InstallItem extends JPanel
 			else
 				modLogger.error("Unable to delete the unsuccessfully-patched file!");
 			
-			return;
+			return false;
 		}
 		
 		// finally, replace the original file with the result		
@@ -1278,6 +1604,37 @@ public class InstallItem extends JPanel
 		if (!targetFile.renameTo(postPatchFile))
 		{
 			modLogger.error("Unable to rename '" + targetFile.getName() + "' to '" + postPatchFile.getName() + "'!");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Turns a relative path into a file name, such that different paths never give the same name.
+	 */
+	private static String escapePath(String path)
+	{
+		return path.toLowerCase().replace("%", "%25").replace("/", "%2F").replace("\\", "%5C");
+	}
+	
+	/**
+	 * Estimates the memory needed to apply a patch, from the sizes in its header or index.
+	 */
+	private static long estimatePatchMemory(PatchTriple triple, File prePatchFile, File patchFile) throws IOException
+	{
+		if (VPPatch.PATCH_TYPE.equalsIgnoreCase(triple.getPatchType()))
+			return new VPPatch().estimateMemory(prePatchFile, patchFile);
+		
+		try
+		{
+			return new Patch().estimateMemory(patchFile);
+		}
+		catch (InvalidHeaderException ihe)
+		{
+			IOException ioe = new IOException("Invalid header in patch file");
+			ioe.initCause(ihe);
+			throw ioe;
 		}
 	}
 	
@@ -1302,6 +1659,7 @@ public class InstallItem extends JPanel
 			
 			// make a downloader for our panel
 			final Downloader downloader = new Downloader(connector, url, modFolder, node.getTreePath());
+			downloader.setPackingIntoVP(node.getFlagList().contains(InstallerNode.PACK_INTO_VP));
 			EventQueue.invokeLater(new Runnable()
 			{
 				public void run()
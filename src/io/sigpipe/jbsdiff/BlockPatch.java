@@ -0,0 +1,609 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package io.sigpipe.jbsdiff;
+
+import io.sigpipe.jbsdiff.progress.ProgressEvent;
+import io.sigpipe.jbsdiff.progress.ProgressListener;
+
+import java.awt.EventQueue;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.compressors.CompressorException;
+
+/**
+ * Creates and applies block patches: the new file is cut into fixed-size
+ * blocks, and each block is stored as an ordinary bsdiff patch against a
+ * window of the old file, so blocks can be created and applied in any order
+ * and on any number of threads.
+ * <p>
+ * A block patch starts with an index, written big-endian:
+ * <pre>
+ * "BSDIFFBK"                 magic
+ * block size                 int, size of every block but the last
+ * output length              long, size of the new file
+ * block count                int
+ * per block:
+ *   patch length             int, size of the block's bsdiff patch
+ *   old start                long, start of the block's old window
+ *   old length               int, size of the block's old window
+ *   CRC-32                   int, checksum of the block's new data
+ * block patches              one after another, in block order
+ * </pre>
+ * Blocks are written to the new file with positional writes and checked
+ * against their checksums.  If the new file already exists, as when an
+ * earlier attempt was interrupted, blocks that already match their
+ * checksums are kept, so patching resumes where it stopped.
+ */
+public class BlockPatch {
+
+    /** Patch type of block patches, as given to the diff command and in
+     * mod files.  Block patches are recognized by their magic when applied. */
+    public static final String PATCH_TYPE = "blocks";
+
+    /** Magic number at the start of a block patch. */
+    public static final String MAGIC = "BSDIFFBK";
+
+    /** Default size of a block of the new file. */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 22;
+
+    /** Size of the fixed part of the index. */
+    private static final int INDEX_HEADER_SIZE = 8 + 4 + 8 + 4;
+
+    /** Size of the index entry of one block. */
+    private static final int INDEX_ENTRY_SIZE = 4 + 8 + 4 + 4;
+
+    /** Size of the buffer used to copy the block patches. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final List<ProgressListener> progressListeners =
+            new CopyOnWriteArrayList<ProgressListener>();
+
+    /** Number of threads creating or applying blocks. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /** Size of the blocks of new patches. */
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Sets the number of threads used to create or apply blocks.  The
+     * default is the number of available processors.
+     *
+     * @param threadCount number of threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Sets the size of the blocks the new file is cut into when creating a
+     * patch.  Each thread needs about thirteen times this much memory.  The
+     * default is 4 MB.
+     *
+     * @param blockSize block size in bytes, at least 1
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1 || blockSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException(String.format(
+                    "%d is not a valid block size.", blockSize));
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Estimates the memory that {@link #patch(File, File, File)} needs for
+     * the given patch: each thread holds one block's patch, old window and
+     * output at a time, so this is the largest block's need times the
+     * number of threads.
+     *
+     * @param patchFile the block patch to apply
+     * @return estimated number of bytes
+     *
+     * @throws InvalidHeaderException when the patch is not a block patch
+     * @throws IOException when an I/O error occurs, or the index is corrupt
+     */
+    public long estimateMemory(File patchFile)
+            throws InvalidHeaderException, IOException {
+        DataInputStream index = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(patchFile)));
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            index.readFully(magic);
+            if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+                throw new InvalidHeaderException("Block patch missing magic number");
+            }
+            int size = index.readInt();
+            long outputLength = index.readLong();
+            int blockCount = index.readInt();
+            if (size <= 0 || outputLength < 0 || blockCount < 0
+                    || blockCount != (outputLength + size - 1) / size) {
+                throw new IOException("Corrupt patch; invalid block patch index");
+            }
+
+            Patch patch = new Patch();
+            patch.setReadingAhead(false);
+            long largest = 0;
+            for (int i = 0; i < blockCount; i++) {
+                long newLength = Math.min(size, outputLength - (long) i * size);
+                int patchLength = index.readInt();
+                index.readLong();
+                int oldLength = index.readInt();
+                index.readInt();
+
+                /* The block is also copied out of its ByteArrayOutputStream */
+                long need = (long) patchLength + oldLength + 2 * newLength
+                        + patch.estimateMemory(newLength);
+                largest = Math.max(largest, need);
+            }
+            return largest * Math.min(threadCount, Math.max(1, blockCount));
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Tells whether the given file is a block patch.
+     *
+     * @param file file to check
+     * @return true if the file starts with the block patch magic
+     */
+    public static boolean isBlockPatch(File file) {
+        if (!file.isFile() || file.length() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] magic = new byte[MAGIC.length()];
+                new DataInputStream(in).readFully(magic);
+                return MAGIC.equals(new String(magic, "US-ASCII"));
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a block patch that turns <code>oldFile</code> into
+     * <code>newFile</code>.  Each block of the new file is diffed against a
+     * window of the old file twice its size, centred on the same offset.
+     *
+     * @param oldFile   the original ('old') state of the file
+     * @param newFile   the new state of the file
+     * @param patchFile the patch to create
+     * @param settings  compression and suffix sort of the block patches
+     *
+     * @throws CompressorException when a compression error occurs.
+     * @throws InvalidHeaderException when a block patch header is invalid
+     * @throws IOException when an I/O error occurs
+     */
+    public void diff(File oldFile, File newFile, File patchFile,
+            final DiffSettings settings)
+            throws CompressorException, InvalidHeaderException, IOException {
+        final long oldLength = oldFile.length();
+        final long newLength = newFile.length();
+        final int size = blockSize;
+        long count = (newLength + size - 1) / size;
+        if (count > (Integer.MAX_VALUE - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE) {
+            throw new IOException("The new file has too many blocks for a " +
+                    "block patch; use a larger block size");
+        }
+        final int blockCount = (int) count;
+        final int[] patchLengths = new int[blockCount];
+        final long[] oldStarts = new long[blockCount];
+        final int[] oldLengths = new int[blockCount];
+        final int[] checksums = new int[blockCount];
+
+        File directory = patchFile.getAbsoluteFile().getParentFile();
+        File dataFile = File.createTempFile("bsdiff", ".blocks", directory);
+        RandomAccessFile oldIn = null;
+        RandomAccessFile newIn = null;
+        OutputStream dataOut = null;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            oldIn = new RandomAccessFile(oldFile, "r");
+            newIn = new RandomAccessFile(newFile, "r");
+            dataOut = new BufferedOutputStream(new FileOutputStream(dataFile));
+            final FileChannel oldChannel = oldIn.getChannel();
+            final FileChannel newChannel = newIn.getChannel();
+
+            /* Blocks are diffed concurrently but written in order, with a
+             * limited number in flight so that memory stays bounded */
+            LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+            int next = 0;
+            long done = 0;
+            for (int written = 0; written < blockCount; written++) {
+                while (next < blockCount && next - written < threadCount * 2) {
+                    final int index = next++;
+                    inFlight.add(executor.submit(new Callable<byte[]>() {
+                        public byte[] call() throws CompressorException,
+                                InvalidHeaderException, IOException {
+                            long start = (long) index * size;
+                            byte[] newBytes = new byte[(int) Math.min(size, newLength - start)];
+                            read(newChannel, start, newBytes);
+                            CRC32 crc = new CRC32();
+                            crc.update(newBytes);
+                            checksums[index] = (int) crc.getValue();
+
+                            int windowLength = (int) Math.min(oldLength, 2L * size);
+                            long windowStart = Math.max(0, Math.min(start - size / 2,
+                                    oldLength - windowLength));
+                            byte[] oldBytes = new byte[windowLength];
+                            read(oldChannel, windowStart, oldBytes);
+                            oldStarts[index] = windowStart;
+                            oldLengths[index] = windowLength;
+
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            new Diff().diff(oldBytes, newBytes, out, settings);
+                            return out.toByteArray();
+                        }
+                    }));
+                }
+
+                byte[] blockPatch = get(inFlight.removeFirst());
+                dataOut.write(blockPatch);
+                patchLengths[written] = blockPatch.length;
+                done += Math.min(size, newLength - (long) written * size);
+                fireProgress(done, newLength);
+            }
+            dataOut.close();
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(patchFile));
+            try {
+                DataOutputStream index = new DataOutputStream(out);
+                index.write(MAGIC.getBytes("US-ASCII"));
+                index.writeInt(size);
+                index.writeLong(newLength);
+                index.writeInt(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    index.writeInt(patchLengths[i]);
+                    index.writeLong(oldStarts[i]);
+                    index.writeInt(oldLengths[i]);
+                    index.writeInt(checksums[i]);
+                }
+                index.flush();
+                copy(dataFile, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            executor.shutdownNow();
+            closeQuietly(oldIn);
+            closeQuietly(newIn);
+            closeQuietly(dataOut);
+            dataFile.delete();
+        }
+
+        fireProgress(newLength, newLength);
+    }
+
+    /**
+     * Applies a block patch to <code>oldFile</code>, writing the result to
+     * <code>newFile</code>.  Blocks are applied concurrently.  If
+     * <code>newFile</code> already exists, the blocks in it that match their
+     * checksums are kept and only the rest are applied.
+     *
+     * @param oldFile   the original ('old') state of the file
+     * @param newFile   the file to write the patched file to
+     * @param patchFile the block patch to apply
+     *
+     * @throws CompressorException when a compression error occurs.
+     * @throws InvalidHeaderException when the patch is not a block patch, or
+     *     a block patch header is invalid
+     * @throws IOException when an I/O error occurs, or the patch is corrupt
+     */
+    public void patch(File oldFile, File newFile, File patchFile)
+            throws CompressorException, InvalidHeaderException, IOException {
+        boolean resuming = newFile.exists();
+
+        RandomAccessFile patchIn = null;
+        RandomAccessFile oldIn = null;
+        RandomAccessFile newOut = null;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            patchIn = new RandomAccessFile(patchFile, "r");
+            DataInputStream index = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(patchIn.getFD())));
+            byte[] magic = new byte[MAGIC.length()];
+            index.readFully(magic);
+            if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+                throw new InvalidHeaderException("Block patch missing magic number");
+            }
+            final int size = index.readInt();
+            final long outputLength = index.readLong();
+            int blockCount = index.readInt();
+            if (size <= 0 || outputLength < 0 || blockCount < 0
+                    || blockCount != (outputLength + size - 1) / size) {
+                throw new IOException("Corrupt patch; invalid block patch index");
+            }
+
+            /* Read the index entries and check that the blocks fill the rest
+             * of the patch exactly */
+            final FileChannel patchChannel = patchIn.getChannel();
+            long position = INDEX_HEADER_SIZE + (long) INDEX_ENTRY_SIZE * blockCount;
+            List<Block> blocks = new ArrayList<Block>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                Block block = new Block();
+                block.newStart = (long) i * size;
+                block.newLength = (int) Math.min(size, outputLength - block.newStart);
+                block.patchStart = position;
+                block.patchLength = index.readInt();
+                block.oldStart = index.readLong();
+                block.oldLength = index.readInt();
+                block.checksum = index.readInt();
+                if (block.patchLength < 0 || block.oldStart < 0 || block.oldLength < 0) {
+                    throw new IOException("Corrupt patch; invalid block patch index");
+                }
+                position += block.patchLength;
+                blocks.add(block);
+            }
+            if (position != patchChannel.size()) {
+                throw new IOException("Corrupt patch; block patch length doesn't match its index");
+            }
+
+            oldIn = new RandomAccessFile(oldFile, "r");
+            newOut = new RandomAccessFile(newFile, "rw");
+            newOut.setLength(outputLength);
+            final FileChannel oldChannel = oldIn.getChannel();
+            final FileChannel newChannel = newOut.getChannel();
+            final boolean checkExisting = resuming;
+            final AtomicLong done = new AtomicLong();
+
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(blockCount);
+            for (final Block block : blocks) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws CompressorException,
+                            InvalidHeaderException, IOException {
+                        applyBlock(block, oldChannel, patchChannel, newChannel,
+                                checkExisting);
+                        fireProgress(done.addAndGet(block.newLength), outputLength);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                get(future);
+            }
+
+            newOut.close();
+            newOut = null;
+            fireProgress(outputLength, outputLength);
+        } finally {
+            executor.shutdownNow();
+            closeQuietly(patchIn);
+            closeQuietly(oldIn);
+            closeQuietly(newOut);
+        }
+    }
+
+    /**
+     * Applies one block, unless the new file already holds it.
+     */
+    private static void applyBlock(Block block, FileChannel oldChannel,
+            FileChannel patchChannel, FileChannel newChannel,
+            boolean checkExisting)
+            throws CompressorException, InvalidHeaderException, IOException {
+        if (checkExisting) {
+            byte[] existing = new byte[block.newLength];
+            read(newChannel, block.newStart, existing);
+            if (checksum(existing) == block.checksum) {
+                return;
+            }
+        }
+
+        byte[] blockPatch = new byte[block.patchLength];
+        read(patchChannel, block.patchStart, blockPatch);
+        byte[] oldBytes = new byte[block.oldLength];
+        readOld(oldChannel, block.oldStart, oldBytes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.newLength);
+        Patch patch = new Patch();
+        patch.setReadingAhead(false);
+        patch.patch(oldBytes, blockPatch, out);
+        byte[] newBytes = out.toByteArray();
+        if (newBytes.length != block.newLength || checksum(newBytes) != block.checksum) {
+            throw new IOException(String.format("Corrupt patch; block at " +
+                    "offset %d doesn't match its checksum", block.newStart));
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(newBytes);
+        while (buffer.hasRemaining()) {
+            newChannel.write(buffer, block.newStart + buffer.position());
+        }
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads exactly <code>dest.length</code> bytes at the given position.
+     */
+    private static void read(FileChannel channel, long position, byte[] dest)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dest);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Reads an old window.  A patch created against a different old file
+     * may have windows past its end; those bytes are read as zeroes, and
+     * the block checksums catch the mismatch.
+     */
+    private static void readOld(FileChannel channel, long position, byte[] dest)
+            throws IOException {
+        long available = Math.max(0, Math.min(dest.length, channel.size() - position));
+        ByteBuffer buffer = ByteBuffer.wrap(dest, 0, (int) available);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Waits for a block task, rethrowing its exception.
+     */
+    private static <T> T get(Future<T> future)
+            throws CompressorException, InvalidHeaderException, IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof CompressorException) {
+                throw (CompressorException) cause;
+            } else if (cause instanceof InvalidHeaderException) {
+                throw (InvalidHeaderException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (IOException) new IOException("Unable to process a block")
+                    .initCause(cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Thread was interrupted while processing blocks");
+        }
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException ioe) {
+            // do nothing
+        }
+    }
+
+	public void addProgressListener(ProgressListener listener)
+	{
+		progressListeners.add(listener);
+	}
+	
+	public void removeProgressListener(ProgressListener listener)
+	{
+		progressListeners.remove(listener);
+	}
+	
+	/**
+	 * Progress events carry ints, so sizes of 2 GB or more are reported in
+	 * kilobytes.
+	 */
+	private void fireProgress(long current, long total)
+	{
+		if (total > Integer.MAX_VALUE)
+		{
+			current /= 1024;
+			total /= 1024;
+		}
+		final int currentValue = (int) current;
+		final int totalValue = (int) total;
+		EventQueue.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				ProgressEvent event = null;
+				for (ProgressListener listener: progressListeners)
+				{
+					// lazy instantiation of the event
+					if (event == null)
+						event = new ProgressEvent(BlockPatch.class, currentValue, totalValue);
+					
+					// fire it
+					listener.progressMade(event);
+				}
+			}
+		});
+	}
+
+    /**
+     * The index entry of one block.
+     */
+    private static class Block {
+        long newStart;
+        int newLength;
+        long patchStart;
+        int patchLength;
+        long oldStart;
+        int oldLength;
+        int checksum;
+    }
+}
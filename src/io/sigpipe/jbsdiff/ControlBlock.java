@@ -45,17 +45,17 @@ class ControlBlock {
     /**
      * Length of the patch diff block
      */
-    private int diffLength;
+    private long diffLength;
 
     /**
      * Length of the patch extra block
      */
-    private int extraLength;
+    private long extraLength;
 
     /**
      * Bytes to seek forward after completing the control block directives.
      */
-    private int seekLength;
+    private long seekLength;
 
     public ControlBlock() { }
 
@@ -71,7 +71,7 @@ class ControlBlock {
         //TODO: validate lengths (should be >= 0)
     }
 
-    public ControlBlock(int diffLength, int extraLength, int seekLength) {
+    public ControlBlock(long diffLength, long extraLength, long seekLength) {
         this.diffLength = diffLength;
         this.extraLength = extraLength;
         this.seekLength = seekLength;
@@ -94,27 +94,27 @@ class ControlBlock {
         return diffLength + ", " + extraLength + ", " + seekLength;
     }
 
-    public int getDiffLength() {
+    public long getDiffLength() {
         return diffLength;
     }
 
-    public void setDiffLength(int length) {
+    public void setDiffLength(long length) {
         diffLength = length;
     }
 
-    public int getExtraLength() {
+    public long getExtraLength() {
         return extraLength;
     }
 
-    public void setExtraLength(int length) {
+    public void setExtraLength(long length) {
         extraLength = length;
     }
 
-    public int getSeekLength() {
+    public long getSeekLength() {
         return seekLength;
     }
 
-    public void setSeekLength(int length) {
+    public void setSeekLength(long length) {
         seekLength = length;
     }
 
@@ -31,27 +31,108 @@ import io.sigpipe.jbsdiff.sort.SearchResult;
 import io.sigpipe.jbsdiff.sort.SuffixSort;
 
 import java.awt.EventQueue;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.tukaani.xz.LZMA2Options;
 
 /**
  * This class provides functionality for generating bsdiff patches from two
  * source files (an old and new file).  Using the differences between the old
  * and new files, a bsdiff patch can be applied to an old file to generate a
  * copy of the new file.
+ * <p>
+ * With more than one thread, a large new file is split into regions that are
+ * scanned concurrently against the same suffix array, and the control, diff
+ * and extra strings of the regions are joined into a single patch.  Matches
+ * can't cross a region boundary, so the patch may be slightly larger than a
+ * sequential one.  Sections compressed with bzip2 are also compressed on that
+ * many threads, which doesn't change the patch.
  *
  * @author malensek
  */
 public class Diff {
 
+    /** Smallest region of the new file worth scanning on its own thread. */
+    private static final int MIN_REGION_SIZE = 1 << 20;
+
+    /** Number of regions per thread, so that threads finishing early can
+     * pick up more work. */
+    private static final int REGIONS_PER_THREAD = 4;
+
+    /** Default size of the windows large files are diffed in. */
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 24;
+
+    /** Memory a bzip2 or gzip compressor is assumed to need. */
+    private static final long COMPRESSOR_MEMORY = 8 << 20;
+
+    /** Size of the buffer used to copy temporary files into the patch. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
 	private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<ProgressListener>();
 	
+    /** Number of threads scanning the new file. */
+    private int threadCount = 1;
+
+    /** Size of the windows the new file is diffed in. */
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /** Patch bytes that one second of decompressing is worth when the
+     * compressor is chosen automatically. */
+    private double decompressionWeight = 0;
+
+    /**
+     * Sets the number of threads used to scan the new file.  The default is
+     * one, which creates the same patch as bsdiff.
+     *
+     * @param threadCount number of threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1.");
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Sets how the compressor of each section is chosen when the patch is
+     * compressed with {@link CompressorStreamFactory#AUTO}.  With a weight of
+     * zero, the default, the smallest section wins; otherwise each section
+     * is also decompressed and timed, and the one with the lowest
+     * <code>size + weight * seconds</code> wins.
+     *
+     * @param bytesPerSecond patch bytes that one second of decompressing is
+     *                       worth, such as the bandwidth the patch is
+     *                       expected to be downloaded at
+     */
+    public void setDecompressionWeight(double bytesPerSecond) {
+        if (!(bytesPerSecond >= 0)) {
+            throw new IllegalArgumentException("Decompression weight cannot be negative.");
+        }
+        this.decompressionWeight = bytesPerSecond;
+    }
+
     /**
      * Using two different versions of a file, generate a bsdiff patch that can
      * be applied to the old file to create the new file.  Uses the default
@@ -99,32 +180,412 @@ public class Diff {
 
         int[] I = settings.sort(oldBytes);
 
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        OutputStream patchOut =
-                compressor.createCompressorOutputStream(compression, byteOut);
+        List<Region> regions = scan(I, oldBytes, newBytes, 0,
+                new AtomicLong(), newBytes.length);
+
+        ByteArrayOutputStream controlBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream diffBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream extraBytes = new ByteArrayOutputStream();
+        PatchWriter writer = new PatchWriter(compressor, compression,
+                threadCount, controlBytes, diffBytes, extraBytes);
+        try {
+            writer.write(regions, 0);
+            writer.close();
+        } finally {
+            writer.closeQuietly();
+        }
+
+        Header header = new Header();
+        header.setOutputLength(newBytes.length);
+        if (isAuto(compression)) {
+            /* Automatic compression keeps the best trial of each raw section */
+            byte[][] sections = new TrialCompressor(threadCount,
+                    decompressionWeight).compress(new byte[][] {
+                            controlBytes.toByteArray(),
+                            diffBytes.toByteArray(),
+                            extraBytes.toByteArray() });
+            header.setControlLength(sections[0].length);
+            header.setDiffLength(sections[1].length);
+            header.write(out);
+            for (byte[] section : sections) {
+                out.write(section);
+            }
+        } else {
+            header.setControlLength(controlBytes.size());
+            header.setDiffLength(diffBytes.size());
+            header.write(out);
+            controlBytes.writeTo(out);
+            diffBytes.writeTo(out);
+            extraBytes.writeTo(out);
+        }
+        
+        fireProgress(newBytes.length, newBytes.length);
+    }
+
+    /**
+     * Using two different versions of a file, generate a bsdiff patch that can
+     * be applied to the old file to create the new file, without reading
+     * either file into memory as a whole.
+     * <p>
+     * The new file is diffed one window at a time against a window of the
+     * old file twice as large, centred on the same offset, so memory use
+     * depends on the window size rather than on the size of the files.  The
+     * control, diff and extra strings are compressed into temporary files
+     * next to the patch as they are produced.  Files that fit in a single
+     * window create the same patch as
+     * {@link #diff(byte[], byte[], OutputStream, DiffSettings)}; larger
+     * files lose matches that lie more than half a window away from where
+     * they are in the new file, unless {@link #fitWindow} widens the window
+     * to cover them.  Offsets and lengths are written as 64-bit
+     * values, so files of 2 GB and more can be diffed.
+     *
+     * @param oldFile     The original ('old') state of the file/binary.
+     * @param newFile     New state of the file/binary that will be compared
+     *                        to create a patch file
+     * @param patchFile   The patch file to create
+     * @param settings    A {@link DiffSettings} implementation, which defines
+     *                        the compression and suffix sort algorithms to
+     *                        create the patch with.
+     *
+     * @throws CompressorException when a compression error occurs.
+     * @throws InvalidHeaderException when the bsdiff header is malformed or not
+     *     present.
+     * @throws IOException when an error occurs reading the files or writing
+     *     the patch.
+     */
+    public void diff(File oldFile, File newFile, File patchFile,
+                            DiffSettings settings)
+            throws CompressorException, InvalidHeaderException, IOException {
+        long oldLength = oldFile.length();
+        long newLength = newFile.length();
+
+        CompressorStreamFactory compressor = new CompressorStreamFactory();
+        String compression = settings.getCompression();
+
+        File directory = patchFile.getAbsoluteFile().getParentFile();
+        File controlFile = File.createTempFile("bsdiff", ".ctrl", directory);
+        File diffFile = File.createTempFile("bsdiff", ".diff", directory);
+        File extraFile = File.createTempFile("bsdiff", ".extra", directory);
+        RandomAccessFile oldIn = null;
+        RandomAccessFile newIn = null;
+        OutputStream controlOut = null;
+        OutputStream diffOut = null;
+        OutputStream extraOut = null;
+        PatchWriter writer = null;
+        File[] compressed = null;
+        try {
+            oldIn = new RandomAccessFile(oldFile, "r");
+            newIn = new RandomAccessFile(newFile, "r");
+            controlOut = new BufferedOutputStream(new FileOutputStream(controlFile));
+            diffOut = new BufferedOutputStream(new FileOutputStream(diffFile));
+            extraOut = new BufferedOutputStream(new FileOutputStream(extraFile));
+            writer = new PatchWriter(compressor, compression,
+                    threadCount, controlOut, diffOut, extraOut);
+
+            AtomicLong progress = new AtomicLong();
+            byte[] oldBytes = new byte[(int) Math.min(oldLength, 2L * windowSize)];
+            byte[] newBytes = new byte[(int) Math.min(newLength, windowSize)];
+            int[] I = null;
+            long sortedStart = -1;
+            for (long start = 0; start < newLength; start += windowSize) {
+                int length = (int) Math.min(windowSize, newLength - start);
+                if (length != newBytes.length) {
+                    newBytes = new byte[length];
+                }
+                newIn.seek(start);
+                newIn.readFully(newBytes);
+
+                /* Centre the old window on the same offset, keeping it
+                 * within the old file */
+                long oldStart = Math.max(0, Math.min(start - windowSize / 2,
+                        oldLength - oldBytes.length));
+
+                /* An empty old file has nothing to match against */
+                if (oldBytes.length == 0) {
+                    writer.write(Collections.singletonList(extraRegion(
+                            newBytes, 0)), oldStart);
+                    fireProgress(progress.addAndGet(length), newLength);
+                    continue;
+                }
+
+                /* Once the old window stops moving, as it does when the
+                 * whole old file fits in it, it needn't be read and sorted
+                 * again */
+                if (oldStart != sortedStart) {
+                    oldIn.seek(oldStart);
+                    oldIn.readFully(oldBytes);
+                    I = settings.sort(oldBytes);
+                    sortedStart = oldStart;
+                }
+
+                /* A new window past the end of the old one is still
+                 * searched against it; only the assumed starting position
+                 * is clamped, which also keeps it from overflowing */
+                int oldOffset = (int) Math.min(start - oldStart,
+                        oldBytes.length);
+                List<Region> regions = scan(I, oldBytes, newBytes,
+                        oldOffset, progress, newLength);
+                writer.write(regions, oldStart);
+            }
+            writer.close();
+
+            /* Automatic compression keeps the best trial of each raw section */
+            File[] sections = { controlFile, diffFile, extraFile };
+            if (isAuto(compression)) {
+                compressed = new TrialCompressor(threadCount,
+                        decompressionWeight).compress(sections, directory);
+                sections = compressed;
+            }
+
+            Header header = new Header();
+            header.setControlLength(sections[0].length());
+            header.setDiffLength(sections[1].length());
+            header.setOutputLength(newLength);
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(patchFile));
+            try {
+                header.write(out);
+                for (File section : sections) {
+                    copy(section, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            /* The compressor streams may have threads of their own to stop */
+            if (writer != null) {
+                writer.closeQuietly();
+            }
+            closeQuietly(oldIn);
+            closeQuietly(newIn);
+            closeQuietly(controlOut);
+            closeQuietly(diffOut);
+            closeQuietly(extraOut);
+            controlFile.delete();
+            diffFile.delete();
+            extraFile.delete();
+            if (compressed != null) {
+                for (File section : compressed) {
+                    section.delete();
+                }
+            }
+        }
+
+        fireProgress(newLength, newLength);
+    }
+
+    /**
+     * Sets the size of the windows the new file is diffed in by
+     * {@link #diff(File, File, File, DiffSettings)}.  Diffing needs about
+     * thirteen times this much memory.  The default is 16 MB.
+     *
+     * @param windowSize window size in bytes, at least 1
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1 || windowSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException(String.format(
+                    "%d is not a valid window size.", windowSize));
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Widens the window so that files of the given sizes are diffed in a
+     * single window, as a whole, if that is estimated to need no more than
+     * <code>maxMemory</code>.  Data moved by any distance is then still
+     * matched.  Otherwise the window is left as it is.
+     *
+     * @param oldLength   size of the old file
+     * @param newLength   size of the new file
+     * @param compression name of the compressor the patch is written with
+     * @param maxMemory   most memory the diff may use
+     * @return true if the files will be diffed as a whole
+     */
+    public boolean fitWindow(long oldLength, long newLength,
+            String compression, long maxMemory) {
+        if (newLength <= windowSize && oldLength <= 2L * windowSize) {
+            return true;
+        }
+        long wholeWindow = Math.max(newLength, (oldLength + 1) / 2);
+        if (wholeWindow > Integer.MAX_VALUE / 2) {
+            return false;
+        }
+        int previousWindowSize = windowSize;
+        windowSize = (int) wholeWindow;
+        if (estimateMemory(oldLength, newLength, compression) > maxMemory) {
+            windowSize = previousWindowSize;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the memory that {@link #diff(File, File, File, DiffSettings)}
+     * needs for files of the given sizes: a window of each file, the suffix
+     * array of the old window and qsufsort's work array, the diff and extra
+     * strings of the new window, and a compressor for each section, or for
+     * each trial running at once when the compressor is chosen
+     * automatically.  SA-IS
+     * needs no work array, so this errs on the high side for it.
+     *
+     * @param oldLength   size of the old file
+     * @param newLength   size of the new file
+     * @param compression name of the compressor the patch is written with
+     * @return estimated number of bytes
+     */
+    public long estimateMemory(long oldLength, long newLength,
+            String compression) {
+        long oldWindow = Math.min(oldLength, 2L * windowSize);
+        long newWindow = Math.min(newLength, windowSize);
+        long xz = new LZMA2Options().getEncoderMemoryUsage() * 1024L;
+        long compressors;
+        if (isAuto(compression)) {
+            compressors = TrialCompressor.estimateMemory(threadCount, xz);
+        } else if (CompressorStreamFactory.XZ.equalsIgnoreCase(compression)) {
+            compressors = 3 * xz;
+        } else if (CompressorStreamFactory.BZIP2.equalsIgnoreCase(compression)
+                && threadCount > 1) {
+            /* Each section may have a block per thread in flight, plus the
+             * one being filled */
+            compressors = 3 * (threadCount + 1) * COMPRESSOR_MEMORY;
+        } else {
+            compressors = 3 * COMPRESSOR_MEMORY;
+        }
+        return oldWindow + 8 * (oldWindow + 1) + 3 * newWindow + compressors;
+    }
+
+    private static boolean isAuto(String compression) {
+        return CompressorStreamFactory.AUTO.equalsIgnoreCase(compression);
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                /* Nothing to do */
+            }
+        }
+    }
+
+    /**
+     * Scans the new file against the sorted old file, assuming that byte
+     * <code>i</code> of the new file is near byte <code>i + oldOffset</code>
+     * of the old file.  Files smaller than two regions, or a thread count of
+     * one, are scanned in a single region exactly as by bsdiff; otherwise
+     * the new file is split into regions that are scanned concurrently.
+     */
+    private List<Region> scan(final int[] I, final byte[] oldBytes,
+            final byte[] newBytes, final int oldOffset,
+            final AtomicLong progress, final long total) throws IOException {
+        int regionCount = Math.min(threadCount * REGIONS_PER_THREAD,
+                newBytes.length / MIN_REGION_SIZE);
+        if (threadCount == 1 || regionCount < 2) {
+            return Collections.singletonList(scanRegion(I, oldBytes, newBytes,
+                    0, newBytes.length, oldOffset, progress, total));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Region>> futures =
+                    new ArrayList<Future<Region>>(regionCount);
+            for (int i = 0; i < regionCount; i++) {
+                final int start = (int) ((long) newBytes.length * i / regionCount);
+                final int end = (int) ((long) newBytes.length * (i + 1) / regionCount);
+                futures.add(executor.submit(new Callable<Region>() {
+                    public Region call() {
+                        return scanRegion(I, oldBytes, newBytes, start, end,
+                                start + oldOffset, progress, total);
+                    }
+                }));
+            }
+
+            List<Region> regions = new ArrayList<Region>(regionCount);
+            for (Future<Region> future : futures) {
+                try {
+                    regions.add(future.get());
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ee.getCause();
+                    } else if (ee.getCause() instanceof Error) {
+                        throw (Error) ee.getCause();
+                    }
+                    throw (IOException) new IOException(
+                            "Unable to scan the new file.")
+                            .initCause(ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Thread was interrupted while scanning the new file.");
+                }
+            }
+            return regions;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a region that copies all of <code>newBytes</code> from the
+     * extra string, leaving the old position at <code>oldStart</code>.
+     */
+    private static Region extraRegion(byte[] newBytes, int oldStart) {
+        Region region = new Region(oldStart, newBytes.length);
+        System.arraycopy(newBytes, 0, region.eb, 0, newBytes.length);
+        region.eblen = newBytes.length;
+        region.controls.add(new ControlBlock(0, newBytes.length, 0));
+        region.lastPos = oldStart;
+        return region;
+    }
+
+    /**
+     * Runs the bsdiff scan over <code>newBytes[start, end)</code>, assuming
+     * that the old position is <code>oldStart</code> when the region begins.
+     * Matches are cut off at the end of the region, so that regions never
+     * overlap.
+     */
+    private Region scanRegion(int[] I, byte[] oldBytes, byte[] newBytes,
+            int start, int end, int oldStart, AtomicLong progress,
+            long total) {
+        Region region = new Region(oldStart, end - start);
 
         SearchResult result = null;
-        int scan = 0, len = 0, position = 0;
-        int lastScan = 0, lastPos = 0, lastOffset = 0;
+        int scan = start, len = 0, position = 0;
+        int lastScan = start, lastPos = oldStart, lastOffset = oldStart - start;
         int oldScore = 0, scsc = 0;
         int s, Sf, lenf, Sb, lenb;
         int overlap, Ss, lens;
+        int reported = start;
 
-        byte[] db = new byte[newBytes.length + 1];
-        byte[] eb = new byte[newBytes.length + 1];
+        byte[] db = region.db;
+        byte[] eb = region.eb;
         int dblen = 0, eblen = 0;
 
-        while (scan < newBytes.length) {
-        	fireProgress(scan, newBytes.length);
-        	
+        while (scan < end) {
+            fireProgress(progress.addAndGet(scan - reported), total);
+            reported = scan;
+
             oldScore = 0;
 
-            for (scsc = scan += len; scan < newBytes.length; scan++) {
+            for (scsc = scan += len; scan < end; scan++) {
                 result = SuffixSort.search(I,
                         oldBytes, 0,
                         newBytes, scan,
                         0, oldBytes.length);
-                len = result.getLength();
+                len = Math.min(result.getLength(), end - scan);
                 position = result.getPosition();
 
                 for (; scsc < scan + len; scsc++) {
@@ -142,7 +603,7 @@ public class Diff {
                     oldScore--;
             }
 
-            if ((len != oldScore) || (scan == newBytes.length)) {
+            if ((len != oldScore) || (scan == end)) {
                 s = 0;
                 Sf = 0;
                 lenf = 0;
@@ -160,7 +621,7 @@ public class Diff {
                 }
 
                 lenb = 0;
-                if (scan < newBytes.length) {
+                if (scan < end) {
                     s = 0;
                     Sb = 0;
                     for (int i = 1; (scan >= lastScan + i) &&
@@ -216,7 +677,7 @@ public class Diff {
                 control.setExtraLength((scan - lenb) - (lastScan + lenf));
                 control.setSeekLength((position - lenb) -
                         (lastPos + lenf));
-                control.write(patchOut);
+                region.controls.add(control);
 
                 lastScan = scan - lenb;
                 lastPos = position - lenb;
@@ -224,29 +685,10 @@ public class Diff {
             }
         }
 
-        /* Done writing control blocks */
-        patchOut.close();
-
-        Header header = new Header();
-        header.setControlLength(byteOut.size());
-
-        patchOut =
-                compressor.createCompressorOutputStream(compression, byteOut);
-        patchOut.write(db);
-        patchOut.close();
-        header.setDiffLength(byteOut.size() - header.getControlLength());
-
-        patchOut =
-                compressor.createCompressorOutputStream(compression, byteOut);
-        patchOut.write(eb);
-        patchOut.close();
-
-        header.setOutputLength(newBytes.length);
-
-        header.write(out);
-        out.write(byteOut.toByteArray());
-        
-        fireProgress(newBytes.length, newBytes.length);
+        region.dblen = dblen;
+        region.eblen = eblen;
+        region.lastPos = lastPos;
+        return region;
     }
     
 	public void addProgressListener(ProgressListener listener)
@@ -259,8 +701,19 @@ public class Diff {
 		progressListeners.remove(listener);
 	}
 	
-	private void fireProgress(final int current, final int total)
+	/**
+	 * Sizes too large for the int fields of a ProgressEvent are reported in
+	 * kilobytes.
+	 */
+	private void fireProgress(long current, long total)
 	{
+		if (total > Integer.MAX_VALUE)
+		{
+			current /= 1024;
+			total /= 1024;
+		}
+		final int currentValue = (int) current;
+		final int totalValue = (int) total;
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -270,7 +723,7 @@ public class Diff {
 				{
 					// lazy instantiation of the event
 					if (event == null)
-						event = new ProgressEvent(Diff.class, current, total);
+						event = new ProgressEvent(Diff.class, currentValue, totalValue);
 					
 					// fire it
 					listener.progressMade(event);
@@ -278,4 +731,120 @@ public class Diff {
 			}
 		});
 	}
+
+    /**
+     * The control blocks, diff string and extra string of one region of the
+     * new file.
+     */
+    private static class Region {
+        /** Old position when the region begins. */
+        final int oldStart;
+        final List<ControlBlock> controls = new ArrayList<ControlBlock>();
+        final byte[] db;
+        final byte[] eb;
+        int dblen;
+        int eblen;
+
+        /** Old position after the last control block of the region. */
+        int lastPos;
+
+        Region(int oldStart, int length) {
+            this.oldStart = oldStart;
+            this.db = new byte[length];
+            this.eb = new byte[length];
+        }
+    }
+
+    /**
+     * Compresses the control blocks, diff strings and extra strings of
+     * consecutive regions into three streams.  Each region's positions are
+     * its own, so the seek of the last control block of a region isn't
+     * written until the next region shows where the old position has to be.
+     */
+    private static class PatchWriter {
+        private final OutputStream controlOut;
+        private final OutputStream diffOut;
+        private final OutputStream extraOut;
+
+        /** Last control block written, whose seek may still change. */
+        private ControlBlock pending;
+
+        /** Old position after the pending control block. */
+        private long pendingPos;
+
+        PatchWriter(CompressorStreamFactory compressor, String compression,
+                int threadCount, OutputStream controlOut, OutputStream diffOut,
+                OutputStream extraOut) throws CompressorException {
+            /* Automatically compressed sections are written raw, and
+             * compressed once they are complete */
+            if (isAuto(compression)) {
+                this.controlOut = controlOut;
+                this.diffOut = diffOut;
+                this.extraOut = extraOut;
+                return;
+            }
+            OutputStream[] streams = new OutputStream[3];
+            try {
+                streams[0] = compressor.createCompressorOutputStream(
+                        compression, controlOut, threadCount);
+                streams[1] = compressor.createCompressorOutputStream(
+                        compression, diffOut, threadCount);
+                streams[2] = compressor.createCompressorOutputStream(
+                        compression, extraOut, threadCount);
+            } catch (CompressorException e) {
+                for (OutputStream stream : streams) {
+                    Diff.closeQuietly(stream);
+                }
+                throw e;
+            }
+            this.controlOut = streams[0];
+            this.diffOut = streams[1];
+            this.extraOut = streams[2];
+        }
+
+        /**
+         * Writes regions whose old positions are relative to
+         * <code>oldBase</code>.
+         */
+        void write(List<Region> regions, long oldBase) throws IOException {
+            for (Region region : regions) {
+                if (region.controls.isEmpty()) {
+                    continue;
+                }
+                if (pending != null) {
+                    pending.setSeekLength(pending.getSeekLength() +
+                            oldBase + region.oldStart - pendingPos);
+                    pending.write(controlOut);
+                }
+                int last = region.controls.size() - 1;
+                for (int i = 0; i < last; i++) {
+                    region.controls.get(i).write(controlOut);
+                }
+                pending = region.controls.get(last);
+                pendingPos = oldBase + region.lastPos;
+
+                diffOut.write(region.db, 0, region.dblen);
+                extraOut.write(region.eb, 0, region.eblen);
+            }
+        }
+
+        void close() throws IOException {
+            if (pending != null) {
+                pending.write(controlOut);
+            }
+            controlOut.close();
+            diffOut.close();
+            extraOut.close();
+        }
+
+        /**
+         * Closes the streams after a failure, or does nothing if they have
+         * already been closed.
+         */
+        void closeQuietly() {
+            Diff.closeQuietly(controlOut);
+            Diff.closeQuietly(diffOut);
+            Diff.closeQuietly(extraOut);
+        }
+    }
 }
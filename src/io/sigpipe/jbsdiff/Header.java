@@ -57,9 +57,9 @@ class Header {
     public static final String HEADER_MAGIC = "BSDIFF40";
 
     private String magic;
-    private int controlLength;
-    private int diffLength;
-    private int outLength;
+    private long controlLength;
+    private long diffLength;
+    private long outLength;
 
     public Header() {
     }
@@ -84,7 +84,7 @@ class Header {
         verify();
     }
 
-    public Header(int controlLength, int diffLength, int outLength)
+    public Header(long controlLength, long diffLength, long outLength)
             throws InvalidHeaderException {
         this.controlLength = controlLength;
         this.diffLength = diffLength;
@@ -133,29 +133,29 @@ class Header {
         return s;
     }
 
-    public int getControlLength() {
+    public long getControlLength() {
         return controlLength;
     }
 
-    public void setControlLength(int length) throws InvalidHeaderException {
+    public void setControlLength(long length) throws InvalidHeaderException {
         controlLength = length;
         verify();
     }
 
-    public int getDiffLength() {
+    public long getDiffLength() {
         return diffLength;
     }
 
-    public void setDiffLength(int length) throws InvalidHeaderException {
+    public void setDiffLength(long length) throws InvalidHeaderException {
         diffLength = length;
         verify();
     }
 
-    public int getOutputLength() {
+    public long getOutputLength() {
         return outLength;
     }
 
-    public void setOutputLength(int length) throws InvalidHeaderException {
+    public void setOutputLength(long length) throws InvalidHeaderException {
         outLength = length;
         verify();
     }
@@ -50,7 +50,7 @@ public class InvalidHeaderException extends Exception {
      * @param fieldName invalid field name
      * @param value the value of the invalid field
      */
-    public InvalidHeaderException(String fieldName, int value) {
+    public InvalidHeaderException(String fieldName, long value) {
         super("Invalid header field; " + fieldName + " = " + value);
     }
 }
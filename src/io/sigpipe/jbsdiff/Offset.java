@@ -32,10 +32,10 @@ import java.io.OutputStream;
 import com.fsoinstaller.utils.IOUtils;
 
 /**
- * bsdiff encodes offsets (represented by the C off_t type) as 64-bit chunks.
- * In this implementation only 32-bit signed integers are supported, but the
- * additional encoding steps are left to illustrate the process (which, in Java,
- * would encode/decode a long primitive data type).
+ * bsdiff encodes offsets (represented by the C off_t type) as 64-bit chunks:
+ * the magnitude is stored little-endian in the low 63 bits and the sign in the
+ * high bit of the last byte.  Offsets are read and written as long primitives,
+ * so patches can describe files larger than 2 GB.
  *
  * @author malensek
  */
@@ -55,36 +55,19 @@ class Offset {
      * @param in The InputStream to read a bsdiff offset from
      *
      * @throws IOException when there are not enough bytes in the
-     *     {@link InputStream} or an overflow occurs.
+     *     {@link InputStream}.
      */
-    public static int readOffset(InputStream in) throws IOException {
+    public static long readOffset(InputStream in) throws IOException {
         byte[] buf = new byte[OFFSET_SIZE];
         int bytesRead = IOUtils.readAllBytes(in, buf);
         if (bytesRead < OFFSET_SIZE) {
             throw new IOException("Could not read offset.");
         }
 
-        int y = 0;
-        y = buf[7] & 0x7F;
-        y *= 256;
-        y += buf[6] & 0xFF;
-        y *= 256;
-        y += buf[5] & 0xFF;
-        y *= 256;
-        y += buf[4] & 0xFF;
-        y *= 256;
-        y += buf[3] & 0xFF;
-        y *= 256;
-        y += buf[2] & 0xFF;
-        y *= 256;
-        y += buf[1] & 0xFF;
-        y *= 256;
-        y += buf[0] & 0xFF;
-
-        /* An integer overflow occurred */
-        if (y < 0) {
-            throw new IOException(
-                    "Integer overflow: 64-bit offsets not supported.");
+        long y = buf[7] & 0x7F;
+        for (int i = OFFSET_SIZE - 2; i >= 0; i--) {
+            y <<= 8;
+            y += buf[i] & 0xFF;
         }
 
         if ((buf[7] & 0x80) != 0) {
@@ -97,46 +80,29 @@ class Offset {
     /**
      * Writes a bsdiff-encoded offset to an {@link OutputStream}.
      *
-     * @param value Integer value to encode and write.
+     * @param value Value to encode and write.
      *
      * @throws IOException if an I/O error occurs.
      */
-    public static void writeOffset(int value, OutputStream out)
+    public static void writeOffset(long value, OutputStream out)
             throws IOException {
+        if (value == Long.MIN_VALUE) {
+            throw new IllegalArgumentException(
+                    "Offset " + value + " cannot be encoded.");
+        }
+
         byte[] buf = new byte[OFFSET_SIZE];
-        int y = 0;
+        long y = Math.abs(value);
+        for (int i = 0; i < OFFSET_SIZE; i++) {
+            buf[i] = (byte) y;
+            y >>>= 8;
+        }
 
         if (value < 0) {
-            y = -value;
             /* Set the sign bit */
             buf[7] |= 0x80;
-        } else {
-            y = value;
         }
 
-        buf[0] |= y % 256;
-        y -= buf[0] & 0xFF;
-        y /= 256;
-        buf[1] |= y % 256;
-        y -= buf[1] & 0xFF;
-        y /= 256;
-        buf[2] |= y % 256;
-        y -= buf[2] & 0xFF;
-        y /= 256;
-        buf[3] |= y % 256;
-        y -= buf[3] & 0xFF;
-        y /= 256;
-        buf[4] |= y % 256;
-        y -= buf[4] & 0xFF;
-        y /= 256;
-        buf[5] |= y % 256;
-        y -= buf[5] & 0xFF;
-        y /= 256;
-        buf[6] |= y % 256;
-        y -= buf[6] & 0xFF;
-        y /= 256;
-        buf[7] |= y % 256;
-
         out.write(buf);
     }
 }
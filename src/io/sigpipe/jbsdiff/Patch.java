@@ -37,12 +37,17 @@ import java.awt.EventQueue;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -54,8 +59,77 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class Patch {
 
+    /** Size of the chunks the diff and extra strings are processed in. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Memory a section's decompressor is assumed to need.  bzip2 needs
+     * under 4 MB for its largest blocks, and xz about 8 MB at its default
+     * preset. */
+    public static final long SECTION_MEMORY = 8 << 20;
+
+    /** Largest output that can be patched in memory. */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
 	private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<ProgressListener>();
 	
+    /** Whether the sections of the patch are decompressed on threads of
+     * their own. */
+    private boolean readingAhead = true;
+
+    /**
+     * Sets whether the three sections of a patch are decompressed on
+     * threads of their own.  Callers that apply many small patches
+     * concurrently, such as {@link BlockPatch} or a VP patch, turn this off.
+     */
+    public void setReadingAhead(boolean readingAhead) {
+        this.readingAhead = readingAhead;
+    }
+
+    /**
+     * Estimates the memory that {@link #patch(File, File, File)} needs for
+     * the given patch.  Patches are streamed, so this depends only on the
+     * kind of patch, not on the size of the files.
+     *
+     * @param patchFile the patch to apply
+     * @return estimated number of bytes
+     *
+     * @throws InvalidHeaderException when the bsdiff header is malformed or not
+     *     present.
+     * @throws IOException when an I/O error occurs
+     */
+    public long estimateMemory(File patchFile)
+            throws InvalidHeaderException, IOException {
+        if (BlockPatch.isBlockPatch(patchFile)) {
+            return new BlockPatch().estimateMemory(patchFile);
+        }
+
+        /* Only check the header; the sections are streamed */
+        InputStream headerIn = new FileInputStream(patchFile);
+        try {
+            new Header(headerIn);
+        } finally {
+            headerIn.close();
+        }
+        return 3 * sectionMemory() + 2 * BUFFER_SIZE;
+    }
+
+    /**
+     * Estimates the memory that {@link #patch(byte[], byte[], OutputStream)}
+     * needs besides the arrays it is given: the output, and a decompressor
+     * for each section of the patch.
+     *
+     * @param outputLength size of the patched data
+     * @return estimated number of bytes
+     */
+    public long estimateMemory(long outputLength) {
+        return outputLength + 3 * sectionMemory();
+    }
+
+    private long sectionMemory() {
+        return SECTION_MEMORY +
+                (readingAhead ? ReadAheadInputStream.BUFFER_MEMORY : 0);
+    }
+
     /**
      * Using an old file and its accompanying patch, this method generates a new
      * (updated) file and writes it to an {@link OutputStream}.
@@ -76,6 +150,13 @@ public class Patch {
         Header header = new Header(headerIn);
         headerIn.close();
 
+        /* The whole output is held in memory */
+        if (header.getOutputLength() > MAX_ARRAY_SIZE) {
+            throw new IOException("Patch output of " +
+                    header.getOutputLength() + " bytes is too large to " +
+                    "be held in memory");
+        }
+
         /* Set up InputStreams for reading different regions of the patch */
         InputStream controlIn, dataIn, extraIn;
         controlIn = new ByteArrayInputStream(patch);
@@ -91,39 +172,43 @@ public class Patch {
 
             InputStream temp;
             CompressorStreamFactory compressor = new CompressorStreamFactory();
-            /* Set up compressed streams */
-            temp = compressor.createCompressorInputStream(controlIn);
+            /* Set up compressed streams, each decompressed on its own thread */
+            temp = openSection(compressor, controlIn, "bsdiff control");
             controlIn = temp;
-            temp = compressor.createCompressorInputStream(dataIn);
+            temp = openSection(compressor, dataIn, "bsdiff diff");
             dataIn = temp;
-            temp = compressor.createCompressorInputStream(extraIn);
+            temp = openSection(compressor, extraIn, "bsdiff extra");
             extraIn = temp;
 
             /* Start patching */
-            int newPointer = 0, oldPointer = 0;
-            byte[] output = new byte[header.getOutputLength()];
+            int newPointer = 0;
+            long oldPointer = 0;
+            byte[] output = new byte[(int) header.getOutputLength()];
             while (newPointer < output.length) {
             	fireProgress(newPointer, output.length);
 
                 ControlBlock control = new ControlBlock(controlIn);
+                verify(control, newPointer, output.length);
+                int diffLength = (int) control.getDiffLength();
+                int extraLength = (int) control.getExtraLength();
 
                 /* Read diff string */
-                read(dataIn, output, newPointer, control.getDiffLength());
+                read(dataIn, output, newPointer, diffLength);
 
                 /* Add old data to diff string */
-                for (int i = 0; i < control.getDiffLength(); ++i) {
+                for (int i = 0; i < diffLength; ++i) {
                     if ((oldPointer + i >= 0) && oldPointer + i < old.length) {
-                        output[newPointer + i] += old[oldPointer + i];
+                        output[newPointer + i] += old[(int) oldPointer + i];
                     }
                 }
 
-                newPointer += control.getDiffLength();
-                oldPointer += control.getDiffLength();
+                newPointer += diffLength;
+                oldPointer += diffLength;
 
                 /* Copy the extra string to the output */
-                read(extraIn, output, newPointer, control.getExtraLength());
+                read(extraIn, output, newPointer, extraLength);
 
-                newPointer += control.getExtraLength();
+                newPointer += extraLength;
                 oldPointer += control.getSeekLength();
             }
 
@@ -142,76 +227,120 @@ public class Patch {
         }
     }
 
+    /**
+     * Using an old file and its accompanying patch, this method generates a new
+     * (updated) file.  Nothing is held in memory beyond a few fixed-size
+     * buffers: the old file is read with positional reads, the three sections
+     * of the patch are decompressed as streams, each on a thread of its own,
+     * and the output is written a chunk at a time, so files of any size can
+     * be patched.  Block patches created by {@link BlockPatch} are recognized
+     * and applied by it instead.
+     *
+     * @param oldFile   the original ('old') state of the binary
+     * @param newFile   the file to write the patched binary to
+     * @param patchFile a binary patch file to apply to the old state
+     *
+     * @throws CompressorException when a compression error occurs.
+     * @throws InvalidHeaderException when the bsdiff header is malformed or not
+     *     present.
+     * @throws IOException when an I/O error occurs
+     */
     public void patch(File oldFile, File newFile, File patchFile)
             throws CompressorException, InvalidHeaderException, IOException {
+        /* Block patches are applied a block at a time, concurrently */
+        if (BlockPatch.isBlockPatch(patchFile)) {
+            BlockPatch blockPatch = new BlockPatch();
+            for (ProgressListener listener : progressListeners) {
+                blockPatch.addProgressListener(listener);
+            }
+            blockPatch.patch(oldFile, newFile, patchFile);
+            return;
+        }
+
         /* Read bsdiff header */
         InputStream headerIn = new FileInputStream(patchFile);
-        Header header = new Header(headerIn);
-        headerIn.close();
+        Header header;
+        try {
+            header = new Header(headerIn);
+        } finally {
+            headerIn.close();
+        }
 
         /* Set up InputStreams for reading different regions of the patch */
         InputStream controlIn, dataIn, extraIn;
         controlIn = new BufferedInputStream(new FileInputStream(patchFile));
-        dataIn = new BufferedInputStream(new FileInputStream(patchFile));
-        extraIn = new BufferedInputStream(new FileInputStream(patchFile));
+        dataIn = new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE);
+        extraIn = new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE);
+        FileInputStream oldStream = null;
+        OutputStream out = null;
 
         try {
             /* Seek to the correct offsets in each stream */
-            controlIn.skip(Header.HEADER_SIZE);
-            dataIn.skip(Header.HEADER_SIZE + header.getControlLength());
-            extraIn.skip(Header.HEADER_SIZE + header.getControlLength() +
+            skip(controlIn, Header.HEADER_SIZE);
+            skip(dataIn, Header.HEADER_SIZE + header.getControlLength());
+            skip(extraIn, Header.HEADER_SIZE + header.getControlLength() +
                     header.getDiffLength());
 
             InputStream temp;
             CompressorStreamFactory compressor = new CompressorStreamFactory();
-            /* Set up compressed streams */
-            temp = compressor.createCompressorInputStream(controlIn);
+            /* Set up compressed streams, each decompressed on its own thread */
+            temp = openSection(compressor, controlIn, "bsdiff control");
             controlIn = temp;
-            temp = compressor.createCompressorInputStream(dataIn);
+            temp = openSection(compressor, dataIn, "bsdiff diff");
             dataIn = temp;
-            temp = compressor.createCompressorInputStream(extraIn);
+            temp = openSection(compressor, extraIn, "bsdiff extra");
             extraIn = temp;
 
-            FileInputStream oldStream = new FileInputStream(oldFile);
-            byte[] old = new byte[(int) oldFile.length()];
-            IOUtils.readAllBytes(oldStream, old);
-            oldStream.close();
+            /* The old file is read a chunk at a time with positional reads */
+            oldStream = new FileInputStream(oldFile);
+            FileChannel oldChannel = oldStream.getChannel();
+            long oldLength = oldChannel.size();
 
-            OutputStream out = new BufferedOutputStream(new FileOutputStream(newFile));
+            out = new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] old = new byte[BUFFER_SIZE];
 
             /* Start patching */
-            int newPointer = 0, oldPointer = 0;
-            int outputLength = header.getOutputLength();
+            long newPointer = 0, oldPointer = 0;
+            long outputLength = header.getOutputLength();
             while (newPointer < outputLength) {
             	fireProgress(newPointer, outputLength);
 
                 ControlBlock control = new ControlBlock(controlIn);
-
-                /* Read diff string */
-                int diffLength = control.getDiffLength();
-                int extraLength = control.getExtraLength();
-                byte[] output = new byte[diffLength + extraLength];
-                read(dataIn, output, 0, diffLength);
-
-                /* Add old data to diff string */
-                for (int i = 0; i < diffLength; ++i) {
-                    if ((oldPointer + i >= 0) && oldPointer + i < old.length) {
-                        output[i] += old[oldPointer + i];
+                verify(control, newPointer, outputLength);
+                long diffLength = control.getDiffLength();
+                long extraLength = control.getExtraLength();
+
+                /* Read diff string and add old data to it, a chunk at a time */
+                for (long done = 0; done < diffLength; ) {
+                    int length = (int) Math.min(BUFFER_SIZE, diffLength - done);
+                    read(dataIn, buffer, 0, length);
+                    readOld(oldChannel, oldLength, oldPointer + done, old, length);
+                    for (int i = 0; i < length; ++i) {
+                        buffer[i] += old[i];
                     }
+                    out.write(buffer, 0, length);
+                    done += length;
                 }
 
                 newPointer += diffLength;
                 oldPointer += diffLength;
 
                 /* Copy the extra string to the output */
-                read(extraIn, output, diffLength, extraLength);
-                out.write(output);
+                for (long done = 0; done < extraLength; ) {
+                    int length = (int) Math.min(BUFFER_SIZE, extraLength - done);
+                    read(extraIn, buffer, 0, length);
+                    out.write(buffer, 0, length);
+                    done += length;
+                }
 
                 newPointer += extraLength;
                 oldPointer += control.getSeekLength();
             }
 
             out.close();
+            out = null;
             
         	fireProgress(outputLength, outputLength);
 
@@ -223,6 +352,85 @@ public class Patch {
             closeQuietly(controlIn);
             closeQuietly(dataIn);
             closeQuietly(extraIn);
+            closeQuietly(oldStream);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Checks that the diff and extra strings of a control block are not
+     * negative and fit within the rest of the output.
+     *
+     * @param control      the control block to check
+     * @param newPointer   position in the output where the block starts
+     * @param outputLength length of the output
+     *
+     * @throws IOException when the control block is invalid
+     */
+    private static void verify(ControlBlock control, long newPointer,
+            long outputLength) throws IOException {
+        long diffLength = control.getDiffLength();
+        long extraLength = control.getExtraLength();
+        if (diffLength < 0 || extraLength < 0
+                || diffLength > outputLength - newPointer
+                || extraLength > outputLength - newPointer - diffLength) {
+            throw new IOException("Corrupt patch; control block " +
+                    "exceeds the output length");
+        }
+    }
+
+    /**
+     * Opens a decompressing stream over one section of the patch, read ahead
+     * on a thread of its own unless reading ahead is turned off.
+     */
+    private InputStream openSection(CompressorStreamFactory compressor,
+            InputStream in, String name) throws CompressorException {
+        InputStream section = compressor.createCompressorInputStream(in);
+        return readingAhead ? new ReadAheadInputStream(section, name) : section;
+    }
+
+    /**
+     * Reads a range of the old file.  The diff string may refer to bytes
+     * before the start or past the end of the old file; as in bsdiff, those
+     * bytes are read as zeroes.
+     *
+     * @param channel   channel of the old file
+     * @param oldLength length of the old file
+     * @param position  position of the first byte to read, possibly negative
+     * @param dest      byte array to read data into
+     * @param len       number of bytes to read
+     *
+     * @throws IOException when an I/O error occurs
+     */
+    private static void readOld(FileChannel channel, long oldLength,
+            long position, byte[] dest, int len) throws IOException {
+        Arrays.fill(dest, 0, len, (byte) 0);
+        long start = Math.max(position, 0);
+        long end = Math.min(position + len, oldLength);
+        if (start >= end) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(dest, (int) (start - position),
+                (int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Old file ended unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Skips exactly the given number of bytes of an InputStream.
+     */
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Corrupt patch; section offset is " +
+                        "past the end of the patch");
+            }
+            n -= skipped;
         }
     }
 
@@ -253,10 +461,10 @@ public class Patch {
         }
     }
     
-    private static void closeQuietly(InputStream is) {
+    private static void closeQuietly(Closeable c) {
     	try {
-    		if (is != null) {
-    			is.close();
+    		if (c != null) {
+    			c.close();
     		}
     	} catch (IOException ioe) {
     		// do nothing
@@ -273,8 +481,18 @@ public class Patch {
 		progressListeners.remove(listener);
 	}
 	
-	private void fireProgress(final int current, final int total)
+	/**
+	 * Events hold ints, so outputs of 2 GB or more are counted in kilobytes.
+	 */
+	private void fireProgress(long current, long total)
 	{
+		if (total > Integer.MAX_VALUE)
+		{
+			current /= 1024;
+			total /= 1024;
+		}
+		final int currentValue = (int) current;
+		final int totalValue = (int) total;
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -284,7 +502,7 @@ public class Patch {
 				{
 					// lazy instantiation of the event
 					if (event == null)
-						event = new ProgressEvent(Diff.class, current, total);
+						event = new ProgressEvent(Diff.class, currentValue, totalValue);
 					
 					// fire it
 					listener.progressMade(event);
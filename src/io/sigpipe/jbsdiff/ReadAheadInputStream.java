@@ -0,0 +1,212 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package io.sigpipe.jbsdiff;
+
+import com.fsoinstaller.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an InputStream ahead of its consumer on a thread of its own.  The
+ * reading thread fills a small, fixed set of chunks that circulate between
+ * the two threads, so memory use is bounded, and the consumer only waits
+ * when it gets ahead of the reader.
+ * <p>
+ * Wrapping a decompressing stream this way lets the decompression of the
+ * three sections of a patch run concurrently with each other and with the
+ * application of the control blocks.
+ */
+class ReadAheadInputStream extends InputStream {
+
+    /** Size of each chunk. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Number of chunks that may be read ahead. */
+    private static final int CHUNK_COUNT = 4;
+
+    /** Marks the end of the stream in the queue of filled chunks. */
+    private static final Chunk END = new Chunk(0);
+
+    /** Memory held by the chunks of one stream. */
+    static final int BUFFER_MEMORY = CHUNK_SIZE * CHUNK_COUNT;
+
+    private final InputStream in;
+
+    /** Chunks waiting to be filled. */
+    private final BlockingQueue<Chunk> free =
+            new ArrayBlockingQueue<Chunk>(CHUNK_COUNT);
+
+    /** Chunks waiting to be consumed; there is always room for the end. */
+    private final BlockingQueue<Chunk> filled =
+            new ArrayBlockingQueue<Chunk>(CHUNK_COUNT + 1);
+
+    private final Thread reader;
+
+    /** Error that stopped the reading thread, if any. */
+    private volatile IOException failure;
+
+    private Chunk current;
+    private int position;
+    private boolean ended = false;
+    private boolean closed = false;
+
+    /**
+     * Starts reading the given stream ahead.
+     *
+     * @param in   the stream to read
+     * @param name name of the reading thread
+     */
+    public ReadAheadInputStream(InputStream in, String name) {
+        this.in = in;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                readAhead();
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                Chunk chunk = free.take();
+                chunk.length = IOUtils.readAllBytes(in, chunk.data, 0,
+                        chunk.data.length);
+                if (chunk.length > 0) {
+                    filled.put(chunk);
+                }
+                if (chunk.length < chunk.data.length) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            /* The stream was closed */
+            return;
+        } catch (IOException ioe) {
+            failure = ioe;
+        } catch (RuntimeException re) {
+            /* Decompressors may fail this way on corrupt data */
+            failure = (IOException) new IOException(
+                    "Corrupt patch; " + re.getMessage()).initCause(re);
+        }
+        filled.add(END);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Makes sure the current chunk has data left, waiting for the next one
+     * if necessary.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        if (!ended) {
+            try {
+                current = filled.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for patch data");
+            }
+            if (current == END) {
+                current = null;
+                ended = true;
+            }
+            position = 0;
+        }
+        if (ended && failure != null) {
+            throw failure;
+        }
+        return current != null;
+    }
+
+    /**
+     * Stops the reading thread and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+}
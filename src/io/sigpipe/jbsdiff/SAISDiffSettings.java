@@ -0,0 +1,53 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package io.sigpipe.jbsdiff;
+
+import io.sigpipe.jbsdiff.sort.SAIS;
+
+/**
+ * Diff settings that sort suffixes with {@link SAIS} instead of qsufsort.
+ * The suffix array, and therefore the patch, is the same either way, but
+ * SA-IS takes linear time and needs half the memory, which makes a
+ * noticeable difference on large files.
+ */
+public class SAISDiffSettings extends DefaultDiffSettings {
+
+    public SAISDiffSettings() {
+        super();
+    }
+
+    public SAISDiffSettings(String compression) {
+        super(compression);
+    }
+
+    @Override
+    public int[] sort(byte[] input) {
+        int[] I = new int[input.length + 1];
+        SAIS.suffixsort(I, input);
+
+        return I;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package io.sigpipe.jbsdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/**
+ * Compresses the sections of a patch with every supported compressor at
+ * once and keeps the best result for each section.  Every compressed stream
+ * starts with its compressor's magic bytes, so {@link Patch} decodes the
+ * chosen sections without being told which compressor was used, and patches
+ * stay readable by any version of the installer that knows the compressor.
+ * <p>
+ * By default the smallest result wins.  With a decompression weight, each
+ * result is also decompressed and timed, and the one with the lowest
+ * <code>size + weight * seconds</code> wins; the weight is the number of
+ * patch bytes that one second of decompressing is worth, such as the
+ * bandwidth the patch is expected to be downloaded at.
+ *
+ * @see CompressorStreamFactory#AUTO
+ */
+class TrialCompressor {
+
+    /** Size of the buffers used to copy the sections. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int threadCount;
+    private final double decompressionWeight;
+
+    /**
+     * @param threadCount         number of trials run at once
+     * @param decompressionWeight patch bytes that one second of
+     *                            decompressing is worth, or 0 to keep the
+     *                            smallest result
+     */
+    TrialCompressor(int threadCount, double decompressionWeight) {
+        this.threadCount = threadCount;
+        this.decompressionWeight = decompressionWeight;
+    }
+
+    /**
+     * Returns an upper bound on the memory the trials need at once.
+     */
+    static long estimateMemory(int threadCount, long compressorMemory) {
+        int trials = Math.min(threadCount,
+                3 * CompressorStreamFactory.SUPPORTED_TYPES.length);
+        return trials * compressorMemory;
+    }
+
+    /**
+     * Compresses sections held in memory.
+     *
+     * @param sections the uncompressed sections
+     * @return the best compressed form of each section, in the same order
+     */
+    byte[][] compress(byte[][] sections) throws CompressorException,
+            IOException {
+        Trial[] best = run(sections, null, null);
+        byte[][] compressed = new byte[sections.length][];
+        for (int i = 0; i < sections.length; i++) {
+            compressed[i] = best[i].bytes;
+        }
+        return compressed;
+    }
+
+    /**
+     * Compresses sections held in files.  The trials are written to
+     * temporary files in the given directory; those that lose are deleted.
+     *
+     * @param sections  files holding the uncompressed sections
+     * @param directory directory to write the trials to
+     * @return files holding the best compressed form of each section, in
+     *         the same order, which the caller must delete
+     */
+    File[] compress(File[] sections, File directory)
+            throws CompressorException, IOException {
+        Trial[] best = run(null, sections, directory);
+        File[] compressed = new File[sections.length];
+        for (int i = 0; i < sections.length; i++) {
+            compressed[i] = best[i].file;
+        }
+        return compressed;
+    }
+
+    private Trial[] run(byte[][] sectionBytes, File[] sectionFiles,
+            File directory) throws CompressorException, IOException {
+        String[] types = CompressorStreamFactory.SUPPORTED_TYPES;
+        int sectionCount = sectionBytes != null ? sectionBytes.length
+                : sectionFiles.length;
+
+        List<Trial> trials = new ArrayList<Trial>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threadCount, sectionCount * types.length));
+        try {
+            List<Future<Trial>> futures = new ArrayList<Future<Trial>>();
+            for (int i = 0; i < sectionCount; i++) {
+                for (String type : types) {
+                    futures.add(executor.submit(trial(
+                            sectionBytes != null ? sectionBytes[i] : null,
+                            sectionFiles != null ? sectionFiles[i] : null,
+                            directory, type)));
+                }
+            }
+
+            try {
+                for (Future<Trial> future : futures) {
+                    trials.add(get(future));
+                }
+            } catch (CompressorException ce) {
+                discard(trials, futures);
+                throw ce;
+            } catch (IOException ioe) {
+                discard(trials, futures);
+                throw ioe;
+            } catch (RuntimeException re) {
+                discard(trials, futures);
+                throw re;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Trial[] best = new Trial[sectionCount];
+        for (int i = 0; i < sectionCount; i++) {
+            for (int j = 0; j < types.length; j++) {
+                Trial trial = trials.get(i * types.length + j);
+                if (best[i] == null || trial.score() < best[i].score()) {
+                    if (best[i] != null) {
+                        best[i].discard();
+                    }
+                    best[i] = trial;
+                } else {
+                    trial.discard();
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Creates the task compressing one section with one compressor.
+     */
+    private Callable<Trial> trial(final byte[] sectionBytes,
+            final File sectionFile, final File directory, final String type) {
+        return new Callable<Trial>() {
+            public Trial call() throws CompressorException, IOException {
+                CompressorStreamFactory factory = new CompressorStreamFactory();
+                ByteArrayOutputStream bytes = null;
+                File file = null;
+                OutputStream out;
+                if (sectionFile == null) {
+                    bytes = new ByteArrayOutputStream();
+                    out = bytes;
+                } else {
+                    file = File.createTempFile("bsdiff", "." + type, directory);
+                    out = new BufferedOutputStream(new FileOutputStream(file),
+                            BUFFER_SIZE);
+                }
+
+                boolean done = false;
+                InputStream in = null;
+                try {
+                    OutputStream compressed;
+                    try {
+                        compressed = factory.createCompressorOutputStream(
+                                type, out);
+                    } catch (CompressorException ce) {
+                        out.close();
+                        throw ce;
+                    }
+                    try {
+                        in = sectionFile == null
+                                ? new ByteArrayInputStream(sectionBytes)
+                                : new FileInputStream(sectionFile);
+                        copy(in, compressed);
+                    } finally {
+                        compressed.close();
+                    }
+
+                    Trial trial = bytes != null
+                            ? new Trial(type, bytes.toByteArray(), null)
+                            : new Trial(type, null, file);
+                    if (decompressionWeight > 0) {
+                        trial.decompressSeconds = decompressSeconds(factory,
+                                trial);
+                    }
+                    done = true;
+                    return trial;
+                } finally {
+                    if (in != null) {
+                        in.close();
+                    }
+                    if (!done && file != null) {
+                        file.delete();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Times how long it takes to decompress a trial.
+     */
+    private static double decompressSeconds(CompressorStreamFactory factory,
+            Trial trial) throws CompressorException, IOException {
+        InputStream in = trial.open();
+        try {
+            long start = System.nanoTime();
+            InputStream decompressed = factory.createCompressorInputStream(in);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (decompressed.read(buffer) != -1) {
+                /* Only the time matters */
+            }
+            return (System.nanoTime() - start) / 1e9;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Trial get(Future<Trial> future) throws CompressorException,
+            IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof CompressorException) {
+                throw (CompressorException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (IOException) new IOException(
+                    "Unable to compress the patch.").initCause(cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Thread was interrupted while compressing the patch.");
+        }
+    }
+
+    /**
+     * Deletes the trials written so far after one of them has failed,
+     * waiting for those still running so that none are left behind.
+     */
+    private static void discard(List<Trial> trials, List<Future<Trial>> futures) {
+        for (Trial trial : trials) {
+            trial.discard();
+        }
+        for (Future<Trial> future : futures.subList(trials.size(), futures.size())) {
+            try {
+                future.get().discard();
+            } catch (ExecutionException ee) {
+                /* Failed trials clean up after themselves */
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * A section compressed with one compressor, held either in memory or in
+     * a temporary file.
+     */
+    private class Trial {
+        final String type;
+        final byte[] bytes;
+        final File file;
+        double decompressSeconds;
+
+        Trial(String type, byte[] bytes, File file) {
+            this.type = type;
+            this.bytes = bytes;
+            this.file = file;
+        }
+
+        long length() {
+            return bytes != null ? bytes.length : file.length();
+        }
+
+        double score() {
+            return length() + decompressionWeight * decompressSeconds;
+        }
+
+        InputStream open() throws IOException {
+            return new BufferedInputStream(bytes != null
+                    ? new ByteArrayInputStream(bytes)
+                    : new FileInputStream(file), BUFFER_SIZE);
+        }
+
+        void discard() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return type + ": " + length() + " bytes";
+        }
+    }
+}
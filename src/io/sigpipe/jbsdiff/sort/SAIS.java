@@ -0,0 +1,252 @@
+/*
+Copyright (c) 2013, Colorado State University
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+This software is provided by the copyright holders and contributors "as is" and
+any express or implied warranties, including, but not limited to, the implied
+warranties of merchantability and fitness for a particular purpose are
+disclaimed. In no event shall the copyright holder or contributors be liable for
+any direct, indirect, incidental, special, exemplary, or consequential damages
+(including, but not limited to, procurement of substitute goods or services;
+loss of use, data, or profits; or business interruption) however caused and on
+any theory of liability, whether in contract, strict liability, or tort
+(including negligence or otherwise) arising in any way out of the use of this
+software, even if advised of the possibility of such damage.
+*/
+
+package io.sigpipe.jbsdiff.sort;
+
+import java.util.Arrays;
+
+/**
+ * Builds suffix arrays with the SA-IS algorithm of Nong, Zhang and Chan,
+ * which runs in linear time and needs no working space beyond the suffix
+ * array itself, a bit per input byte and a few bucket tables.
+ * <p>
+ * Suffixes are classified as S-type if they are smaller than the suffix
+ * that follows them and L-type otherwise. The leftmost S-type suffixes of
+ * every run (the LMS suffixes) are sorted by their prefixes up to the next
+ * LMS suffix, the sorted prefixes are named, and if any names repeat, the
+ * string of names is sorted recursively in the unused end of the suffix
+ * array. The order of the LMS suffixes then induces the order of all others
+ * in two passes over the array.
+ * <p>
+ * The result is the same as that of {@link SuffixSort#qsufsort}, including
+ * the empty suffix at index 0, so either can be used to create a patch.
+ */
+public class SAIS {
+
+    private SAIS() { }
+
+    /**
+     * Sorts the suffixes of the given data.
+     *
+     * @param I array of at least <code>data.length + 1</code> elements to
+     *          receive the suffix array; <code>I[0]</code> is always
+     *          <code>data.length</code>, the empty suffix
+     * @param data data whose suffixes are sorted
+     */
+    public static void suffixsort(int[] I, byte[] data) {
+        int n = data.length;
+        if (n > 0) {
+            sais(new ByteText(data), I, n, 256);
+            System.arraycopy(I, 0, I, 1, n);
+        }
+        I[0] = n;
+    }
+
+    /**
+     * Sorts the suffixes of <code>T[0..n)</code>, whose symbols are smaller
+     * than <code>k</code>, into <code>SA[0..n)</code>. The text may be
+     * stored in <code>SA</code> beyond index <code>n</code>.
+     */
+    private static void sais(Text T, int[] SA, int n, int k) {
+        // The last suffix is L-type, since it is followed by the empty
+        // suffix.
+        long[] types = new long[(n >>> 6) + 1];
+        for (int i = n - 2; i >= 0; i--) {
+            int c0 = T.get(i);
+            int c1 = T.get(i + 1);
+            if (c0 < c1 || (c0 == c1 && isS(types, i + 1))) {
+                types[i >>> 6] |= 1L << i;
+            }
+        }
+
+        int[] C = new int[k];
+        int[] B = new int[k];
+        for (int i = 0; i < n; i++) {
+            C[T.get(i)]++;
+        }
+
+        // Sort the LMS prefixes by placing the LMS suffixes at the ends of
+        // their buckets and inducing from them.
+        Arrays.fill(SA, 0, n, -1);
+        getBuckets(C, B, true);
+        int m = 0;
+        for (int i = 1; i < n; i++) {
+            if (isLMS(types, i)) {
+                SA[--B[T.get(i)]] = i;
+                m++;
+            }
+        }
+        induce(T, SA, n, C, B, types);
+
+        // Move the sorted LMS suffixes to the front and name their prefixes.
+        // Since no two LMS suffixes are adjacent, the name of the suffix at
+        // i can be kept at m + i / 2.
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLMS(types, SA[i])) {
+                SA[j++] = SA[i];
+            }
+        }
+        Arrays.fill(SA, m, n, -1);
+        int names = 0;
+        int previous = -1;
+        for (int i = 0; i < m; i++) {
+            int position = SA[i];
+            if (previous < 0 || !equalPrefixes(T, n, types, position, previous)) {
+                names++;
+                previous = position;
+            }
+            SA[m + (position >>> 1)] = names - 1;
+        }
+        for (int i = n - 1, end = n - 1; i >= m; i--) {
+            if (SA[i] >= 0) {
+                SA[end--] = SA[i];
+            }
+        }
+
+        // Sort the LMS suffixes by the string of names, recursively if the
+        // names alone don't determine the order.
+        int reduced = n - m;
+        if (names < m) {
+            sais(new IntText(SA, reduced), SA, m, names);
+        } else {
+            for (int i = 0; i < m; i++) {
+                SA[SA[reduced + i]] = i;
+            }
+        }
+
+        // Map the sorted names back to positions and induce the final order.
+        j = reduced;
+        for (int i = 1; i < n; i++) {
+            if (isLMS(types, i)) {
+                SA[j++] = i;
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            SA[i] = SA[reduced + SA[i]];
+        }
+        Arrays.fill(SA, m, n, -1);
+        getBuckets(C, B, true);
+        for (int i = m - 1; i >= 0; i--) {
+            j = SA[i];
+            SA[i] = -1;
+            SA[--B[T.get(j)]] = j;
+        }
+        induce(T, SA, n, C, B, types);
+    }
+
+    /**
+     * Induces the order of the L-type suffixes from left to right, then that
+     * of the S-type suffixes from right to left.
+     */
+    private static void induce(Text T, int[] SA, int n, int[] C, int[] B,
+            long[] types) {
+        getBuckets(C, B, false);
+        // The empty suffix comes first and is preceded by the last suffix.
+        SA[B[T.get(n - 1)]++] = n - 1;
+        for (int i = 0; i < n; i++) {
+            int j = SA[i] - 1;
+            if (j >= 0 && !isS(types, j)) {
+                SA[B[T.get(j)]++] = j;
+            }
+        }
+
+        getBuckets(C, B, true);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = SA[i] - 1;
+            if (j >= 0 && isS(types, j)) {
+                SA[--B[T.get(j)]] = j;
+            }
+        }
+    }
+
+    /**
+     * Compares the prefixes of two LMS suffixes up to and including the next
+     * LMS suffix.
+     */
+    private static boolean equalPrefixes(Text T, int n, long[] types,
+            int a, int b) {
+        for (int d = 0; ; d++) {
+            if (a + d == n || b + d == n
+                    || T.get(a + d) != T.get(b + d)
+                    || isS(types, a + d) != isS(types, b + d)) {
+                return false;
+            }
+            if (d > 0 && (isLMS(types, a + d) || isLMS(types, b + d))) {
+                return true;
+            }
+        }
+    }
+
+    private static void getBuckets(int[] C, int[] B, boolean end) {
+        int sum = 0;
+        for (int i = 0; i < C.length; i++) {
+            sum += C[i];
+            B[i] = end ? sum : sum - C[i];
+        }
+    }
+
+    private static boolean isS(long[] types, int i) {
+        return (types[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static boolean isLMS(long[] types, int i) {
+        return i > 0 && isS(types, i) && !isS(types, i - 1);
+    }
+
+    /**
+     * The string being sorted: the input bytes at the top level and a string
+     * of names stored in the suffix array at every level below.
+     */
+    private static abstract class Text {
+        abstract int get(int i);
+    }
+
+    private static final class ByteText extends Text {
+        private final byte[] data;
+
+        ByteText(byte[] data) {
+            this.data = data;
+        }
+
+        int get(int i) {
+            return data[i] & 0xFF;
+        }
+    }
+
+    private static final class IntText extends Text {
+        private final int[] data;
+        private final int offset;
+
+        IntText(int[] data, int offset) {
+            this.data = data;
+            this.offset = offset;
+        }
+
+        int get(int i) {
+            return data[offset + i];
+        }
+    }
+}
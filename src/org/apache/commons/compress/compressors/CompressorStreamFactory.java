@@ -28,6 +28,12 @@ public class CompressorStreamFactory
 	public static final String XZ = "xz";
 	
 	public static final String[] SUPPORTED_TYPES = new String[] { ITADAKI_BZIP2, JAVA_GZIP, XZ };
+
+	/**
+	 * Not a compressor of its own: a patch section compressed "automatically" is tried with each of the
+	 * {@link #SUPPORTED_TYPES} and the best result kept.  The section's magic bytes then tell readers which one it was.
+	 */
+	public static final String AUTO = "auto";
 	
 	private static final byte[] BZIP2_MAGIC = new byte[] { (byte)'B', (byte)'Z' };
 	
@@ -98,6 +104,23 @@ public class CompressorStreamFactory
      * @throws IllegalArgumentException if the archiver name or stream is null
      */
 	public OutputStream createCompressorOutputStream(String name, OutputStream os) throws CompressorException
+	{
+		return createCompressorOutputStream(name, os, 1);
+	}
+	
+	/**
+	 * Create a compressor output stream that may compress on several threads.  Only bzip2 does so: its blocks are
+	 * compressed concurrently and written in order, giving the same data as a single thread.  The other compressors
+	 * ignore the thread count.
+	 * 
+	 * @param name the compressor name
+	 * @param os the output stream
+	 * @param threadCount the number of threads to compress on
+	 * @return the compressor output stream
+	 * @throws CompressorException if the compressor name is not known
+	 * @throws IllegalArgumentException if the compressor name or stream is null
+	 */
+	public OutputStream createCompressorOutputStream(String name, OutputStream os, int threadCount) throws CompressorException
 	{
 		if (name == null || os == null)
 			throw new IllegalArgumentException("Arguments cannot be null");
@@ -105,7 +128,7 @@ public class CompressorStreamFactory
 		try
 		{
 			if (name.equalsIgnoreCase(ITADAKI_BZIP2))
-				return new BZip2OutputStream(os);
+				return new BZip2OutputStream(os, 9, threadCount);
 			
 			if (name.equalsIgnoreCase(JAVA_GZIP))
 				return new GZIPOutputStream(os);
@@ -123,6 +123,42 @@ public class BZip2BitOutputStream {
 	}
 
 
+	/**
+	 * Writes a bit string held in an array, most significant bit of each byte first
+	 * @param bits The bits to write
+	 * @param bitLength The number of bits to write from the start of the array
+	 * @throws IOException if an error occurs writing to the stream
+	 */
+	public void writeBitString (final byte[] bits, final long bitLength) throws IOException {
+
+		final int wholeBytes = (int)(bitLength >>> 3);
+		final int remainingBits = (int)(bitLength & 7);
+
+		if (this.bitCount == 0) {
+			this.outputStream.write (bits, 0, wholeBytes);
+		} else {
+			for (int i = 0; i < wholeBytes; i++) {
+				writeBits (8, bits[i] & 0xff);
+			}
+		}
+
+		if (remainingBits > 0) {
+			writeBits (remainingBits, (bits[wholeBytes] & 0xff) >>> (8 - remainingBits));
+		}
+
+	}
+
+
+	/**
+	 * @return The number of bits written so far that do not yet fill a whole byte
+	 */
+	int getBufferedBitCount() {
+
+		return this.bitCount;
+
+	}
+
+
 	/**
 	 * Writes any remaining bits to the output stream, zero padding to a whole byte as required
 	 * @throws IOException if an error occurs writing to the stream
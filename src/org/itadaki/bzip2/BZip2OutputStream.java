@@ -22,13 +22,28 @@
 
 package org.itadaki.bzip2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
  * <p>An OutputStream wrapper that compresses BZip2 data</p>
  *
+ * <p>With more than one thread, filled blocks are compressed concurrently by a pool of worker
+ * threads, each into a bit buffer of its own, and the buffers are stitched into the stream in
+ * order. BZip2 blocks are independent apart from the stream CRC, which is merged from the block
+ * CRCs as the blocks are stitched, so the compressed data is identical to that written with a
+ * single thread.</p>
+ *
  * <p>Instances of this class are not threadsafe.</p>
  */
 public class BZip2OutputStream extends OutputStream {
@@ -63,6 +78,31 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	private BZip2BlockCompressor blockCompressor;
 
+	/**
+	 * The buffer the current block is compressed into when compressing on worker threads
+	 */
+	private ByteArrayOutputStream blockBuffer;
+
+	/**
+	 * The bit stream writing to {@link #blockBuffer}
+	 */
+	private BZip2BitOutputStream blockBitStream;
+
+	/**
+	 * The number of worker threads, or {@code 1} to compress blocks on the writing thread
+	 */
+	private final int threadCount;
+
+	/**
+	 * The worker threads, or {@code null} when compressing on the writing thread
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Blocks handed to the worker threads that have not yet been written, in stream order
+	 */
+	private final LinkedList<Future<CompressedBlock>> pendingBlocks = new LinkedList<Future<CompressedBlock>>();
+
 
 	/* (non-Javadoc)
 	 * @see java.io.OutputStream#write(int)
@@ -134,7 +174,13 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	private void initialiseNextBlock() {
 
-		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize);
+		if (this.executor == null) {
+			this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize);
+		} else {
+			this.blockBuffer = new ByteArrayOutputStream (this.streamBlockSize / 4);
+			this.blockBitStream = new BZip2BitOutputStream (this.blockBuffer);
+			this.blockCompressor = new BZip2BlockCompressor (this.blockBitStream, this.streamBlockSize);
+		}
 
 	}
 
@@ -150,13 +196,87 @@ public class BZip2OutputStream extends OutputStream {
 			return;
 		}
 
-		this.blockCompressor.close();
-		int blockCRC = this.blockCompressor.getCRC();
+		if (this.executor == null) {
+			this.blockCompressor.close();
+			mergeBlockCRC (this.blockCompressor.getCRC());
+			return;
+		}
+
+		// Keep at most one block per thread waiting, so that memory use stays bounded
+		while (this.pendingBlocks.size() >= this.threadCount) {
+			writePendingBlock();
+		}
+
+		final BZip2BlockCompressor blockCompressor = this.blockCompressor;
+		final ByteArrayOutputStream blockBuffer = this.blockBuffer;
+		final BZip2BitOutputStream blockBitStream = this.blockBitStream;
+		this.pendingBlocks.add (this.executor.submit (new Callable<CompressedBlock>() {
+			public CompressedBlock call() throws IOException {
+				blockCompressor.close();
+				return new CompressedBlock (blockBitStream, blockBuffer, blockCompressor.getCRC());
+			}
+		}));
+
+	}
+
+
+	/**
+	 * Waits for the oldest block handed to the worker threads, then writes it to the stream
+	 * @throws IOException on any I/O error compressing or writing the block
+	 */
+	private void writePendingBlock() throws IOException {
+
+		CompressedBlock block;
+		try {
+			block = this.pendingBlocks.removeFirst().get();
+		} catch (ExecutionException e) {
+			shutdown();
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw (IOException) new IOException ("Unable to compress block").initCause (e.getCause());
+		} catch (InterruptedException e) {
+			shutdown();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException ("Interrupted while compressing block");
+		}
+
+		this.bitOutputStream.writeBitString (block.bits, block.bitLength);
+		mergeBlockCRC (block.crc);
+
+	}
+
+
+	/**
+	 * Merges the CRC of a block into the stream CRC. Blocks must be merged in stream order
+	 * @param blockCRC The block's CRC
+	 */
+	private void mergeBlockCRC (final int blockCRC) {
+
 		this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
 
 	}
 
 
+	/**
+	 * Stops the worker threads, discarding any blocks not yet written. After a block has failed,
+	 * nothing more is written to the stream
+	 */
+	private void shutdown() {
+
+		this.streamFinished = true;
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.pendingBlocks.clear();
+		}
+
+	}
+
+
 	/**
 	 * Compresses and writes out any as yet unwritten data, then writes the end of the BZip2 stream.
 	 * The underlying OutputStream is not closed
@@ -168,6 +288,9 @@ public class BZip2OutputStream extends OutputStream {
 			this.streamFinished = true;
 			try {
 				closeBlock();
+				while (!this.pendingBlocks.isEmpty()) {
+					writePendingBlock();
+				}
 				this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
 				this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
 				this.bitOutputStream.writeInteger (this.streamCRC);
@@ -175,6 +298,9 @@ public class BZip2OutputStream extends OutputStream {
 				this.outputStream.flush();
 			} finally {
 				this.blockCompressor = null;
+				this.blockBuffer = null;
+				this.blockBitStream = null;
+				shutdown();
 			}
 		}
 
@@ -190,6 +316,23 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier) throws IOException {
 
+		this (outputStream, blockSizeMultiplier, 1);
+
+	}
+
+
+	/**
+	 * @param outputStream The output stream to write to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9). Larger block sizes require more memory for both compression and decompression,
+	 * but give better compression ratios. <code>9</code> will usually be the best value to use
+	 * @param threadCount The number of threads to compress blocks on. With more than one, up to
+	 * this many blocks are compressed at once, each needing about eight times the block size in
+	 * memory; the threads are stopped when the stream is finished or closed
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier, final int threadCount) throws IOException {
+
 		if (outputStream == null) {
 			throw new IllegalArgumentException ("Null output stream");
 		}
@@ -198,7 +341,12 @@ public class BZip2OutputStream extends OutputStream {
 			throw new IllegalArgumentException ("Invalid BZip2 block size" + blockSizeMultiplier);
 		}
 
+		if (threadCount < 1) {
+			throw new IllegalArgumentException ("Invalid thread count " + threadCount);
+		}
+
 		this.streamBlockSize = blockSizeMultiplier * 100000;
+		this.threadCount = threadCount;
 		this.outputStream = outputStream;
 		this.bitOutputStream = new BZip2BitOutputStream (this.outputStream);
 
@@ -206,6 +354,9 @@ public class BZip2OutputStream extends OutputStream {
 		this.bitOutputStream.writeBits (8,  BZip2Constants.STREAM_START_MARKER_2);
 		this.bitOutputStream.writeBits (8, '0' + blockSizeMultiplier);
 
+		if (threadCount > 1) {
+			this.executor = Executors.newFixedThreadPool (threadCount, new DaemonThreadFactory());
+		}
 		initialiseNextBlock();
 
 	}
@@ -222,4 +373,67 @@ public class BZip2OutputStream extends OutputStream {
 
 	}
 
+
+
+	/**
+	 * A block compressed on a worker thread, waiting to be written to the stream
+	 */
+	private static class CompressedBlock {
+
+		/**
+		 * The compressed block, padded to a whole byte
+		 */
+		final byte[] bits;
+
+		/**
+		 * The number of bits in {@link #bits} that belong to the block
+		 */
+		final long bitLength;
+
+		/**
+		 * The block's CRC
+		 */
+		final int crc;
+
+		/**
+		 * @param blockBitStream The bit stream the block was compressed with
+		 * @param blockBuffer The buffer the bit stream writes to
+		 * @param crc The block's CRC
+		 * @throws IOException on any I/O error flushing the bit stream
+		 */
+		CompressedBlock (final BZip2BitOutputStream blockBitStream, final ByteArrayOutputStream blockBuffer, final int crc) throws IOException {
+
+			this.bitLength = 8L * blockBuffer.size() + blockBitStream.getBufferedBitCount();
+			blockBitStream.flush();
+			this.bits = blockBuffer.toByteArray();
+			this.crc = crc;
+
+		}
+
+	}
+
+
+	/**
+	 * Creates daemon worker threads, so that a stream which is never closed doesn't keep the JVM running
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		/**
+		 * The factory the threads are created by before being made daemons
+		 */
+		private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		public Thread newThread (final Runnable runnable) {
+
+			Thread thread = this.defaultFactory.newThread (runnable);
+			thread.setDaemon (true);
+			return thread;
+
+		}
+
+	}
+
 }